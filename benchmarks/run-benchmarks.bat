@@ -0,0 +1,23 @@
+@echo off
+REM Build and run the JMH benchmarks, writing results as JSON
+REM Usage: run-benchmarks.bat [result-file] [extra JMH options, e.g. a benchmark regex]
+echo ================================================
+echo   Running JMH Benchmarks...
+echo ================================================
+echo.
+
+set RESULT=%1
+if "%RESULT%"=="" set RESULT=jmh-result.json
+
+call mvn -q -f "%~dp0pom.xml" package
+if %errorlevel% neq 0 (
+    echo ERROR: Failed to build benchmarks
+    pause
+    exit /b 1
+)
+
+java -jar "%~dp0target\benchmarks.jar" -rf json -rff "%RESULT%" %2 %3 %4 %5
+echo.
+echo Results written to %RESULT%
+echo Compare with a baseline:
+echo   java -cp "%~dp0target\benchmarks.jar" benchmark.CompareResults baseline.json %RESULT%
@@ -0,0 +1,120 @@
+package benchmark;
+
+import common.EncodedFrame;
+import common.Message;
+import common.MessageType;
+import server.ClientConnection;
+import server.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server.broadcastMessage fanning out to N in-memory connections.
+ * Each sink takes the binary encoding, as an NIO session would, so the
+ * score includes the history append, the async log enqueue and one encode.
+ * Log entries are dropped rather than waited for, to keep disk speed out of
+ * the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.dropWhenFull=true")
+@State(Scope.Benchmark)
+public class BroadcastFanoutBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int recipients;
+
+    private Message message;
+    private Sink[] sinks;
+
+    /**
+     * In-memory ClientConnection that only counts what it is sent
+     */
+    static final class Sink implements ClientConnection {
+        private final String username;
+        long frames;
+        long bytes;
+
+        Sink(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sendFrame(EncodedFrame.of(message));
+        }
+
+        @Override
+        public void sendFrame(EncodedFrame frame) {
+            frames++;
+            bytes += frame.binary().length;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public String getClientAddress() {
+            return "in-memory";
+        }
+
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        @Override
+        public double getAverageWriteMillis() {
+            return 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        message = new Message(MessageType.MESSAGE_BROADCAST, "alice", "Hello everyone!");
+        sinks = new Sink[recipients];
+        for (int i = 0; i < recipients; i++) {
+            sinks[i] = new Sink("bench-" + i);
+            Server.addClient(sinks[i].getUsername(), sinks[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Sink sink : sinks) {
+            Server.removeClient(sink.getUsername(), sink);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        Server.broadcastMessage(message);
+    }
+}
@@ -0,0 +1,86 @@
+package benchmark;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import server.HistoryRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What Server.addToChatHistory does, under contention: 63 threads append
+ * while one takes the snapshots served to admins. The "ring" group is the
+ * current HistoryRing; "copyOnWrite" is the CopyOnWriteArrayList + remove(0)
+ * scheme it replaced, kept as a baseline at its old MAX_HISTORY_SIZE bound
+ * (the capacity parameter only applies to the ring).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ChatHistoryBenchmark {
+
+    @Param({ "1024", "1048576" })
+    public int capacity;
+
+    private HistoryRing ring;
+    private List<Message> list;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        ring = new HistoryRing(capacity);
+        list = new CopyOnWriteArrayList<>();
+        message = new Message(MessageType.MESSAGE_BROADCAST, "alice", "Hello everyone!");
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(63)
+    public long ringAppend() {
+        return ring.append(message);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public List<Message> ringSnapshot() {
+        return ring.latest(Constants.MAX_HISTORY_SIZE);
+    }
+
+    @Benchmark
+    @Group("copyOnWrite")
+    @GroupThreads(63)
+    public void copyOnWriteAppend() {
+        list.add(message);
+        if (list.size() > Constants.MAX_HISTORY_SIZE) {
+            list.remove(0);
+        }
+    }
+
+    @Benchmark
+    @Group("copyOnWrite")
+    @GroupThreads(1)
+    public List<Message> copyOnWriteSnapshot() {
+        return new ArrayList<>(list);
+    }
+}
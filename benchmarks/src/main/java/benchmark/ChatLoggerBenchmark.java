@@ -0,0 +1,55 @@
+package benchmark;
+
+import common.Message;
+import common.MessageType;
+import server.ChatLogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained ChatLogger.logChatMessage throughput from several routing
+ * threads. With the default policy callers wait when the log queue is
+ * full, so this is bounded by how fast the writer thread reaches the disk
+ * (files go to logs/ under the working directory).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ChatLoggerBenchmark {
+
+    private ChatLogger logger;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        logger = new ChatLogger();
+        message = new Message(MessageType.MESSAGE_BROADCAST, "alice", "Hello everyone, the build is green again!");
+    }
+
+    @TearDown
+    public void tearDown() {
+        logger.close();
+    }
+
+    @Benchmark
+    public void logChatMessage() {
+        logger.logChatMessage(message);
+    }
+}
@@ -0,0 +1,117 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two JMH JSON result files (written with -rf json) and fails when a
+ * benchmark got slower than the threshold, so a build can be checked against
+ * the results of the last release before deploying.
+ *
+ * Usage: java -cp benchmarks.jar benchmark.CompareResults <baseline.json> <current.json> [thresholdPercent]
+ * Exits with status 1 if any benchmark regressed by more than the threshold (default 10%).
+ */
+public class CompareResults {
+
+    private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern MODE = Pattern.compile("\"mode\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+    private static final Pattern PRIMARY_SCORE = Pattern.compile(
+            "\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.Ee+]+|\"NaN\")");
+    private static final Pattern UNIT = Pattern.compile("\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PARAM = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]*)\"");
+
+    static final class Result {
+        final String mode;
+        final double score;
+        final String unit;
+
+        Result(String mode, double score, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java benchmark.CompareResults <baseline.json> <current.json> [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        Map<String, Result> baseline = load(args[0]);
+        Map<String, Result> current = load(args[1]);
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null || before.score == 0) {
+                System.out.printf("%-70s %14s %14.3f %9s  %s%n", entry.getKey(), "-", now.score, "new", now.unit);
+                continue;
+            }
+
+            double change = (now.score - before.score) / before.score * 100.0;
+            double worse = now.higherIsBetter() ? -change : change;
+            boolean regressed = worse > threshold;
+            if (regressed) regressions++;
+
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), before.score, now.score,
+                    change, now.unit, regressed ? "  REGRESSION" : "");
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+        System.out.println("No regressions above " + threshold + "%");
+    }
+
+    /**
+     * Benchmark name plus parameters -> primary score
+     */
+    static Map<String, Result> load(String file) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        // Every result object starts with its "jmhVersion" field
+        String[] entries = json.split("\"jmhVersion\"");
+        for (int i = 1; i < entries.length; i++) {
+            String entry = entries[i];
+            Matcher name = BENCHMARK.matcher(entry);
+            Matcher mode = MODE.matcher(entry);
+            Matcher score = PRIMARY_SCORE.matcher(entry);
+            Matcher unit = UNIT.matcher(entry);
+            if (!name.find() || !mode.find() || !score.find()) continue;
+
+            String key = name.group(1);
+            Matcher params = PARAMS.matcher(entry);
+            if (params.find()) {
+                Map<String, String> sorted = new TreeMap<>();
+                Matcher param = PARAM.matcher(params.group(1));
+                while (param.find()) {
+                    sorted.put(param.group(1), param.group(2));
+                }
+                key += sorted;
+            }
+
+            String value = score.group(1);
+            double parsed = value.startsWith("\"") ? Double.NaN : Double.parseDouble(value);
+            results.put(key, new Result(mode.group(1), parsed, unit.find() ? unit.group(1) : ""));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,93 @@
+package benchmark;
+
+import common.EncodedFrame;
+import common.Message;
+import common.MessageCodec;
+import common.MessageType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one chat message into bytes and back with each wire format:
+ * Java serialization (legacy clients), the TYPE|||SENDER|||... protocol
+ * string, and MessageCodec frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageSerializationBenchmark {
+
+    private Message message;
+    private byte[] serialized;
+    private String protocolString;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+        message = new Message(MessageType.MESSAGE_BROADCAST, "alice", "Hello everyone, the build is green again!");
+        serialized = javaSerialize();
+        protocolString = message.toProtocolString();
+        frame = MessageCodec.encodeFrame(message);
+    }
+
+    @Benchmark
+    public byte[] javaSerialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public String protocolStringEncode() {
+        return message.toProtocolString();
+    }
+
+    @Benchmark
+    public Message protocolStringDecode() {
+        return Message.fromProtocolString(protocolString);
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return MessageCodec.encodeFrame(message);
+    }
+
+    @Benchmark
+    public Message codecDecode() throws IOException {
+        return MessageCodec.readFrame(new ByteArrayInputStream(frame));
+    }
+
+    /** What a broadcast to object-stream clients pays once per message */
+    @Benchmark
+    public byte[] encodedFrameSerialized() {
+        return EncodedFrame.of(message).serialized();
+    }
+}
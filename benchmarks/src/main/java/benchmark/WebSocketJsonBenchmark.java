@@ -0,0 +1,52 @@
+package benchmark;
+
+import common.EncodedFrame;
+import common.Message;
+import common.MessageType;
+import server.WebSocketBridge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The browser bridge's JSON handling: the regex-based parser used for every
+ * incoming WebSocket frame, and the JSON built for outgoing ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebSocketJsonBenchmark {
+
+    private String json;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        json = "{\"type\":\"PRIVATE\",\"sender\":\"alice\",\"content\":\"Hello there, are you around?\","
+                + "\"targetUser\":\"bob\"}";
+        message = new Message(MessageType.BROADCAST, "alice", "Hello everyone!");
+    }
+
+    @Benchmark
+    public Message parseJson() {
+        return WebSocketBridge.parseJsonMessage(json);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return EncodedFrame.of(message).json();
+    }
+}
@@ -91,9 +91,18 @@ export default function App() {
     const file = e.target.files[0];
     if (!file) return;
     try {
-      const resp = await fetch(UPLOAD_URL, {
-        method: 'POST', headers: { 'X-Filename': file.name }, body: file
-      });
+      const headers = { 'X-Filename': file.name };
+      let resp = null;
+      // Ask the server to reuse content it already has before sending the bytes
+      if (window.crypto && window.crypto.subtle && file.size > 0) {
+        const digest = await window.crypto.subtle.digest('SHA-256', await file.arrayBuffer());
+        headers['X-Content-SHA256'] = Array.from(new Uint8Array(digest))
+          .map(b => b.toString(16).padStart(2, '0')).join('');
+        resp = await fetch(UPLOAD_URL, { method: 'POST', headers, body: '' });
+      }
+      if (!resp || resp.status !== 200) {
+        resp = await fetch(UPLOAD_URL, { method: 'POST', headers, body: file });
+      }
       const json = await resp.json();
       send({ type: 'BROADCAST', sender: username, content: `📎 ${file.name} — ${json.url}` });
     } catch (err) { console.error(err); }
@@ -2,6 +2,7 @@ package client;
 
 import common.Constants;
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
 import java.io.*;
@@ -10,9 +11,10 @@ import java.util.Scanner;
 
 public class Client {
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private MessageIO io;
     private String username;
+    private String sessionToken; // lets connect() take the session back after a dropped connection
+    private int sessionId;
     private boolean running = false;
     
     public Client(String username) {
@@ -22,29 +24,32 @@ public class Client {
     public void connect() {
         try {
             socket = new Socket(Constants.SERVER_HOST, Constants.SERVER_PORT);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            io = MessageIO.connect(socket);
             
-            // Send login message
-            Message loginMsg = new Message(MessageType.LOGIN, username, username);
-            output.writeObject(loginMsg);
-            output.flush();
+            // Send login message, with the reconnect token of the previous session if there was one
+            String login = sessionToken != null ? username + "\ntoken=" + sessionToken : username;
+            Message loginMsg = new Message(MessageType.LOGIN, username, login);
+            io.write(loginMsg);
             
-            // Wait for login response
-            Message response = (Message) input.readObject();
+            // Wait for login response; our own join broadcast may arrive first
+            Message response = io.read();
+            while (!MessageType.LOGIN.equals(response.getType()) && !MessageType.ERROR.equals(response.getType())) {
+                response = io.read();
+            }
             
             if (MessageType.ERROR.equals(response.getType())) {
                 System.out.println("Login failed: " + response.getContent());
+                sessionToken = null;
                 disconnect();
                 return;
             }
+            readSessionInfo(response.getContent());
             
-            System.out.println("✓ Connected to server as: " + username);
+            System.out.println("✓ Connected to server as: " + username + (sessionId > 0 ? " (#" + sessionId + ")" : ""));
             running = true;
             
             // Start listener thread
-            ClientListener listener = new ClientListener(input);
+            ClientListener listener = new ClientListener(io);
             new Thread(listener).start();
             
             // Start command loop
@@ -56,6 +61,22 @@ public class Client {
         }
     }
     
+    // The LOGIN reply carries session=ID and token=TOKEN lines after the greeting
+    private void readSessionInfo(String content) {
+        if (content == null) return;
+        for (String line : content.split("\n")) {
+            if (line.startsWith("token=")) {
+                sessionToken = line.substring(6);
+            } else if (line.startsWith("session=")) {
+                try {
+                    sessionId = Integer.parseInt(line.substring(8));
+                } catch (NumberFormatException e) {
+                    // older servers send no session ID
+                }
+            }
+        }
+    }
+    
     private void handleUserInput() {
         Scanner scanner = new Scanner(System.in);
         
@@ -93,8 +114,7 @@ public class Client {
     private void sendPublicMessage(String content) {
         try {
             Message msg = new Message(MessageType.PUBLIC_MESSAGE, username, content);
-            output.writeObject(msg);
-            output.flush();
+            io.write(msg);
         } catch (IOException e) {
             System.err.println("Failed to send message: " + e.getMessage());
         }
@@ -103,8 +123,7 @@ public class Client {
     private void sendPrivateMessage(String receiver, String content) {
         try {
             Message msg = new Message(MessageType.PRIVATE_MESSAGE, username, receiver, content);
-            output.writeObject(msg);
-            output.flush();
+            io.write(msg);
         } catch (IOException e) {
             System.err.println("Failed to send private message: " + e.getMessage());
         }
@@ -114,14 +133,12 @@ public class Client {
         try {
             running = false;
             
-            if (output != null) {
+            if (io != null) {
                 Message logoutMsg = new Message(MessageType.LOGOUT, username, "");
-                output.writeObject(logoutMsg);
-                output.flush();
+                io.write(logoutMsg);
+                io.close();
             }
             
-            if (input != null) input.close();
-            if (output != null) output.close();
             if (socket != null && !socket.isClosed()) socket.close();
             
             System.out.println("Disconnected from server");
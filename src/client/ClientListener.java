@@ -1,16 +1,16 @@
 package client;
 
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 
 public class ClientListener implements Runnable {
-    private ObjectInputStream input;
+    private MessageIO input;
     private boolean running = true;
     
-    public ClientListener(ObjectInputStream input) {
+    public ClientListener(MessageIO input) {
         this.input = input;
     }
     
@@ -18,10 +18,10 @@ public class ClientListener implements Runnable {
     public void run() {
         try {
             while (running) {
-                Message message = (Message) input.readObject();
+                Message message = input.read();
                 handleMessage(message);
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             if (running) {
                 System.err.println("Connection lost: " + e.getMessage());
             }
@@ -0,0 +1,151 @@
+package client.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decides whether a file is worth compressing before it is sent, and deflates
+ * and inflates its chunks.
+ *
+ * Media and archive formats are already compressed and go as they are. For
+ * anything else the first blocks are deflated at levels 1, 6 and 9. If the
+ * fast level does not save at least a tenth, the file goes as it is.
+ * Otherwise the choice, including not compressing at all, is the one that
+ * would take the least time to compress and send the whole file at the
+ * expected link rate. Before the sender has seen its link, the fast level is
+ * used.
+ *
+ * Each chunk is deflated on its own inside the send loop, right after it has
+ * been read and digested, and travels in the relay's slot layout (see
+ * common.FileRelay). The file is therefore read once, the first chunk goes out
+ * at once, and resume, parallel ranges and the digests of the original bytes
+ * work as for uncompressed files.
+ */
+public final class FileCompression {
+    private static final int SAMPLE_BLOCK = 64 * 1024;
+    private static final int SAMPLE_BLOCKS = 4;
+    private static final double MAX_RATIO = 0.9;
+    private static final int[] LEVELS = { Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION };
+
+    private static final Set<String> PRECOMPRESSED = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "aac", "ogg", "opus", "flac", "m4a",
+            "mp4", "m4v", "mkv", "webm", "avi", "mov",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jar", "apk", "docx", "xlsx", "pptx", "odt", "epub", "pdf"));
+
+    private FileCompression() {
+        throw new UnsupportedOperationException("Cannot instantiate FileCompression class");
+    }
+
+    /**
+     * Deflate level to send a file with
+     *
+     * @param linkRate bytes per second the file is expected to go out at, 0 if not known
+     * @return the level, or -1 to send the file as it is
+     */
+    public static int chooseLevel(File file, long linkRate) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && PRECOMPRESSED.contains(name.substring(dot + 1))) return -1;
+        if (file.length() < SAMPLE_BLOCK) return -1; // too small to matter
+
+        byte[] sample = readSample(file.toPath());
+        int best = -1;
+        double bestSeconds = linkRate > 0 ? file.length() / (double) linkRate : Double.MAX_VALUE;
+        for (int level : LEVELS) {
+            long start = System.nanoTime();
+            long packed = deflatedLength(sample, level);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double ratio = packed / (double) sample.length;
+            if (ratio > MAX_RATIO) return -1;
+            if (linkRate == 0) return level; // the fast level; the first one tried
+
+            // Projected time for the whole file: compressing it, then sending what is left
+            double scale = file.length() / (double) sample.length;
+            double total = seconds * scale + ratio * file.length() / linkRate;
+            if (total < bestSeconds) {
+                bestSeconds = total;
+                best = level;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Deflate one chunk into a buffer
+     *
+     * @return the deflated length, or -1 if it would not be shorter than the chunk
+     */
+    public static int deflate(Deflater deflater, byte[] chunk, int length, byte[] out, int offset) {
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+        int limit = length - 1;
+        int n = 0;
+        while (!deflater.finished() && n < limit) {
+            n += deflater.deflate(out, offset + n, limit - n);
+        }
+        return deflater.finished() ? n : -1;
+    }
+
+    /**
+     * Inflate one chunk, which must come out at exactly the given length
+     */
+    public static void inflate(Inflater inflater, byte[] packed, int packedLength, byte[] chunk, int length)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(packed, 0, packedLength);
+        int n = 0;
+        try {
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(chunk, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage(), e);
+        }
+        if (n != length || !inflater.finished()) {
+            throw new IOException("Compressed chunk inflated to the wrong length");
+        }
+    }
+
+    private static byte[] readSample(Path path) throws IOException {
+        byte[] sample = new byte[SAMPLE_BLOCK * SAMPLE_BLOCKS];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while (length < sample.length && (n = in.read(sample, length, sample.length - length)) > 0) {
+                length += n;
+            }
+        }
+        return Arrays.copyOf(sample, length);
+    }
+
+    private static long deflatedLength(byte[] data, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE_BLOCK];
+            long total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(out);
+            }
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+}
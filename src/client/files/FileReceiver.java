@@ -1,27 +1,72 @@
 package client.files;
 
 import common.Constants;
+import common.FileDigest;
+import common.FileRelay;
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
 import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * Receives files offered by other users. Answers go over the chat
+ * connection; accepted files are downloaded from the server's file relay.
+ *
+ * The file is fetched as several ranges over parallel relay connections
+ * (setStreams). Each chunk is checked against its CRC32C and written in place
+ * to a hidden .part file, preallocated at full size; a .progress sidecar next
+ * to it records the index and checksum of every chunk written so far. When a
+ * relay connection drops, or when the same file ID is received again after
+ * close(), the receiver re-checks those chunks on disk and asks the relay for
+ * the first missing chunk of each range. Chunks feed a FileDigest as they are
+ * checked, and the file is kept only if that digest matches the one the
+ * sender reports in FILE_COMPLETE (see handleFileComplete). Chunks the sender
+ * deflated (see FileCompression) are inflated before they are checked, so the
+ * .part file, the sidecar and the digest always hold the original bytes.
+ */
 public class FileReceiver {
 
-    private Socket socket;
-    private DataInputStream dataIn;
-    private BufferedReader messageIn;
+    private MessageIO io;
     private String receiverUsername;
+    private String sessionToken;
+    private String relayHost = Constants.SERVER_HOST;
+    private int relayPort = Constants.FILE_TRANSFER_PORT;
+    private final Set<Socket> relaySockets = ConcurrentHashMap.newKeySet();
+    private int streams = Constants.FILE_TRANSFER_STREAMS;
     private FileReceiveCallback callback;
 
-    private long totalBytesReceived;
+    private final AtomicLong totalBytesReceived = new AtomicLong();
+    private final Map<String, String> completions = new HashMap<>();
+    private volatile FileDigest currentDigest;
     private long expectedFileSize;
-    private boolean transferInProgress;
+    private volatile boolean compressedFrames;
+    private volatile boolean transferInProgress;
+    private volatile boolean discardPartial;
     @SuppressWarnings("unused")
     private String currentFileName;
     private String receiveDirectory;
@@ -38,27 +83,37 @@ public class FileReceiver {
         void onCancelled();
     }
 
-    public FileReceiver(Socket socket, String receiverUsername) {
-        this.socket = socket;
+    /**
+     * @param io           the logged-in chat connection
+     * @param sessionToken the reconnect token from the LOGIN reply; the relay uses it to identify the receiver
+     */
+    public FileReceiver(MessageIO io, String receiverUsername, String sessionToken) {
+        this.io = io;
         this.receiverUsername = receiverUsername;
+        this.sessionToken = sessionToken;
         this.transferInProgress = false;
         this.receiveDirectory = Constants.FILE_TRANSFER_DIRECTORY + receiverUsername + "/";
 
         createReceiveDirectory();
-
-        try {
-            this.dataIn = new DataInputStream(socket.getInputStream());
-            this.messageIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        } catch (IOException e) {
-            System.err.println("Error initializing FileReceiver: " + e.getMessage());
-        }
     }
 
-    public FileReceiver(Socket socket, String receiverUsername, FileReceiveCallback callback) {
-        this(socket, receiverUsername);
+    public FileReceiver(MessageIO io, String receiverUsername, String sessionToken, FileReceiveCallback callback) {
+        this(io, receiverUsername, sessionToken);
         this.callback = callback;
     }
 
+    public void setRelayAddress(String host, int port) {
+        this.relayHost = host;
+        this.relayPort = port;
+    }
+
+    /**
+     * Number of parallel relay connections for each download; small files use fewer
+     */
+    public void setStreams(int streams) {
+        this.streams = Math.max(1, streams);
+    }
+
     private void createReceiveDirectory() {
         try {
             Path dirPath = Paths.get(receiveDirectory);
@@ -97,113 +152,381 @@ public class FileReceiver {
         return choice == JOptionPane.YES_OPTION;
     }
 
-    public String receiveFile(String filename, long fileSize) {
+    /**
+     * Download an accepted file from the relay, with the digests its FILE_METADATA offer announces
+     *
+     * @return the saved path, or null if the transfer failed
+     */
+    public String receiveFile(Message offer) {
+        boolean sha256 = FileDigest.SHA256.equals(FileDigest.field(offer.getContent(), FileDigest.OPTION));
+        return receiveFile(offer.getFileId(), offer.getFilename(), offer.getFileSize(), sha256,
+                FileRelay.isDeflated(offer.getContent()));
+    }
+
+    public String receiveFile(String fileId, String filename, long fileSize) {
+        return receiveFile(fileId, filename, fileSize, false, false);
+    }
+
+    /**
+     * Pass on the sender's FILE_COMPLETE, whose digest the matching receiveFile waits for
+     */
+    public void handleFileComplete(Message complete) {
+        if (complete.getFileId() == null) return;
+        synchronized (completions) {
+            completions.put(complete.getFileId(), complete.getContent());
+            completions.notifyAll();
+        }
+    }
+
+    /**
+     * Download an accepted file from the relay, resuming a partial download of the same file ID.
+     * The file is kept only once its digest matches the one in the sender's FILE_COMPLETE.
+     *
+     * @param deflated whether the relay carries the chunks in compressed frames
+     * @return the saved path, or null if the transfer failed
+     */
+    private String receiveFile(String fileId, String filename, long fileSize, boolean sha256,
+            boolean deflated) {
         if (transferInProgress) {
             notifyError("Another file transfer is already in progress!");
             return null;
         }
+        if (!FileRelay.isValidFileId(fileId)) {
+            notifyError("Invalid file ID");
+            return null;
+        }
 
-        FileOutputStream fileOut = null;
-        BufferedOutputStream bufferedOut = null;
-
+        Path partial = Paths.get(receiveDirectory, "." + fileId + ".part");
+        Path progress = Paths.get(receiveDirectory, "." + fileId + ".progress");
+        ExecutorService pool = null;
         try {
             transferInProgress = true;
+            discardPartial = false;
             currentFileName = filename;
             expectedFileSize = fileSize;
-            totalBytesReceived = 0;
+            compressedFrames = deflated;
+            currentDigest = new FileDigest(fileSize, sha256);
+
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                String header = fileId + "\t" + fileSize + "\t" + Constants.FILE_CHUNK_SIZE;
+                boolean[] verified = verifiedChunks(progress, header, out, fileSize, currentDigest);
+                long resumed = 0;
+                for (int chunk = 0; chunk < verified.length; chunk++) {
+                    if (verified[chunk]) resumed += chunkLength(chunk, fileSize);
+                }
+                totalBytesReceived.set(resumed);
+                if (resumed > 0) {
+                    System.out.println("Resuming file: " + filename + " with " + formatFileSize(resumed) + " already here");
+                } else {
+                    System.out.println("Receiving file: " + filename);
+                }
+
+                // Ranges are written in place, so the file takes its final size up front
+                if (out.size() > fileSize) {
+                    out.truncate(fileSize);
+                } else if (out.size() < fileSize) {
+                    out.write(ByteBuffer.allocate(1), fileSize - 1);
+                }
+
+                long[][] ranges = FileRelay.stripes(fileSize, streams, deflated);
+                pool = Executors.newFixedThreadPool(ranges.length);
+                try (Writer checksums = Files.newBufferedWriter(progress, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    List<Callable<Boolean>> downloads = new ArrayList<>();
+                    for (long[] range : ranges) {
+                        downloads.add(() -> receiveRange(fileId, range[0], range[1], out, verified, checksums));
+                    }
+                    for (Future<Boolean> download : pool.invokeAll(downloads)) {
+                        try {
+                            if (!download.get()) return null;
+                        } catch (ExecutionException e) {
+                            Throwable cause = e.getCause();
+                            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        }
+                    }
+                }
+
+                if (totalBytesReceived.get() != fileSize || out.size() != fileSize) {
+                    throw new IOException("File size verification failed!");
+                }
+            }
+
+            String reported = awaitCompletion(fileId);
+            if (reported == null) {
+                throw new IOException("The sender did not confirm the file");
+            }
+            String mismatch = currentDigest.mismatch(reported);
+            if (mismatch != null) {
+                discardPartial = true; // no way to tell which chunks are wrong
+                throw new IOException("Integrity check failed: " + mismatch);
+            }
 
             String savePath = generateUniqueFilePath(receiveDirectory, filename);
-            File outputFile = new File(savePath);
+            Files.move(partial, Paths.get(savePath));
+            Files.deleteIfExists(progress);
+
+            System.out.println("File received successfully: " + formatFileSize(fileSize) + " -> " + savePath);
+
+            notifyComplete(filename, savePath);
+            return savePath;
+
+        } catch (IOException e) {
+            notifyError("Error receiving file: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            notifyError("File transfer interrupted");
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (discardPartial) {
+                deletePartial(partial, progress);
+            }
+            transferInProgress = false;
+            currentFileName = null;
+            currentDigest = null;
+        }
+    }
 
-            fileOut = new FileOutputStream(outputFile);
-            bufferedOut = new BufferedOutputStream(fileOut);
+    private void wakeCompletionWait() {
+        synchronized (completions) {
+            completions.notifyAll();
+        }
+    }
 
-            System.out.println("Receiving file: " + filename + " -> " + savePath);
+    // The sender reports the digest on the chat connection once its upload is done
+    private String awaitCompletion(String fileId) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.FILE_TRANSFER_TIMEOUT);
+        synchronized (completions) {
+            String content;
+            long remaining;
+            while ((content = completions.remove(fileId)) == null && transferInProgress
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                completions.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            }
+            return content;
+        }
+    }
 
-            long confirmedSize = dataIn.readLong();
-            if (confirmedSize != fileSize) {
-                throw new IOException("File size mismatch!");
+    /**
+     * Download one range, reconnecting when the relay connection drops
+     *
+     * @return false if the transfer was refused, cancelled or closed
+     */
+    private boolean receiveRange(String fileId, long first, long end, FileChannel out, boolean[] verified,
+            Writer checksums) throws IOException, InterruptedException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt <= Constants.FILE_RESUME_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                System.out.println("Relay connection lost (" + lastError.getMessage() + "), resuming...");
+                Thread.sleep(Constants.FILE_RESUME_DELAY);
             }
+            try {
+                return downloadRange(fileId, first, end, out, verified, checksums);
+            } catch (IOException e) {
+                if (!transferInProgress) {
+                    return false; // cancelled or closed
+                }
+                lastError = e;
+            }
+        }
+        closeStreams(relaySockets.toArray(new Closeable[0])); // one range gave up, so the file will not arrive
+        throw lastError;
+    }
 
-            byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
-            int bytesRead;
+    /**
+     * Read the frames of a range from one relay connection, starting at its first chunk not yet verified
+     *
+     * @return false if the relay refused the transfer, which retrying will not fix
+     */
+    private boolean downloadRange(String fileId, long first, long end, FileChannel out, boolean[] verified,
+            Writer checksums) throws IOException {
+        boolean deflated = compressedFrames;
+        int frameLength = FileRelay.slotLength(deflated);
+        long chunk = first / frameLength;
+        synchronized (verified) {
+            while (FileRelay.frameOffset(chunk, deflated) < end && verified[(int) chunk]) {
+                chunk++;
+            }
+        }
+        if (FileRelay.frameOffset(chunk, deflated) >= end && first < end) {
+            return true;
+        }
 
-            while (totalBytesReceived < expectedFileSize) {
-                int toRead = (int) Math.min(buffer.length, expectedFileSize - totalBytesReceived);
-                bytesRead = dataIn.read(buffer, 0, toRead);
+        Socket relay = new Socket(relayHost, relayPort);
+        relaySockets.add(relay);
+        Inflater inflater = deflated ? new Inflater() : null;
+        try {
+            FileRelay.writeLine(relay.getOutputStream(), FileRelay.RECV, fileId, receiverUsername, sessionToken,
+                    String.valueOf(FileRelay.frameOffset(chunk, deflated)), String.valueOf(end));
+            String[] reply = FileRelay.readLine(relay.getInputStream());
+            if (!FileRelay.OK.equals(reply[0]) || reply.length < 2) {
+                notifyError("File relay refused the transfer: " + (reply.length > 1 ? reply[1] : reply[0]));
+                return false;
+            }
+            if (!reply[1].equals(String.valueOf(FileRelay.wireLength(expectedFileSize, deflated)))) {
+                notifyError("File size mismatch!");
+                return false;
+            }
 
-                if (bytesRead == -1) {
-                    throw new IOException("Unexpected end of stream");
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(relay.getInputStream(), Constants.FILE_BUFFER_SIZE));
+            byte[] frame = new byte[frameLength];
+            byte[] packed = deflated ? new byte[Constants.FILE_CHUNK_SIZE] : null;
+
+            for (; FileRelay.frameOffset(chunk, deflated) < end; chunk++) {
+                int length = chunkLength(chunk, expectedFileSize);
+                int expected;
+                int payload = length;
+                if (deflated) {
+                    payload = in.readInt();
+                    if (payload < 0 || payload > length) {
+                        throw new IOException("Chunk " + chunk + " has a bad frame length " + payload);
+                    }
+                    in.readFully(payload < length ? packed : frame, 0, payload);
+                    expected = in.readInt();
+                } else {
+                    in.readFully(frame, 0, length + FileRelay.CHUNK_TRAILER);
+                    expected = ((frame[length] & 0xFF) << 24) | ((frame[length + 1] & 0xFF) << 16)
+                            | ((frame[length + 2] & 0xFF) << 8) | (frame[length + 3] & 0xFF);
+                }
+                synchronized (verified) {
+                    if (verified[(int) chunk]) continue; // kept from an earlier attempt
+                }
+                if (payload < length) {
+                    // Shorter than the chunk means deflated; the checksum covers the inflated bytes
+                    FileCompression.inflate(inflater, packed, payload, frame, length);
+                }
+                if (currentDigest.update(chunk, frame, length) != expected) {
+                    throw new IOException("Chunk " + chunk + " failed its checksum");
                 }
 
-                bufferedOut.write(buffer, 0, bytesRead);
-                totalBytesReceived += bytesRead;
+                ByteBuffer data = ByteBuffer.wrap(frame, 0, length);
+                long position = chunk * Constants.FILE_CHUNK_SIZE;
+                while (data.hasRemaining()) {
+                    out.write(data, position + data.position());
+                }
+                synchronized (verified) {
+                    verified[(int) chunk] = true;
+                    checksums.write(chunk + "\t" + String.format("%08x%n", expected));
+                    checksums.flush();
+                }
 
-                int percentage = (int) ((totalBytesReceived * 100) / expectedFileSize);
-                notifyProgress(percentage, totalBytesReceived, expectedFileSize);
+                long received = totalBytesReceived.addAndGet(length);
+                notifyProgress((int) ((received * 100) / expectedFileSize), received, expectedFileSize);
+            }
+            return true;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
             }
+            closeStreams(relay);
+            relaySockets.remove(relay);
+        }
+    }
 
-            bufferedOut.flush();
+    private static int chunkLength(long chunk, long fileSize) {
+        return (int) Math.min(Constants.FILE_CHUNK_SIZE, fileSize - chunk * Constants.FILE_CHUNK_SIZE);
+    }
 
-            System.out.println("File received successfully: " + formatFileSize(totalBytesReceived));
+    /**
+     * Find the chunks of a partial file that still match the checksums in its sidecar,
+     * and rewrite the sidecar to list just those
+     */
+    private static boolean[] verifiedChunks(Path progress, String header, FileChannel data, long fileSize,
+            FileDigest digest) throws IOException {
+        int chunks = (int) ((fileSize + Constants.FILE_CHUNK_SIZE - 1) / Constants.FILE_CHUNK_SIZE);
+        boolean[] verified = new boolean[chunks];
+        List<String> lines = Files.exists(progress)
+                ? Files.readAllLines(progress, StandardCharsets.UTF_8)
+                : Collections.emptyList();
+        List<String> kept = new ArrayList<>();
+        kept.add(header);
+        if (!lines.isEmpty() && lines.get(0).equals(header)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Constants.FILE_CHUNK_SIZE);
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split("\t");
+                int chunk;
+                try {
+                    chunk = fields.length == 2 ? Integer.parseInt(fields[0]) : -1;
+                } catch (NumberFormatException e) {
+                    continue; // a torn last line
+                }
+                if (chunk < 0 || chunk >= chunks || verified[chunk]) continue;
 
-            if (outputFile.length() != expectedFileSize) {
-                throw new IOException("File size verification failed!");
+                long position = (long) chunk * Constants.FILE_CHUNK_SIZE;
+                int length = chunkLength(chunk, fileSize);
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining() && data.read(buffer, position + buffer.position()) > 0) {
+                    // keep reading
+                }
+                if (buffer.hasRemaining()) continue;
+
+                int crc = digest.update(chunk, buffer.array(), length);
+                if (String.format("%08x", crc).equals(fields[1])) {
+                    verified[chunk] = true;
+                    kept.add(line);
+                }
             }
+        }
 
-            notifyComplete(filename, savePath);
-            return savePath;
+        Files.write(progress, kept, StandardCharsets.UTF_8);
+        return verified;
+    }
 
+    private static void deletePartial(Path partial, Path progress) {
+        try {
+            Files.deleteIfExists(partial);
+            Files.deleteIfExists(progress);
         } catch (IOException e) {
-            notifyError("Error receiving file: " + e.getMessage());
-            return null;
-        } finally {
-            closeStreams(bufferedOut, fileOut);
-            transferInProgress = false;
-            currentFileName = null;
+            System.err.println("Error deleting partial file: " + e.getMessage());
         }
     }
 
     public String receiveFileWithMetadata(Message metadataMessage) {
         String filename = metadataMessage.getFilename();
-        long fileSize = metadataMessage.getFileSize();
+
+        String fileId = metadataMessage.getFileId();
 
         if (!handleFileRequest(metadataMessage)) {
-            sendRejectionMessage(metadataMessage.getSender(), filename);
+            sendRejectionMessage(metadataMessage.getSender(), fileId, filename);
             return null;
         }
 
-        sendAcceptanceMessage(metadataMessage.getSender(), filename);
+        sendAcceptanceMessage(metadataMessage.getSender(), fileId, filename);
 
-        return receiveFile(filename, fileSize);
+        return receiveFile(metadataMessage);
     }
 
-    private void sendAcceptanceMessage(String sender, String filename) {
+    private void sendAcceptanceMessage(String sender, String fileId, String filename) {
         try {
             Message acceptMsg = new Message(
                     MessageType.FILE_TRANSFER_ACCEPT,
                     receiverUsername,
                     sender,
                     "Accepted: " + filename);
+            acceptMsg.setFileId(fileId);
 
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(acceptMsg.toProtocolString());
+            io.write(acceptMsg);
 
         } catch (IOException e) {
             System.err.println("Error sending acceptance: " + e.getMessage());
         }
     }
 
-    private void sendRejectionMessage(String sender, String filename) {
+    private void sendRejectionMessage(String sender, String fileId, String filename) {
         try {
             Message rejectMsg = new Message(
                     MessageType.FILE_TRANSFER_REJECT,
                     receiverUsername,
                     sender,
                     "Rejected: " + filename);
+            rejectMsg.setFileId(fileId);
 
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(rejectMsg.toProtocolString());
+            io.write(rejectMsg);
 
         } catch (IOException e) {
             System.err.println("Error sending rejection: " + e.getMessage());
@@ -241,6 +564,9 @@ public class FileReceiver {
     public void cancelTransfer() {
         if (transferInProgress) {
             transferInProgress = false;
+            discardPartial = true;
+            wakeCompletionWait();
+            closeStreams(relaySockets.toArray(new Closeable[0]));
             notifyCancelled();
             System.out.println("File transfer cancelled by user");
         }
@@ -253,7 +579,7 @@ public class FileReceiver {
     public int getProgress() {
         if (expectedFileSize == 0)
             return 0;
-        return (int) ((totalBytesReceived * 100) / expectedFileSize);
+        return (int) ((totalBytesReceived.get() * 100) / expectedFileSize);
     }
 
     public String getReceiveDirectory() {
@@ -314,8 +640,14 @@ public class FileReceiver {
         }
     }
 
+    /**
+     * Abort any relay download, keeping what has arrived so a later receiveFile of the same
+     * file ID resumes it; the chat connection stays open
+     */
     public void close() {
-        closeStreams(dataIn, messageIn);
+        transferInProgress = false;
+        wakeCompletionWait();
+        closeStreams(relaySockets.toArray(new Closeable[0]));
     }
 
     public static void testFileWriting() {
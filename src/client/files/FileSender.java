@@ -1,27 +1,71 @@
 package client.files;
 
 import common.Constants;
+import common.FileDigest;
+import common.FileRelay;
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
 import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+
+/**
+ * Sends a file to another user. The offer and the completion notice go over
+ * the chat connection; the bytes go to the server's file relay on a
+ * connection of their own, so they never interleave with chat frames.
+ *
+ * The file goes out in checksummed chunks (see common.FileRelay). If the relay
+ * connection drops, the sender reconnects and continues from the offset the
+ * relay reports instead of starting over. The file is split into ranges sent
+ * over several relay connections at once (setStreams). Writes are paced by
+ * TransferPacer: sized from each connection's throughput, and held to an
+ * optional rate limit (setRateLimit). Each chunk is digested as it is sent
+ * (see common.FileDigest), and FILE_COMPLETE reports the file digest, so the
+ * file is read once. Chunks of files that compress well are deflated in the
+ * same loop, after they have been digested (see FileCompression).
+ */
 public class FileSender {
 
-    private Socket socket;
-    private DataOutputStream dataOut;
-    private PrintWriter messageOut;
+    private MessageIO io;
     private String senderUsername;
+    private String sessionToken;
+    private String relayHost = Constants.SERVER_HOST;
+    private int relayPort = Constants.FILE_TRANSFER_PORT;
+    private final Set<Socket> relaySockets = ConcurrentHashMap.newKeySet();
+    private int streams = Constants.FILE_TRANSFER_STREAMS;
+    private long rateLimit = Constants.FILE_RATE_LIMIT;
+    private boolean sha256 = Constants.FILE_DIGEST_SHA256;
+    private boolean compression = Constants.FILE_COMPRESSION;
+    private int compressionLevel = -1; // deflate level of the current transfer, -1 when it is not compressed
+    private final AtomicLong bytesOnWire = new AtomicLong();
+    private final AtomicLong sendNanos = new AtomicLong(); // time the streams spent writing, summed
+    private long observedRate; // bytes per second the last transfer reached, 0 before the first
     private FileTransferCallback callback;
 
-    private long totalBytesSent;
+    private volatile AtomicLongArray rangeProgress;
     private long fileSize;
-    private boolean transferInProgress;
+    private volatile boolean transferInProgress;
     private String currentFileId;
+    private String currentReceiver;
+    private FileDigest currentDigest;
 
     public interface FileTransferCallback {
         void onProgress(int percentage, long bytesSent, long totalBytes);
@@ -33,24 +77,55 @@ public class FileSender {
         void onCancelled();
     }
 
-    public FileSender(Socket socket, String senderUsername) {
-        this.socket = socket;
+    /**
+     * @param io           the logged-in chat connection
+     * @param sessionToken the reconnect token from the LOGIN reply; the relay uses it to identify the sender
+     */
+    public FileSender(MessageIO io, String senderUsername, String sessionToken) {
+        this.io = io;
         this.senderUsername = senderUsername;
+        this.sessionToken = sessionToken;
         this.transferInProgress = false;
-
-        try {
-            this.dataOut = new DataOutputStream(socket.getOutputStream());
-            this.messageOut = new PrintWriter(socket.getOutputStream(), true);
-        } catch (IOException e) {
-            System.err.println("Error initializing FileSender: " + e.getMessage());
-        }
     }
 
-    public FileSender(Socket socket, String senderUsername, FileTransferCallback callback) {
-        this(socket, senderUsername);
+    public FileSender(MessageIO io, String senderUsername, String sessionToken, FileTransferCallback callback) {
+        this(io, senderUsername, sessionToken);
         this.callback = callback;
     }
 
+    public void setRelayAddress(String host, int port) {
+        this.relayHost = host;
+        this.relayPort = port;
+    }
+
+    /**
+     * Number of parallel relay connections for each transfer; small files use fewer
+     */
+    public void setStreams(int streams) {
+        this.streams = Math.max(1, streams);
+    }
+
+    /**
+     * Cap the upload at this many bytes per second across all streams; 0 removes the cap
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        this.rateLimit = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Also digest the file with SHA-256, on top of the CRC32C every transfer carries
+     */
+    public void setSha256(boolean sha256) {
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Deflate the chunks of files that compress well, when that would make the transfer faster
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     public File selectFile() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Select File to Send");
@@ -97,15 +172,17 @@ public class FileSender {
         try {
             transferInProgress = true;
             fileSize = file.length();
-            totalBytesSent = 0;
+            rangeProgress = null;
             currentFileId = generateFileId();
+            currentReceiver = receiverUsername;
+            compressionLevel = compression ? chooseCompressionLevel(file) : -1;
 
             if (!sendFileMetadata(file, receiverUsername)) {
                 transferInProgress = false;
                 return false;
             }
 
-            boolean success = sendFileData(file);
+            boolean success = sendFileData(file, receiverUsername);
 
             if (success) {
                 notifyComplete(file.getName(), fileSize);
@@ -119,6 +196,26 @@ public class FileSender {
         } finally {
             transferInProgress = false;
             currentFileId = null;
+            currentReceiver = null;
+            currentDigest = null;
+            compressionLevel = -1;
+        }
+    }
+
+    /**
+     * Deflate level for the chunks of a file, or -1 to send it as it is
+     */
+    private int chooseCompressionLevel(File file) {
+        try {
+            long linkRate = rateLimit > 0 && (observedRate == 0 || rateLimit < observedRate) ? rateLimit : observedRate;
+            int level = FileCompression.chooseLevel(file, linkRate);
+            if (level >= 0) {
+                System.out.println("Compressing " + file.getName() + " at level " + level);
+            }
+            return level;
+        } catch (IOException e) {
+            System.err.println("Error sampling file, sending it uncompressed: " + e.getMessage());
+            return -1;
         }
     }
 
@@ -129,14 +226,19 @@ public class FileSender {
                     senderUsername,
                     receiverUsername,
                     file.getName(),
-                    file.length(),
+                    fileSize,
                     currentFileId);
+            if (sha256) {
+                metadataMsg.setContent(metadataMsg.getContent() + "\n" + FileDigest.OPTION + "=" + FileDigest.SHA256);
+            }
+            if (compressionLevel >= 0) {
+                metadataMsg.setContent(metadataMsg.getContent() + "\n" + FileRelay.COMPRESSION + "=" + FileRelay.DEFLATE);
+            }
 
-            messageOut.println(metadataMsg.toProtocolString());
-            messageOut.flush();
+            io.write(metadataMsg);
 
             System.out.println("Sent file metadata: " + file.getName() +
-                    " (" + formatFileSize(file.length()) + ")");
+                    " (" + formatFileSize(fileSize) + ")");
 
             return true;
 
@@ -146,42 +248,59 @@ public class FileSender {
         }
     }
 
-    private boolean sendFileData(File file) {
-        FileInputStream fileIn = null;
-        BufferedInputStream bufferedIn = null;
-
-        try {
-            fileIn = new FileInputStream(file);
-            bufferedIn = new BufferedInputStream(fileIn);
-
-            byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
-            int bytesRead;
-
-            System.out.println("Starting file transfer: " + file.getName());
-
-            dataOut.writeLong(fileSize);
-            dataOut.flush();
-
-            while ((bytesRead = bufferedIn.read(buffer)) != -1) {
-                dataOut.write(buffer, 0, bytesRead);
-                dataOut.flush();
-
-                totalBytesSent += bytesRead;
-
-                int percentage = (int) ((totalBytesSent * 100) / fileSize);
-                notifyProgress(percentage, totalBytesSent, fileSize);
+    private boolean sendFileData(File file, String receiverUsername) {
+        if (sessionToken == null) {
+            notifyError("Not logged in; the file relay needs the session token");
+            return false;
+        }
 
-                Thread.sleep(1);
+        long[][] ranges = FileRelay.stripes(fileSize, streams, compressionLevel >= 0);
+        rangeProgress = new AtomicLongArray(ranges.length);
+        System.out.println("Starting file transfer: " + file.getName()
+                + (ranges.length > 1 ? " over " + ranges.length + " streams" : ""));
+
+        TransferPacer pacer = new TransferPacer(rateLimit);
+        currentDigest = new FileDigest(fileSize, sha256);
+        ExecutorService pool = Executors.newFixedThreadPool(ranges.length);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            bytesOnWire.set(0);
+            sendNanos.set(0);
+            List<Callable<Boolean>> uploads = new ArrayList<>();
+            for (int i = 0; i < ranges.length; i++) {
+                int index = i;
+                uploads.add(() -> sendRange(in, pacer, index, ranges[index][0], ranges[index][1]));
+            }
+            boolean success = true;
+            for (Future<Boolean> upload : pool.invokeAll(uploads)) {
+                try {
+                    success &= upload.get();
+                } catch (ExecutionException e) {
+                    if (success) {
+                        notifyError("IO Error during file transfer: " + e.getCause().getMessage());
+                    }
+                    success = false;
+                }
+            }
+            if (!success) {
+                return false;
             }
 
-            System.out.println("File transfer complete: " + formatFileSize(totalBytesSent) + " sent");
+            // The link rate counts only the time spent writing, so reading and deflating do not make it look slower
+            long wire = bytesOnWire.get();
+            long sending = sendNanos.get() / ranges.length;
+            if (wire >= Constants.FILE_CHUNK_SIZE && sending > 0) {
+                observedRate = (long) (wire * 1e9 / sending);
+            }
+            System.out.println("File transfer complete: " + formatFileSize(fileSize) + " sent"
+                    + (compressionLevel >= 0 ? " as " + formatFileSize(wire) : ""));
 
             Message completeMsg = new Message(
                     MessageType.FILE_COMPLETE,
                     senderUsername,
-                    file.getName() + " sent successfully");
-            messageOut.println(completeMsg.toProtocolString());
-            messageOut.flush();
+                    receiverUsername,
+                    file.getName() + " sent successfully\n" + currentDigest.toContentLines());
+            completeMsg.setFileId(currentFileId);
+            io.write(completeMsg);
 
             return true;
 
@@ -193,33 +312,144 @@ public class FileSender {
             Thread.currentThread().interrupt();
             return false;
         } finally {
-            closeStreams(bufferedIn, fileIn);
+            pool.shutdownNow();
         }
     }
 
-    public String calculateChecksum(File file) {
-        try (FileInputStream fis = new FileInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(fis)) {
-
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
-            int bytesRead;
+    /**
+     * Upload one range, reconnecting when the relay connection drops
+     *
+     * @return false if the transfer was refused, cancelled or closed
+     */
+    private boolean sendRange(FileChannel in, TransferPacer pacer, int index, long first, long end)
+            throws IOException, InterruptedException {
+        TransferPacer.Slice slice = new TransferPacer.Slice();
+        IOException lastError = null;
+        for (int attempt = 0; attempt <= Constants.FILE_RESUME_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                System.out.println("Relay connection lost (" + lastError.getMessage() + "), resuming...");
+                Thread.sleep(Constants.FILE_RESUME_DELAY);
+            }
+            try {
+                return uploadRange(in, pacer, slice, index, first, end);
+            } catch (IOException e) {
+                if (!transferInProgress) {
+                    return false;
+                }
+                lastError = e;
+            }
+        }
+        closeStreams(relaySockets.toArray(new Closeable[0])); // one range gave up, so the file will not arrive
+        throw lastError;
+    }
 
-            while ((bytesRead = bis.read(buffer)) != -1) {
-                md.update(buffer, 0, bytesRead);
+    /**
+     * Upload the rest of a range on one relay connection
+     *
+     * @return false if the relay refused the transfer, which retrying will not fix
+     */
+    private boolean uploadRange(FileChannel in, TransferPacer pacer, TransferPacer.Slice slice, int index,
+            long first, long end) throws IOException, InterruptedException {
+        Socket relay = new Socket(relayHost, relayPort);
+        relaySockets.add(relay);
+        Deflater deflater = compressionLevel >= 0 ? new Deflater(compressionLevel) : null;
+        try {
+            FileRelay.writeLine(relay.getOutputStream(), FileRelay.SEND, currentFileId, senderUsername, sessionToken,
+                    String.valueOf(first), String.valueOf(end));
+            String[] reply = FileRelay.readLine(relay.getInputStream());
+            long offset;
+            try {
+                offset = FileRelay.OK.equals(reply[0]) && reply.length > 1 ? Long.parseLong(reply[1]) : -1;
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < first || offset > end) {
+                notifyError("File relay refused the transfer: " + (reply.length > 1 ? reply[1] : reply[0]));
+                return false;
             }
 
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
+            // The relay says where to continue; anything before that it already has, possibly part of a frame
+            boolean deflated = compressionLevel >= 0;
+            int frameLength = FileRelay.slotLength(deflated);
+            long chunk = offset / frameLength;
+            int skip = (int) (offset % frameLength); // always 0 for compressed frames, which are kept whole
+            OutputStream out = relay.getOutputStream(); // frames are written whole or in large slices, never buffered
+            byte[] frame = new byte[frameLength];
+            byte[] data = deflated ? new byte[Constants.FILE_CHUNK_SIZE] : frame;
+            long firstChunk = first / frameLength;
+            rangeProgress.set(index, Math.min(fileSize, chunk * Constants.FILE_CHUNK_SIZE)
+                    - firstChunk * Constants.FILE_CHUNK_SIZE);
+
+            while (FileRelay.frameOffset(chunk, deflated) < end) {
+                long position = chunk * Constants.FILE_CHUNK_SIZE;
+                int length = (int) Math.min(Constants.FILE_CHUNK_SIZE, fileSize - position);
+                readFully(in, data, length, position);
+                // The digest and the trailer cover the original bytes, compressed or not
+                int value = currentDigest.update(chunk, data, length);
+                int frameEnd;
+                if (deflated) {
+                    int payload = FileCompression.deflate(deflater, data, length, frame, FileRelay.FRAME_HEADER);
+                    if (payload < 0) {
+                        payload = length;
+                        System.arraycopy(data, 0, frame, FileRelay.FRAME_HEADER, length);
+                    }
+                    putInt(frame, 0, payload);
+                    frameEnd = FileRelay.FRAME_HEADER + payload + FileRelay.CHUNK_TRAILER;
+                } else {
+                    frameEnd = length + FileRelay.CHUNK_TRAILER;
+                }
+                putInt(frame, frameEnd - FileRelay.CHUNK_TRAILER, value);
+
+                long started = System.nanoTime();
+                for (int pos = skip; pos < frameEnd; ) {
+                    int n = Math.min(slice.size(), frameEnd - pos);
+                    pacer.acquire(n);
+                    out.write(frame, pos, n);
+                    pos += n;
+                }
+                long sending = System.nanoTime() - started;
+                slice.record(frameEnd - skip, sending);
+                bytesOnWire.addAndGet(frameEnd - skip);
+                sendNanos.addAndGet(sending);
+                skip = 0;
+                chunk++;
+
+                rangeProgress.addAndGet(index, length);
+                long sent = bytesSent();
+                notifyProgress((int) ((sent * 100) / fileSize), sent, fileSize);
+            }
+            return true;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
             }
+            closeStreams(relay);
+            relaySockets.remove(relay);
+        }
+    }
 
-            return sb.toString();
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error calculating checksum: " + e.getMessage());
-            return null;
+    private long bytesSent() {
+        AtomicLongArray progress = rangeProgress;
+        long sent = 0;
+        for (int i = 0; progress != null && i < progress.length(); i++) {
+            sent += progress.get(i);
+        }
+        return sent;
+    }
+
+    private static void readFully(FileChannel in, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (in.read(target, position + target.position()) < 0) {
+                throw new EOFException("File shrank while it was being sent");
+            }
         }
     }
 
@@ -232,12 +462,14 @@ public class FileSender {
                 Message cancelMsg = new Message(
                         MessageType.FILE_ERROR,
                         senderUsername,
+                        currentReceiver,
                         "File transfer cancelled");
-                messageOut.println(cancelMsg.toProtocolString());
-                messageOut.flush();
+                cancelMsg.setFileId(currentFileId);
+                io.write(cancelMsg);
             } catch (Exception e) {
                 System.err.println("Error sending cancellation: " + e.getMessage());
             }
+            closeStreams(relaySockets.toArray(new Closeable[0]));
         }
     }
 
@@ -248,7 +480,7 @@ public class FileSender {
     public int getProgress() {
         if (fileSize == 0)
             return 0;
-        return (int) ((totalBytesSent * 100) / fileSize);
+        return (int) ((bytesSent() * 100) / fileSize);
     }
 
     private String generateFileId() {
@@ -306,8 +538,12 @@ public class FileSender {
                 JOptionPane.ERROR_MESSAGE);
     }
 
+    /**
+     * Abort any relay upload; the chat connection stays open
+     */
     public void close() {
-        closeStreams(dataOut, messageOut, socket);
+        transferInProgress = false;
+        closeStreams(relaySockets.toArray(new Closeable[0]));
     }
 
     public static void testFileReading() {
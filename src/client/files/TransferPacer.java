@@ -0,0 +1,77 @@
+package client.files;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the writes of a relay upload.
+ *
+ * Each stream writes its frames in slices sized from the throughput it has
+ * observed: about SLICE_MILLIS worth of bytes, between MIN_SLICE and
+ * MAX_SLICE. A fast link gets few large writes; a slow or rate-limited one
+ * gets smaller writes that keep progress and cancellation responsive. The
+ * socket itself blocks when the link is full, so nothing sleeps unless a rate
+ * limit is set. All streams of a transfer then draw from one token bucket,
+ * so the limit holds for the transfer as a whole.
+ */
+public class TransferPacer {
+    public static final int MIN_SLICE = 64 * 1024;
+    public static final int MAX_SLICE = 1024 * 1024;
+    private static final long SLICE_MILLIS = 10;
+
+    private final long bytesPerSecond;
+
+    // Guarded by this; may go negative, which is a debt the next writers wait off
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond rate limit for the whole transfer, or 0 for none
+     */
+    public TransferPacer(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Wait until the rate limit allows writing the given number of bytes
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        if (bytesPerSecond == 0) return;
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double burst = Math.max(MIN_SLICE, bytesPerSecond / 10.0);
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+            lastRefillNanos = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Write size of one upload stream, tuned from its own throughput
+     */
+    public static final class Slice {
+        private int size = MIN_SLICE;
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Account for bytes the stream took the given time to write
+         */
+        public void record(long bytes, long nanos) {
+            if (bytes <= 0 || nanos <= 0) return;
+            double target = bytes * 1e9 / nanos * SLICE_MILLIS / 1000.0;
+            int next = MIN_SLICE;
+            while (next < target && next < MAX_SLICE) {
+                next <<= 1;
+            }
+            size = next;
+        }
+    }
+}
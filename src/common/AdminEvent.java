@@ -0,0 +1,214 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One change pushed to admin consoles in an ADMIN_EVENTS message.
+ *
+ * The server sends events in batches, one event per line of the content:
+ * the kind, then its fields, separated by tabs and escaped like HistoryPage
+ * records. STATS carries only the values that changed, as name=value fields.
+ * SKIPPED means message events were dropped because the console fell behind;
+ * it should reload the newest history page. The browser admin gets the same
+ * batch as JSON (toJson).
+ */
+public final class AdminEvent {
+    public static final String USER_JOINED = "USER_JOINED";
+    public static final String USER_LEFT = "USER_LEFT";
+    public static final String MESSAGE = "MESSAGE";
+    public static final String TRANSFER_STARTED = "TRANSFER_STARTED";
+    public static final String TRANSFER_FINISHED = "TRANSFER_FINISHED";
+    public static final String STATS = "STATS";
+    public static final String SKIPPED = "SKIPPED";
+
+    // Field names per kind, used for the JSON form
+    private static final Map<String, String[]> FIELDS = new HashMap<>();
+
+    static {
+        FIELDS.put(USER_JOINED, new String[] { "username", "address" });
+        FIELDS.put(USER_LEFT, new String[] { "username" });
+        FIELDS.put(MESSAGE, new String[] { "sequence", "timestamp", "type", "sender", "receiver", "content" });
+        FIELDS.put(TRANSFER_STARTED, new String[] { "id", "direction", "file", "bytes" });
+        FIELDS.put(TRANSFER_FINISHED, new String[] { "id", "direction", "file", "bytes" });
+        FIELDS.put(SKIPPED, new String[] { "count" });
+    }
+
+    private final String kind;
+    private final String[] fields;
+
+    private AdminEvent(String kind, String... fields) {
+        this.kind = kind;
+        this.fields = fields;
+    }
+
+    public static AdminEvent userJoined(String username, String address) {
+        return new AdminEvent(USER_JOINED, username, address);
+    }
+
+    public static AdminEvent userLeft(String username) {
+        return new AdminEvent(USER_LEFT, username);
+    }
+
+    public static AdminEvent message(long sequence, Message m) {
+        return new AdminEvent(MESSAGE, String.valueOf(sequence), m.getTimestamp(), m.getType(),
+            m.getSender(), m.getReceiver(), m.getContent());
+    }
+
+    public static AdminEvent transferStarted(String id, String direction, String file, long bytes) {
+        return new AdminEvent(TRANSFER_STARTED, id, direction, file, String.valueOf(bytes));
+    }
+
+    public static AdminEvent transferFinished(String id, String direction, String file, long bytes) {
+        return new AdminEvent(TRANSFER_FINISHED, id, direction, file, String.valueOf(bytes));
+    }
+
+    public static AdminEvent stats(Map<String, Long> changed) {
+        String[] pairs = new String[changed.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : changed.entrySet()) {
+            pairs[i++] = entry.getKey() + "=" + entry.getValue();
+        }
+        return new AdminEvent(STATS, pairs);
+    }
+
+    public static AdminEvent skipped(long count) {
+        return new AdminEvent(SKIPPED, String.valueOf(count));
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * A field by position, or null if the event has fewer fields
+     */
+    public String getField(int index) {
+        return index < fields.length ? fields[index] : null;
+    }
+
+    /**
+     * The user or transfer the event is about; events with the same kind
+     * family and key replace each other when batches are coalesced
+     */
+    public String getKey() {
+        return fields.length > 0 ? fields[0] : "";
+    }
+
+    /**
+     * The history record of a MESSAGE event
+     */
+    public HistoryPage.Record toRecord() {
+        String receiver = getField(4);
+        Message message = new Message(getField(2), getField(3),
+            receiver == null || receiver.isEmpty() ? null : receiver, getField(5));
+        message.setTimestamp(getField(1));
+        return new HistoryPage.Record(Long.parseLong(getField(0)), message);
+    }
+
+    /**
+     * The values of a STATS event, in the order they were sent
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        for (String pair : fields) {
+            int split = pair.lastIndexOf('=');
+            if (split <= 0) continue;
+            try {
+                stats.put(pair.substring(0, split), Long.parseLong(pair.substring(split + 1)));
+            } catch (NumberFormatException e) {
+                // skip the malformed value
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Encode a batch as one or more contents of at most maxBytes of UTF-8 each,
+     * so that a large batch goes out as several ADMIN_EVENTS messages. An event
+     * that is larger on its own gets a content of its own.
+     */
+    public static List<String> encode(List<AdminEvent> events, int maxBytes) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int bytes = 0;
+        for (AdminEvent event : events) {
+            String line = encode(Collections.singletonList(event));
+            int lineBytes = MessageCodec.utf8Length(line) + 1;
+            if (sb.length() > 0 && bytes + lineBytes > maxBytes) {
+                parts.add(sb.toString());
+                sb.setLength(0);
+                bytes = 0;
+            }
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(line);
+            bytes += lineBytes;
+        }
+        if (sb.length() > 0 || parts.isEmpty()) {
+            parts.add(sb.toString());
+        }
+        return parts;
+    }
+
+    public static String encode(List<AdminEvent> events) {
+        StringBuilder sb = new StringBuilder(events.size() * 64);
+        for (AdminEvent event : events) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(event.kind);
+            for (String field : event.fields) {
+                HistoryPage.appendField(sb, field);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static List<AdminEvent> decode(String text) {
+        List<AdminEvent> events = new ArrayList<>();
+        if (text == null || text.isEmpty()) return events;
+
+        for (String line : text.split("\n")) {
+            String[] parts = line.split("\t", -1);
+            String[] fields = new String[parts.length - 1];
+            for (int i = 1; i < parts.length; i++) {
+                fields[i - 1] = HistoryPage.unescape(parts[i]);
+            }
+            events.add(new AdminEvent(parts[0], fields));
+        }
+        return events;
+    }
+
+    /**
+     * {"type":"ADMIN_EVENTS","events":[{"kind":"USER_JOINED","username":"...","address":"..."},
+     *  {"kind":"STATS","stats":{"Active Users":3}}]}
+     */
+    public static String toJson(List<AdminEvent> events) {
+        StringBuilder sb = new StringBuilder(64 + events.size() * 96);
+        sb.append("{\"type\":\"").append(MessageType.ADMIN_EVENTS).append("\",\"events\":[");
+        for (int i = 0; i < events.size(); i++) {
+            AdminEvent event = events.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"kind\":\"").append(event.kind).append('"');
+            if (STATS.equals(event.kind)) {
+                sb.append(",\"stats\":{");
+                boolean first = true;
+                for (Map.Entry<String, Long> entry : event.getStats().entrySet()) {
+                    if (!first) sb.append(',');
+                    first = false;
+                    sb.append('"').append(entry.getKey().replace("\"", "\\\"")).append("\":").append(entry.getValue());
+                }
+                sb.append('}');
+            } else {
+                String[] names = FIELDS.get(event.kind);
+                for (int f = 0; names != null && f < names.length; f++) {
+                    HistoryPage.appendJson(sb, names[f], event.getField(f));
+                }
+            }
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+}
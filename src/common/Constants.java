@@ -13,6 +13,18 @@ public class Constants {
     public static final int MAX_CLIENTS = 50;
     public static final int SERVER_BACKLOG = 10;
     public static final int FILE_TRANSFER_PORT = 5001;
+    public static final String DEFAULT_SERVER_MODE = "thread"; // "thread" or "nio"
+    public static final int NIO_LOOP_THREADS = 2; // selector threads in nio mode
+    public static final int MAX_FRAME_SIZE = 1024 * 1024; // largest accepted wire frame
+    public static final int MAX_PAYLOAD_SIZE = 512 * 1024; // UTF-8 bytes of content per server-built reply (history, pages, events)
+    public static final String DEFAULT_EXECUTOR_MODE = "platform"; // "platform", "virtual" or "pool"
+    public static final int EXECUTOR_POOL_SIZE = 200; // worker threads in "pool" mode
+    public static final int OUTBOUND_QUEUE_CAPACITY = 1024; // queued messages per client
+    public static final String DEFAULT_OVERFLOW_POLICY = "disconnect"; // "drop_oldest", "disconnect" or "block"
+    public static final int OVERFLOW_BLOCK_TIMEOUT = 1000; // ms a sender waits under the "block" policy
+    public static final long SESSION_RESUME_TIMEOUT = 60000; // ms a reconnect token outlives its session
+    public static final long ADMIN_EVENT_INTERVAL = 250; // ms between admin event batches
+    public static final int ADMIN_EVENT_MAX_MESSAGES = 200; // message events held per admin before skipping
 
     // ============ FILE TRANSFER CONFIGURATION ============
     public static final int FILE_BUFFER_SIZE = 8192; // 8KB chunks for file transfer
@@ -22,6 +34,19 @@ public class Constants {
     public static final String FILE_TRANSFER_DIR = "transferred_files/";
     public static final String FILES_DIR = "uploaded_files";
     public static final int FILE_TRANSFER_TIMEOUT = 30000; // 30 seconds
+    public static final String RELAY_SPOOL_DIR = "relay_spool"; // server-side copies of relayed files
+    public static final int RELAY_CHUNK_SIZE = 1024 * 1024; // bytes per transferFrom/transferTo call
+    public static final long RELAY_IDLE_TIMEOUT = 60000; // ms a relayed transfer may stall before it is dropped
+    public static final long RELAY_ACCEPT_TIMEOUT = 600000; // ms a fully spooled file may wait for the receiver to accept
+    public static final int FILE_CHUNK_SIZE = 1024 * 1024; // checksummed unit of a relayed file; a resume loses at most one
+    public static final int FILE_TRANSFER_STREAMS = 4; // parallel relay connections per side of a transfer
+    public static final long FILE_RATE_LIMIT = 0; // bytes per second a file upload may use; 0 for no limit
+    public static final boolean FILE_DIGEST_SHA256 = false; // digest files with SHA-256 as well as CRC32C
+    public static final boolean FILE_COMPRESSION = true; // deflate files that compress well before sending them
+    public static final int FILE_RESUME_ATTEMPTS = 5; // reconnects to the relay before a transfer is given up
+    public static final long FILE_RESUME_DELAY = 1000; // ms between reconnects to the relay
+    public static final int HTTP_FILE_WORKERS = 256; // concurrent uploads and downloads on the HTTP file server
+    public static final int HTTP_FILE_BUFFER_SIZE = 128 * 1024; // per-worker copy buffer of the HTTP file server
 
     // ============ MESSAGE PROTOCOL ============
     public static final String MESSAGE_DELIMITER = "|||";
@@ -36,6 +61,17 @@ public class Constants {
     public static final String CHAT_HISTORY_FILE = "logs/chat_history.txt";
     public static final int MAX_CHAT_HISTORY_LINES = 10000;
     public static final int MAX_HISTORY_SIZE = 100;
+    public static final int HISTORY_RING_CAPACITY = 65536; // messages kept in memory
+    public static final int HISTORY_WARM_START = 1000; // messages restored from the chat log on startup
+    public static final int HISTORY_PAGE_SIZE = 50; // default messages per history page
+    public static final int MAX_HISTORY_PAGE_SIZE = 500;
+    public static final int LOG_QUEUE_CAPACITY = 65536; // entries waiting for the log writer
+    public static final long LOG_FLUSH_INTERVAL = 100; // milliseconds between group commits
+    public static final int LOG_SEGMENT_SIZE = 16 * 1024 * 1024; // bytes per mapped log segment
+    public static final long LOG_ROTATE_INTERVAL = 24 * 60; // minutes per log segment
+    public static final int LOG_RETENTION_DAYS = 30; // sealed log segments older than this are deleted
+    public static final long LOG_MAX_BYTES = 1024L * 1024 * 1024; // per log, oldest segments deleted first
+    public static final long LOG_INDEX_CACHE_BYTES = 64L * 1024 * 1024; // posting lists of sealed segments kept in memory, per log
 
     // ============ UI CONFIGURATION ============
     public static final int UI_WIDTH = 800;
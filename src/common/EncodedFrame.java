@@ -0,0 +1,127 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * A message together with its wire encodings, so a broadcast is encoded
+ * once and the same bytes are handed to every recipient.
+ *
+ * Each encoding is computed the first time a recipient needs it and then
+ * reused; the returned arrays must not be modified.
+ *   binary()     - a MessageCodec frame
+ *   serialized() - Java serialization of the message, preceded by TC_RESET so
+ *                  it can be spliced into any client's object stream
+ *   json()       - the JSON shape used by the browser WebSocket clients
+ */
+public final class EncodedFrame {
+    private static final byte TC_RESET = 0x79;
+
+    private final Message message;
+    private volatile byte[] binary;
+    private volatile byte[] serialized;
+    private volatile String json;
+
+    private EncodedFrame(Message message) {
+        this.message = message;
+    }
+
+    public static EncodedFrame of(Message message) {
+        return new EncodedFrame(message);
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public byte[] binary() {
+        byte[] result = binary;
+        if (result == null) {
+            synchronized (this) {
+                result = binary;
+                if (result == null) {
+                    result = MessageCodec.encodeFrame(message);
+                    binary = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public byte[] serialized() {
+        byte[] result = serialized;
+        if (result == null) {
+            synchronized (this) {
+                result = serialized;
+                if (result == null) {
+                    result = serialize(message);
+                    serialized = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public String json() {
+        String result = json;
+        if (result == null) {
+            synchronized (this) {
+                result = json;
+                if (result == null) {
+                    result = toJson(message);
+                    json = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serialize on a scratch stream and drop its header. The leading TC_RESET
+     * clears the receiver's handle table, so the bytes do not depend on what
+     * was written to the target stream before.
+     */
+    private static byte[] serialize(Message message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.flush();
+            int headerLength = bytes.size();
+            out.writeObject(message);
+            out.flush();
+
+            byte[] stream = bytes.toByteArray();
+            byte[] frame = new byte[stream.length - headerLength + 1];
+            frame[0] = TC_RESET;
+            System.arraycopy(stream, headerLength, frame, 1, stream.length - headerLength);
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot serialize message", e);
+        }
+    }
+
+    // {"type":"BROADCAST","sender":"alice","content":"Hello","targetUser":"bob"}
+    private static String toJson(Message m) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append('{');
+        sb.append("\"type\":\"").append(m.getType()).append('\"');
+        sb.append(',');
+        sb.append("\"sender\":\"").append(escape(m.getSender())).append('\"');
+        sb.append(',');
+        sb.append("\"content\":\"").append(escape(m.getContent())).append('\"');
+        if (m.getTargetUser() != null) {
+            sb.append(',');
+            sb.append("\"targetUser\":\"").append(escape(m.getTargetUser())).append('\"');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        if (s == null)
+            return "";
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,135 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * End-to-end digest of a relayed file, built from per-chunk digests.
+ *
+ * Chunks travel over several streams, arrive out of order and may be resumed
+ * from disk, so no single running digest sees the file front to back.
+ * Instead both sides digest each chunk as it passes through their send or
+ * receive loop: the CRC32C that also goes into the frame trailer and,
+ * optionally, SHA-256. The file digest is then taken over the chunk digests in
+ * chunk order. The file is read from disk once on each side.
+ *
+ * The sender announces SHA-256 with a "digest=sha256" line in the
+ * FILE_METADATA content and reports the result as "crc32c=HEX" and
+ * "sha256=HEX" lines in the FILE_COMPLETE content. The receiver compares
+ * these before it keeps the file.
+ */
+public final class FileDigest {
+    public static final String CRC32C = "crc32c";
+    public static final String SHA256 = "sha256";
+    public static final String OPTION = "digest";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int[] crcs;
+    private final byte[][] sha256; // null when SHA-256 is off
+
+    public FileDigest(long fileSize, boolean withSha256) {
+        int chunks = (int) ((fileSize + Constants.FILE_CHUNK_SIZE - 1) / Constants.FILE_CHUNK_SIZE);
+        this.crcs = new int[chunks];
+        this.sha256 = withSha256 ? new byte[chunks][] : null;
+    }
+
+    public boolean hasSha256() {
+        return sha256 != null;
+    }
+
+    /**
+     * Digest one chunk. Chunks may be digested from several threads, each chunk once.
+     *
+     * @return the chunk's CRC32C
+     */
+    public int update(long chunk, byte[] data, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        crcs[(int) chunk] = (int) crc.getValue();
+        if (sha256 != null) {
+            MessageDigest md = newSha256();
+            md.update(data, 0, length);
+            sha256[(int) chunk] = md.digest();
+        }
+        return crcs[(int) chunk];
+    }
+
+    /**
+     * Digest over all chunk CRC32Cs, as 8 hex digits
+     */
+    public String crc32c() {
+        ByteBuffer all = ByteBuffer.allocate(crcs.length * 4);
+        for (int crc : crcs) {
+            all.putInt(crc);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(all.array(), 0, all.capacity());
+        return String.format("%08x", (int) crc.getValue());
+    }
+
+    /**
+     * Digest over all chunk SHA-256s, or null when SHA-256 is off
+     */
+    public String sha256() {
+        if (sha256 == null) return null;
+        MessageDigest md = newSha256();
+        for (byte[] chunk : sha256) {
+            md.update(chunk);
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * The "key=value" lines reported in FILE_COMPLETE
+     */
+    public String toContentLines() {
+        return CRC32C + "=" + crc32c() + (sha256 != null ? "\n" + SHA256 + "=" + sha256() : "");
+    }
+
+    /**
+     * Compare with the lines a sender reported. SHA-256 is compared when both sides computed it.
+     *
+     * @return null if the digests match, otherwise what did not
+     */
+    public String mismatch(String reportedContent) {
+        String crc = field(reportedContent, CRC32C);
+        if (crc == null) return "no CRC32C reported";
+        if (!crc.equals(crc32c())) return "CRC32C differs";
+        String sha = field(reportedContent, SHA256);
+        if (sha != null && sha256 != null && !sha.equals(sha256())) return "SHA-256 differs";
+        return null;
+    }
+
+    /**
+     * Value of a "key=value" line in message content, or null
+     */
+    public static String field(String content, String key) {
+        if (content == null) return null;
+        for (String line : content.split("\n")) {
+            if (line.startsWith(key + "=")) {
+                return line.substring(key.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
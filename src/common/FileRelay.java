@@ -0,0 +1,156 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header lines of the file relay on FILE_TRANSFER_PORT.
+ *
+ * File bytes never travel on the chat socket. The sender offers a file with
+ * FILE_METADATA as usual and then opens a second connection to the relay:
+ *
+ *   SEND  fileId  username  token  [first  end]   ->   OK  offset   (then the sender streams from offset to end)
+ *   RECV  fileId  username  token  [offset  end]  ->   OK  size     (then the relay streams from offset to end)
+ *
+ * Without a range a connection carries the whole file. With one, each side
+ * may open several connections for disjoint ranges (see stripes) and move
+ * them in parallel; a sender's ranges must start and end on frame
+ * boundaries, and "OK offset" says how far into its range the relay already
+ * has the bytes.
+ *
+ * Fields are separated by tabs; the token is the reconnect token from the
+ * LOGIN reply, so only the two users named in the offer can use the transfer.
+ * A refused request gets "ERR reason" and the connection is closed.
+ *
+ * The stream is the file cut into FILE_CHUNK_SIZE chunks, each followed by
+ * its CRC32C (4 bytes, big-endian); the last chunk may be shorter. Offsets
+ * and sizes above count these framed bytes. Both ends can therefore resume
+ * after a dropped connection: the sender continues from the offset the relay
+ * reports, and the receiver asks for the frame after its last verified chunk.
+ *
+ * An offer with a "compression=deflate" line in its content is relayed in
+ * slots instead: one per chunk, each FILE_CHUNK_SIZE + 8 bytes long and
+ * holding a frame of a 4-byte big-endian payload length, the payload and the
+ * CRC32C of the original chunk. The payload is the deflated chunk, or the
+ * chunk itself when deflating does not make it shorter. Offsets and sizes
+ * count slots, so ranges and resume work as for plain transfers, but only the
+ * frames travel: the relay skips the unused end of each slot. Ranges of such
+ * transfers start and end on slot boundaries in both directions, and "OK
+ * offset" is always one.
+ */
+public final class FileRelay {
+    public static final String SEND = "SEND";
+    public static final String RECV = "RECV";
+    public static final String OK = "OK";
+    public static final String ERR = "ERR";
+
+    public static final String COMPRESSION = "compression";
+    public static final String DEFLATE = "deflate";
+
+    public static final int CHUNK_TRAILER = 4;
+    public static final int FRAME_HEADER = 4;
+
+    private static final int MAX_LINE = 1024;
+
+    private FileRelay() {
+        throw new UnsupportedOperationException("Cannot instantiate FileRelay class");
+    }
+
+    public static void writeLine(OutputStream out, String... fields) throws IOException {
+        out.write((String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Read one header line, byte by byte so no file data behind it is consumed
+     *
+     * @return the tab-separated fields
+     */
+    public static String[] readLine(InputStream in) throws IOException {
+        byte[] line = new byte[MAX_LINE];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new IOException("Relay connection closed");
+            if (length == line.length) throw new IOException("Relay header too long");
+            line[length++] = (byte) b;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8).split("\t", -1);
+    }
+
+    /**
+     * Whether an offer's content asks for the compressed slot layout
+     */
+    public static boolean isDeflated(String content) {
+        return DEFLATE.equals(FileDigest.field(content, COMPRESSION));
+    }
+
+    /**
+     * Distance between the starts of two frames on the relay
+     */
+    public static int slotLength(boolean deflated) {
+        return Constants.FILE_CHUNK_SIZE + CHUNK_TRAILER + (deflated ? FRAME_HEADER : 0);
+    }
+
+    /**
+     * Length of a file of the given size on the relay, checksums included
+     */
+    public static long wireLength(long fileSize) {
+        return wireLength(fileSize, false);
+    }
+
+    /**
+     * Length of a file of the given size on the relay; for the slot layout, with every slot full
+     */
+    public static long wireLength(long fileSize, boolean deflated) {
+        long chunks = (fileSize + Constants.FILE_CHUNK_SIZE - 1) / Constants.FILE_CHUNK_SIZE;
+        return deflated ? chunks * slotLength(true) : fileSize + chunks * CHUNK_TRAILER;
+    }
+
+    /**
+     * Relay offset where a chunk's frame starts
+     */
+    public static long frameOffset(long chunk) {
+        return frameOffset(chunk, false);
+    }
+
+    public static long frameOffset(long chunk, boolean deflated) {
+        return chunk * slotLength(deflated);
+    }
+
+    /**
+     * Split a file into frame-aligned relay ranges, one per stream
+     *
+     * @return {first, end} per range; fewer than requested when the file has fewer chunks
+     */
+    public static long[][] stripes(long fileSize, int streams) {
+        return stripes(fileSize, streams, false);
+    }
+
+    public static long[][] stripes(long fileSize, int streams, boolean deflated) {
+        long chunks = (fileSize + Constants.FILE_CHUNK_SIZE - 1) / Constants.FILE_CHUNK_SIZE;
+        int count = (int) Math.max(1, Math.min(streams, chunks));
+        long[][] ranges = new long[count][];
+        for (int i = 0; i < count; i++) {
+            long firstChunk = chunks * i / count;
+            long endChunk = chunks * (i + 1) / count;
+            ranges[i] = new long[] { frameOffset(firstChunk, deflated),
+                    Math.min(frameOffset(endChunk, deflated), wireLength(fileSize, deflated)) };
+        }
+        return ranges;
+    }
+
+    /**
+     * Whether a file ID is safe to use as a spool file name
+     */
+    public static boolean isValidFileId(String fileId) {
+        if (fileId == null || fileId.isEmpty() || fileId.length() > 64) return false;
+        for (int i = 0; i < fileId.length(); i++) {
+            char c = fileId.charAt(i);
+            if (!(Character.isLetterOrDigit(c) && c < 128) && c != '-' && c != '_') return false;
+        }
+        return true;
+    }
+}
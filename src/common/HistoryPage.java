@@ -0,0 +1,322 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of chat history, the answer to GET_HISTORY_PAGE.
+ *
+ * Every history message has a sequence number. A page holds matching
+ * messages oldest first, plus the cursors for the neighbouring pages: ask
+ * for "older" than olderCursor or "newer" than newerCursor. Pages travel as
+ * text in the message content so every transport carries them:
+ *
+ *   PAGE    olderCursor  newerCursor  hasOlder  hasNewer
+ *   sequence  timestamp  type  sender  receiver  content     (one line per record)
+ *
+ * Fields are separated by tabs; tab, newline, carriage return and backslash
+ * are escaped with a backslash. The browser admin gets the same page as
+ * JSON (toJson). A page stops early, with its cursor on the last record it
+ * holds, once its records reach Constants.MAX_PAYLOAD_SIZE.
+ */
+public final class HistoryPage {
+    public static final String OLDER = "older";
+    public static final String NEWER = "newer";
+    private static final String HEADER = "PAGE";
+
+    /**
+     * A history message and its sequence number
+     */
+    public static final class Record {
+        private final long sequence;
+        private final Message message;
+
+        public Record(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Parameters of GET_HISTORY_PAGE, sent as key=value lines
+     */
+    public static final class Query {
+        private long cursor = -1; // -1 = start from the newest message
+        private int limit = Constants.HISTORY_PAGE_SIZE;
+        private String direction = OLDER;
+        private String sender;
+        private String type;
+
+        public static Query newest(int limit) {
+            Query query = new Query();
+            query.limit = limit;
+            return query;
+        }
+
+        public Query older(long cursor) {
+            this.cursor = cursor;
+            this.direction = OLDER;
+            return this;
+        }
+
+        public Query newer(long cursor) {
+            this.cursor = cursor;
+            this.direction = NEWER;
+            return this;
+        }
+
+        public Query sender(String sender) {
+            this.sender = sender;
+            return this;
+        }
+
+        public Query type(String type) {
+            this.type = type;
+            return this;
+        }
+
+        public long getCursor() {
+            return cursor;
+        }
+
+        public int getLimit() {
+            return Math.max(1, Math.min(limit, Constants.MAX_HISTORY_PAGE_SIZE));
+        }
+
+        public boolean isOlder() {
+            return !NEWER.equals(direction);
+        }
+
+        /**
+         * Whether a message passes the sender and type filters
+         */
+        public boolean matches(Message message) {
+            return (sender == null || sender.equals(message.getSender()))
+                && (type == null || type.equals(message.getType()));
+        }
+
+        public String encode() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("cursor=").append(cursor).append('\n');
+            sb.append("limit=").append(limit).append('\n');
+            sb.append("direction=").append(direction).append('\n');
+            if (sender != null) sb.append("sender=").append(sender).append('\n');
+            if (type != null) sb.append("type=").append(type).append('\n');
+            return sb.toString();
+        }
+
+        /**
+         * Read a query; missing or invalid values keep their defaults
+         */
+        public static Query parse(String text) {
+            Query query = new Query();
+            if (text == null) return query;
+
+            for (String line : text.split("\n")) {
+                int split = line.indexOf('=');
+                if (split <= 0) continue;
+                String key = line.substring(0, split).trim();
+                String value = line.substring(split + 1).trim();
+                if (value.isEmpty()) continue;
+                try {
+                    switch (key) {
+                        case "cursor":
+                            query.cursor = Long.parseLong(value);
+                            break;
+                        case "limit":
+                            query.limit = Integer.parseInt(value);
+                            break;
+                        case "direction":
+                            query.direction = NEWER.equalsIgnoreCase(value) ? NEWER : OLDER;
+                            break;
+                        case "sender":
+                            query.sender = value;
+                            break;
+                        case "type":
+                            query.type = value;
+                            break;
+                    }
+                } catch (NumberFormatException e) {
+                    // keep the default
+                }
+            }
+            return query;
+        }
+    }
+
+    private final List<Record> records;
+    private final long olderCursor;
+    private final long newerCursor;
+    private final boolean hasOlder;
+    private final boolean hasNewer;
+
+    public HistoryPage(List<Record> records, long olderCursor, long newerCursor, boolean hasOlder, boolean hasNewer) {
+        this.records = Collections.unmodifiableList(records);
+        this.olderCursor = olderCursor;
+        this.newerCursor = newerCursor;
+        this.hasOlder = hasOlder;
+        this.hasNewer = hasNewer;
+    }
+
+    public List<Record> getRecords() {
+        return records;
+    }
+
+    public long getOlderCursor() {
+        return olderCursor;
+    }
+
+    public long getNewerCursor() {
+        return newerCursor;
+    }
+
+    public boolean hasOlder() {
+        return hasOlder;
+    }
+
+    public boolean hasNewer() {
+        return hasNewer;
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder(64 + records.size() * 96);
+        sb.append(HEADER).append('\t').append(olderCursor).append('\t').append(newerCursor)
+          .append('\t').append(hasOlder).append('\t').append(hasNewer);
+        for (Record record : records) {
+            appendRecord(sb, record.sequence, record.message);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * UTF-8 bytes a record adds to encode(), so pages can be cut to fit in a frame
+     */
+    public static int encodedLength(long sequence, Message message) {
+        StringBuilder sb = new StringBuilder(96);
+        appendRecord(sb, sequence, message);
+        return MessageCodec.utf8Length(sb);
+    }
+
+    private static void appendRecord(StringBuilder sb, long sequence, Message m) {
+        sb.append('\n').append(sequence);
+        appendField(sb, m.getTimestamp());
+        appendField(sb, m.getType());
+        appendField(sb, m.getSender());
+        appendField(sb, m.getReceiver());
+        appendField(sb, m.getContent());
+    }
+
+    public static HistoryPage decode(String text) {
+        String[] lines = text.split("\n");
+        String[] header = lines[0].split("\t");
+        if (header.length < 5 || !HEADER.equals(header[0])) {
+            throw new IllegalArgumentException("Not a history page");
+        }
+
+        List<Record> records = new ArrayList<>(lines.length - 1);
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t", -1);
+            if (fields.length < 6) continue;
+            String receiver = unescape(fields[4]);
+            Message message = new Message(unescape(fields[2]), unescape(fields[3]),
+                receiver.isEmpty() ? null : receiver, unescape(fields[5]));
+            message.setTimestamp(unescape(fields[1]));
+            records.add(new Record(Long.parseLong(fields[0]), message));
+        }
+        return new HistoryPage(records, Long.parseLong(header[1]), Long.parseLong(header[2]),
+            Boolean.parseBoolean(header[3]), Boolean.parseBoolean(header[4]));
+    }
+
+    /**
+     * {"type":"HISTORY_PAGE_DATA","olderCursor":0,"newerCursor":9,"hasOlder":false,"hasNewer":false,
+     *  "records":[{"sequence":0,"timestamp":"...","type":"...","sender":"...","receiver":null,"content":"..."}]}
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(128 + records.size() * 128);
+        sb.append("{\"type\":\"").append(MessageType.HISTORY_PAGE_DATA).append('"');
+        sb.append(",\"olderCursor\":").append(olderCursor);
+        sb.append(",\"newerCursor\":").append(newerCursor);
+        sb.append(",\"hasOlder\":").append(hasOlder);
+        sb.append(",\"hasNewer\":").append(hasNewer);
+        sb.append(",\"records\":[");
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            Message m = record.message;
+            if (i > 0) sb.append(',');
+            sb.append("{\"sequence\":").append(record.sequence);
+            appendJson(sb, "timestamp", m.getTimestamp());
+            appendJson(sb, "type", m.getType());
+            appendJson(sb, "sender", m.getSender());
+            appendJson(sb, "receiver", m.getReceiver());
+            appendJson(sb, "content", m.getContent());
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    static void appendJson(StringBuilder sb, String name, String value) {
+        sb.append(",\"").append(name).append("\":");
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    static void appendField(StringBuilder sb, String value) {
+        sb.append('\t');
+        if (value == null) return;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\\': sb.append("\\\\"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -29,6 +29,12 @@ public class Message implements Serializable {
     // Additional data field for extensibility
     private Object data; // For additional data like file info or custom payloads
 
+    /**
+     * Empty message filled in field by field by MessageCodec
+     */
+    Message() {
+    }
+
     /**
      * Constructor for basic text messages
      */
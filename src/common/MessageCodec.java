@@ -0,0 +1,287 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of Message used instead of Java serialization.
+ *
+ * Frame:  VARINT bodyLength | body
+ * Body:   OPCODE (1 byte, 0 = type follows as string) | FLAGS (1 byte)
+ *         [type] [sender] [receiver] [content] [timestamp] [filename] [fileId] [fileSize]
+ * Strings are VARINT length + UTF-8 bytes and are only present when their
+ * FLAGS bit is set; fileSize is a VARLONG. The free-form data field is not
+ * carried on the wire.
+ *
+ * A connection opts into this format by sending MAGIC as its first bytes.
+ */
+public final class MessageCodec {
+
+    /** Sent by binary clients before the first frame and echoed by the server */
+    public static final byte[] MAGIC = { 'E', 'C', 'B', 1 };
+
+    // Opcodes are the index + 1 in this table: append new types, never reorder
+    private static final String[] TYPES = {
+        MessageType.LOGIN, MessageType.LOGOUT, MessageType.PUBLIC_MESSAGE, MessageType.PRIVATE_MESSAGE,
+        MessageType.FILE_TRANSFER, MessageType.ADMIN_LOGIN, MessageType.GET_CONNECTED_CLIENTS,
+        MessageType.GET_CHAT_HISTORY, MessageType.GET_SYSTEM_STATS, MessageType.KICK_USER,
+        MessageType.USER_JOINED, MessageType.USER_LEFT, MessageType.MESSAGE_BROADCAST,
+        MessageType.PRIVATE_MESSAGE_RECEIVED, MessageType.FILE_TRANSFER_REQUEST, MessageType.INFO,
+        MessageType.BROADCAST, MessageType.PRIVATE, MessageType.FILE_TRANSFER_ACCEPT,
+        MessageType.FILE_TRANSFER_REJECT, MessageType.FILE_METADATA, MessageType.FILE_COMPLETE,
+        MessageType.FILE_ERROR, MessageType.FILE_PROGRESS, MessageType.FILE_TRANSFER_ERROR,
+        MessageType.FILE_TRANSFER_COMPLETE, MessageType.ADMIN_AUTH_SUCCESS, MessageType.ADMIN_AUTH_FAILED,
+        MessageType.CONNECTED_CLIENTS_LIST, MessageType.CHAT_HISTORY_DATA, MessageType.SYSTEM_STATS_DATA,
+        MessageType.KICK_SUCCESS, MessageType.KICK_FAILED, MessageType.ERROR,
+        MessageType.GET_METRICS, MessageType.METRICS_DATA, MessageType.GET_HISTORY_PAGE,
+        MessageType.HISTORY_PAGE_DATA, MessageType.ADMIN_EVENTS
+    };
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            OPCODES.put(TYPES[i], i + 1);
+        }
+    }
+
+    private static final int HAS_SENDER = 1;
+    private static final int HAS_RECEIVER = 1 << 1;
+    private static final int HAS_CONTENT = 1 << 2;
+    private static final int HAS_TIMESTAMP = 1 << 3;
+    private static final int HAS_FILENAME = 1 << 4;
+    private static final int HAS_FILE_ID = 1 << 5;
+    private static final int HAS_FILE_SIZE = 1 << 6;
+
+    private MessageCodec() {
+        throw new UnsupportedOperationException("Cannot instantiate MessageCodec class");
+    }
+
+    // ============ ENCODING ============
+
+    /**
+     * Encode a message as a complete frame (length prefix included)
+     *
+     * @throws IllegalArgumentException if the body would exceed MAX_FRAME_SIZE, which readers reject
+     */
+    public static byte[] encodeFrame(Message message) {
+        Integer opcode = OPCODES.get(message.getType());
+        byte[] type = opcode == null ? utf8(message.getType()) : null;
+        byte[] sender = utf8(message.getSender());
+        byte[] receiver = utf8(message.getReceiver());
+        byte[] content = utf8(message.getContent());
+        byte[] timestamp = utf8(message.getTimestamp());
+        byte[] filename = utf8(message.getFilename());
+        byte[] fileId = utf8(message.getFileId());
+        long fileSize = message.getFileSize();
+
+        int flags = 0;
+        int bodyLength = 2 + stringSize(type);
+        if (sender != null) { flags |= HAS_SENDER; bodyLength += stringSize(sender); }
+        if (receiver != null) { flags |= HAS_RECEIVER; bodyLength += stringSize(receiver); }
+        if (content != null) { flags |= HAS_CONTENT; bodyLength += stringSize(content); }
+        if (timestamp != null) { flags |= HAS_TIMESTAMP; bodyLength += stringSize(timestamp); }
+        if (filename != null) { flags |= HAS_FILENAME; bodyLength += stringSize(filename); }
+        if (fileId != null) { flags |= HAS_FILE_ID; bodyLength += stringSize(fileId); }
+        if (fileSize != 0) { flags |= HAS_FILE_SIZE; bodyLength += varLongSize(fileSize); }
+        if (bodyLength > Constants.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException(message.getType() + " frame of " + bodyLength
+                + " bytes exceeds the " + Constants.MAX_FRAME_SIZE + " byte limit");
+        }
+
+        byte[] frame = new byte[varIntSize(bodyLength) + bodyLength];
+        int pos = putVarLong(frame, 0, bodyLength);
+        frame[pos++] = (byte) (opcode == null ? 0 : opcode);
+        frame[pos++] = (byte) flags;
+        if (type != null) pos = putString(frame, pos, type);
+        if (sender != null) pos = putString(frame, pos, sender);
+        if (receiver != null) pos = putString(frame, pos, receiver);
+        if (content != null) pos = putString(frame, pos, content);
+        if (timestamp != null) pos = putString(frame, pos, timestamp);
+        if (filename != null) pos = putString(frame, pos, filename);
+        if (fileId != null) pos = putString(frame, pos, fileId);
+        if (fileSize != 0) putVarLong(frame, pos, fileSize);
+        return frame;
+    }
+
+    /**
+     * Encode and write a single frame
+     */
+    public static void writeFrame(OutputStream out, Message message) throws IOException {
+        out.write(encodeFrame(message));
+    }
+
+    /**
+     * Bytes a string takes in UTF-8, without encoding it
+     */
+    public static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                bytes += Character.isSurrogate(c) ? 1 : 2; // a surrogate pair is 4 bytes in total
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return bytes == null ? 0 : varIntSize(bytes.length) + bytes.length;
+    }
+
+    private static int putString(byte[] target, int pos, byte[] bytes) {
+        pos = putVarLong(target, pos, bytes.length);
+        System.arraycopy(bytes, 0, target, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static int putVarLong(byte[] target, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[pos++] = (byte) value;
+        return pos;
+    }
+
+    public static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // ============ DECODING ============
+
+    /**
+     * Read one frame from a blocking stream
+     *
+     * @throws EOFException if the stream ends before a complete frame
+     */
+    public static Message readFrame(InputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > Constants.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n == -1) throw new EOFException("Stream ended inside a frame");
+            read += n;
+        }
+        return decode(body, 0, length);
+    }
+
+    /**
+     * Decode a frame body (without its length prefix)
+     */
+    public static Message decode(byte[] body, int offset, int length) throws IOException {
+        Reader reader = new Reader(body, offset, offset + length);
+        int opcode = reader.readByte() & 0xFF;
+        int flags = reader.readByte() & 0xFF;
+
+        Message message = new Message();
+        if (opcode == 0) {
+            message.setType(reader.readString());
+        } else if (opcode <= TYPES.length) {
+            message.setType(TYPES[opcode - 1]);
+        } else {
+            throw new IOException("Unknown message opcode: " + opcode);
+        }
+        if ((flags & HAS_SENDER) != 0) message.setSender(reader.readString());
+        if ((flags & HAS_RECEIVER) != 0) message.setReceiver(reader.readString());
+        if ((flags & HAS_CONTENT) != 0) message.setContent(reader.readString());
+        if ((flags & HAS_TIMESTAMP) != 0) message.setTimestamp(reader.readString());
+        if ((flags & HAS_FILENAME) != 0) message.setFilename(reader.readString());
+        if ((flags & HAS_FILE_ID) != 0) message.setFileId(reader.readString());
+        if ((flags & HAS_FILE_SIZE) != 0) message.setFileSize(reader.readVarLong());
+        return message;
+    }
+
+    /**
+     * Read a varint frame length from a buffer without consuming it.
+     * Returns -1 if the buffer does not yet hold the whole varint, otherwise
+     * the length; the size of the prefix itself is varIntSize(length).
+     */
+    public static int peekFrameLength(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        for (int i = buffer.position(); i < buffer.limit() && shift < 35; i++) {
+            byte b = buffer.get(i);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) value;
+            }
+            shift += 7;
+        }
+        return shift >= 35 ? Integer.MAX_VALUE : -1;
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) throw new EOFException();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Cursor over a frame body
+     */
+    private static final class Reader {
+        private final byte[] buf;
+        private final int limit;
+        private int pos;
+
+        Reader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= limit) throw new EOFException("Truncated message");
+            return buf[pos++];
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > limit - pos) throw new EOFException("Truncated string");
+            String value = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Reads and writes Message objects on a socket in one of two wire formats:
+ * the compact MessageCodec frames, or the legacy Java object stream.
+ *
+ * Clients call connect(), which announces the binary format with
+ * MessageCodec.MAGIC. The server calls accept(), which looks at the first
+ * bytes and falls back to object streams for older clients.
+ */
+public abstract class MessageIO implements Closeable {
+
+    /**
+     * Read the next message, blocking until one arrives
+     */
+    public abstract Message read() throws IOException;
+
+    /**
+     * Write and flush a message
+     */
+    public synchronized void write(Message message) throws IOException {
+        send(message);
+        flush();
+    }
+
+    /**
+     * Write a message into the output buffer without flushing it
+     */
+    public void send(Message message) throws IOException {
+        sendFrame(EncodedFrame.of(message));
+    }
+
+    /**
+     * Write an already encoded message without flushing it.
+     * The frame's bytes are shared with other connections.
+     */
+    public abstract void sendFrame(EncodedFrame frame) throws IOException;
+
+    /**
+     * Push buffered messages to the socket
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * True for MessageCodec frames, false for Java serialization
+     */
+    public abstract boolean isBinary();
+
+    // ============ FACTORIES ============
+
+    /**
+     * Client side: open the binary protocol on a freshly connected socket
+     */
+    public static MessageIO connect(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true); // frames are flushed in batches already
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        out.write(MessageCodec.MAGIC);
+        out.flush();
+
+        byte[] reply = new byte[MessageCodec.MAGIC.length];
+        int read = 0;
+        while (read < reply.length) {
+            int n = in.read(reply, read, reply.length - read);
+            if (n == -1) throw new IOException("Server closed the connection during handshake");
+            read += n;
+        }
+        if (!Arrays.equals(reply, MessageCodec.MAGIC)) {
+            throw new IOException("Server does not support the binary protocol");
+        }
+        return new Binary(in, out);
+    }
+
+    /**
+     * Server side: detect the protocol the client speaks.
+     * Binary clients start with MAGIC, object stream clients with 0xACED.
+     */
+    public static MessageIO accept(Socket socket) throws IOException {
+        return accept(socket, new byte[0]);
+    }
+
+    /**
+     * Server side, for a socket whose first bytes have already been read
+     *
+     * @param prefix the bytes read so far, which the detection and the stream start with
+     */
+    public static MessageIO accept(Socket socket, byte[] prefix) throws IOException {
+        socket.setTcpNoDelay(true);
+        InputStream source = prefix.length == 0 ? socket.getInputStream()
+                : new SequenceInputStream(new ByteArrayInputStream(prefix), socket.getInputStream());
+        BufferedInputStream in = new BufferedInputStream(source);
+        in.mark(MessageCodec.MAGIC.length);
+
+        byte[] head = new byte[MessageCodec.MAGIC.length];
+        int read = 0;
+        while (read < head.length) {
+            int n = in.read(head, read, head.length - read);
+            if (n == -1) break;
+            read += n;
+        }
+
+        if (read == head.length && Arrays.equals(head, MessageCodec.MAGIC)) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(MessageCodec.MAGIC);
+            out.flush();
+            return new Binary(in, out);
+        }
+
+        in.reset();
+        BufferedOutputStream raw = new BufferedOutputStream(socket.getOutputStream());
+        ObjectOutputStream out = new ObjectOutputStream(raw);
+        out.flush();
+        return new ObjectStreams(new ObjectInputStream(in), out, raw);
+    }
+
+    // ============ IMPLEMENTATIONS ============
+
+    /**
+     * MessageCodec frames over buffered streams
+     */
+    static final class Binary extends MessageIO {
+        private final InputStream in;
+        private final OutputStream out;
+
+        Binary(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public Message read() throws IOException {
+            return MessageCodec.readFrame(in);
+        }
+
+        @Override
+        public synchronized void sendFrame(EncodedFrame frame) throws IOException {
+            byte[] bytes;
+            try {
+                bytes = frame.binary();
+            } catch (IllegalArgumentException e) {
+                // The peer would drop the connection on a frame this large, so only this message is lost
+                System.err.println("Not sending message: " + e.getMessage());
+                return;
+            }
+            out.write(bytes);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Legacy Java serialization. Outgoing messages are pre-serialized
+     * EncodedFrame bytes written straight to the buffered socket stream;
+     * the ObjectOutputStream itself only ever writes the stream header.
+     */
+    static final class ObjectStreams extends MessageIO {
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+        private final OutputStream raw;
+
+        ObjectStreams(ObjectInputStream in, ObjectOutputStream out, OutputStream raw) {
+            this.in = in;
+            this.out = out;
+            this.raw = raw;
+        }
+
+        @Override
+        public Message read() throws IOException {
+            try {
+                return (Message) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Unexpected object on stream: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public synchronized void sendFrame(EncodedFrame frame) throws IOException {
+            raw.write(frame.serialized());
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            raw.flush();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -14,6 +14,8 @@ public class MessageType {
     public static final String GET_CHAT_HISTORY = "GET_CHAT_HISTORY";
     public static final String GET_SYSTEM_STATS = "GET_SYSTEM_STATS";
     public static final String KICK_USER = "KICK_USER";
+    public static final String GET_METRICS = "GET_METRICS";
+    public static final String GET_HISTORY_PAGE = "GET_HISTORY_PAGE"; // HistoryPage.Query as content
     
     // Server-to-Client message types
     public static final String USER_JOINED = "USER_JOINED";
@@ -43,6 +45,9 @@ public class MessageType {
     public static final String SYSTEM_STATS_DATA = "SYSTEM_STATS_DATA";
     public static final String KICK_SUCCESS = "KICK_SUCCESS";
     public static final String KICK_FAILED = "KICK_FAILED";
+    public static final String METRICS_DATA = "METRICS_DATA"; // name=value lines
+    public static final String HISTORY_PAGE_DATA = "HISTORY_PAGE_DATA"; // HistoryPage as content
+    public static final String ADMIN_EVENTS = "ADMIN_EVENTS"; // batch of AdminEvent lines, pushed by the server
     
     // Error types
     public static final String ERROR = "ERROR";
@@ -0,0 +1,138 @@
+package server;
+
+import common.AdminEvent;
+import common.Constants;
+import common.HistoryPage;
+import common.Message;
+import common.MessageCodec;
+import common.MessageType;
+
+/**
+ * The admin console side of the chat protocol, shared by the blocking
+ * ClientHandler and the NIO sessions: checking the credentials, the state
+ * a console gets when it logs in, and the commands it can send afterwards.
+ * Replies go through the connection's own sendMessage, so they are queued
+ * like any other message to that connection.
+ */
+final class AdminCommands {
+
+    private AdminCommands() {
+        throw new UnsupportedOperationException("Cannot instantiate AdminCommands class");
+    }
+
+    /**
+     * Check the "user:password" content of an ADMIN_LOGIN message
+     */
+    static boolean authenticate(Message loginMessage) {
+        String[] credentials = loginMessage.getContent() == null ? new String[0] : loginMessage.getContent().split(":");
+        return credentials.length == 2
+                && Constants.ADMIN_USERNAME.equals(credentials[0])
+                && Constants.ADMIN_PASSWORD.equals(credentials[1]);
+    }
+
+    /**
+     * Confirm the login, send the current state and subscribe the console to pushed events
+     *
+     * @return the subscription to pass to AdminEventBus.unsubscribe on disconnect
+     */
+    static AdminEventBus.Subscription open(ClientConnection admin) {
+        admin.sendMessage(new Message(MessageType.ADMIN_AUTH_SUCCESS, "SERVER", "Admin authentication successful"));
+
+        sendConnectedClientsList(admin);
+        sendChatHistory(admin);
+        sendSystemStats(admin);
+
+        // From here on changes are pushed instead of polled
+        return AdminEventBus.subscribe(admin.getUsername() + "@" + admin.getClientAddress(),
+                batch -> {
+                    for (String part : AdminEvent.encode(batch, Constants.MAX_PAYLOAD_SIZE)) {
+                        admin.sendMessage(new Message(MessageType.ADMIN_EVENTS, "SERVER", part));
+                    }
+                },
+                Server::getAdminSnapshot);
+    }
+
+    /**
+     * Answer one command from a logged-in console
+     *
+     * @return false when the console logged out
+     */
+    static boolean handle(ClientConnection admin, Message message) {
+        switch (message.getType()) {
+            case MessageType.GET_CONNECTED_CLIENTS:
+                sendConnectedClientsList(admin);
+                break;
+
+            case MessageType.GET_CHAT_HISTORY:
+                sendChatHistory(admin);
+                break;
+
+            case MessageType.GET_SYSTEM_STATS:
+                sendSystemStats(admin);
+                break;
+
+            case MessageType.GET_HISTORY_PAGE:
+                HistoryPage page = Server.getChatHistoryPage(HistoryPage.Query.parse(message.getContent()));
+                admin.sendMessage(new Message(MessageType.HISTORY_PAGE_DATA, "SERVER", page.encode()));
+                break;
+
+            case MessageType.GET_METRICS:
+                admin.sendMessage(new Message(MessageType.METRICS_DATA, "SERVER", MetricsRegistry.formatSnapshot()));
+                break;
+
+            case MessageType.KICK_USER:
+                handleKickUser(admin, message.getContent());
+                break;
+
+            case MessageType.LOGOUT:
+                return false;
+
+            default:
+                admin.sendMessage(new Message(MessageType.ERROR, "SERVER", "Unknown command"));
+        }
+        return true;
+    }
+
+    private static void sendConnectedClientsList(ClientConnection admin) {
+        String clientList = String.join("\n", Server.getConnectedClients());
+        if (clientList.isEmpty()) {
+            clientList = "No clients connected";
+        }
+        admin.sendMessage(new Message(MessageType.CONNECTED_CLIENTS_LIST, "SERVER", clientList));
+    }
+
+    // Split over several messages when the history would not fit in one frame
+    private static void sendChatHistory(ClientConnection admin) {
+        StringBuilder history = new StringBuilder();
+        int bytes = 0;
+        for (Message msg : Server.getChatHistory()) {
+            String line = msg.toString() + "\n";
+            int lineBytes = MessageCodec.utf8Length(line);
+            if (history.length() > 0 && bytes + lineBytes > Constants.MAX_PAYLOAD_SIZE) {
+                admin.sendMessage(new Message(MessageType.CHAT_HISTORY_DATA, "SERVER", history.toString()));
+                history.setLength(0);
+                bytes = 0;
+            }
+            history.append(line);
+            bytes += lineBytes;
+        }
+
+        if (history.length() == 0) {
+            history.append("No chat history available");
+        }
+
+        admin.sendMessage(new Message(MessageType.CHAT_HISTORY_DATA, "SERVER", history.toString()));
+    }
+
+    private static void sendSystemStats(ClientConnection admin) {
+        admin.sendMessage(new Message(MessageType.SYSTEM_STATS_DATA, "SERVER", Server.getSystemStats()));
+    }
+
+    private static void handleKickUser(ClientConnection admin, String targetUsername) {
+        if (Server.kickUser(targetUsername)) {
+            admin.sendMessage(new Message(MessageType.KICK_SUCCESS, "SERVER", "User " + targetUsername + " has been kicked"));
+        } else {
+            admin.sendMessage(new Message(MessageType.KICK_FAILED, "SERVER", "User " + targetUsername + " not found"));
+        }
+    }
+}
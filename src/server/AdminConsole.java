@@ -1,28 +1,52 @@
 package server;
 
+import common.AdminEvent;
 import common.Constants;
+import common.HistoryPage;
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
+import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
 import java.net.Socket;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class AdminConsole extends JFrame {
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private MessageIO io;
     private boolean connected = false;
     
     // GUI Components
     private JTextArea clientListArea;
-    private JTextArea chatHistoryArea;
+    private JTextArea activityArea;
+    private DefaultTableModel historyModel;
+    private JTextField historySenderField;
+    private JComboBox<String> historyTypeBox;
+    private JButton olderButton;
+    private JButton newerButton;
+    private JLabel historyPageLabel;
+    private HistoryPage historyPage;
     private JTextArea systemStatsArea;
+    
+    // Live state, kept current by pushed ADMIN_EVENTS
+    private final Map<String, String> onlineUsers = new LinkedHashMap<>();
+    private final Map<String, String> statsValues = new LinkedHashMap<>();
+    private boolean snapshotReceived = false; // the first batch lists who was already online
+    private static final int MAX_ACTIVITY_LINES = 200;
+    private static final DateTimeFormatter ACTIVITY_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private DefaultTableModel metricsModel;
     private JTextField kickUserField;
     private JButton connectButton;
     private JButton refreshClientsButton;
@@ -124,7 +148,7 @@ public class AdminConsole extends JFrame {
         refreshClientsButton.addActionListener(e -> requestConnectedClients());
         controlPanel.add(refreshClientsButton);
         
-        JLabel infoLabel = new JLabel("💡 Auto-updates when clients join/leave");
+        JLabel infoLabel = new JLabel("💡 Auto-updates when clients join/leave; Refresh shows queue details");
         infoLabel.setForeground(Color.GRAY);
         controlPanel.add(infoLabel);
         
@@ -146,6 +170,20 @@ public class AdminConsole extends JFrame {
         
         panel.add(scrollPane, BorderLayout.CENTER);
         
+        // Joins, leaves and file transfers as they happen
+        activityArea = new JTextArea(8, 40);
+        activityArea.setEditable(false);
+        activityArea.setFont(new Font("Consolas", Font.PLAIN, 12));
+        
+        JScrollPane activityPane = new JScrollPane(activityArea);
+        activityPane.setBorder(BorderFactory.createTitledBorder(
+            BorderFactory.createLineBorder(Color.GRAY), 
+            "Recent Activity", 
+            TitledBorder.LEFT, 
+            TitledBorder.TOP));
+        
+        panel.add(activityPane, BorderLayout.SOUTH);
+        
         return panel;
     }
     
@@ -155,29 +193,55 @@ public class AdminConsole extends JFrame {
         
         // Controls panel
         JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        refreshHistoryButton = new JButton("🔄 Refresh");
+        refreshHistoryButton = new JButton("🔄 Latest");
         refreshHistoryButton.addActionListener(e -> requestChatHistory());
         controlPanel.add(refreshHistoryButton);
         
-        JButton clearButton = new JButton("🗑️ Clear Display");
-        clearButton.addActionListener(e -> chatHistoryArea.setText(""));
-        controlPanel.add(clearButton);
+        olderButton = new JButton("◀ Older");
+        olderButton.addActionListener(e -> requestHistoryPage(
+            HistoryPage.Query.newest(Constants.HISTORY_PAGE_SIZE).older(historyPage.getOlderCursor())));
+        controlPanel.add(olderButton);
         
-        panel.add(controlPanel, BorderLayout.NORTH);
+        newerButton = new JButton("Newer ▶");
+        newerButton.addActionListener(e -> requestHistoryPage(
+            HistoryPage.Query.newest(Constants.HISTORY_PAGE_SIZE).newer(historyPage.getNewerCursor())));
+        controlPanel.add(newerButton);
+        
+        controlPanel.add(new JLabel("  Sender:"));
+        historySenderField = new JTextField(10);
+        historySenderField.addActionListener(e -> requestChatHistory());
+        controlPanel.add(historySenderField);
+        
+        controlPanel.add(new JLabel("Type:"));
+        historyTypeBox = new JComboBox<>(new String[] { "All", MessageType.MESSAGE_BROADCAST,
+            MessageType.PRIVATE_MESSAGE_RECEIVED, MessageType.USER_JOINED, MessageType.USER_LEFT });
+        historyTypeBox.addActionListener(e -> requestChatHistory());
+        controlPanel.add(historyTypeBox);
+        
+        historyPageLabel = new JLabel();
+        controlPanel.add(historyPageLabel);
         
-        // Chat history area
-        chatHistoryArea = new JTextArea();
-        chatHistoryArea.setEditable(false);
-        chatHistoryArea.setFont(new Font("Consolas", Font.PLAIN, 12));
-        chatHistoryArea.setBackground(Color.WHITE);
-        chatHistoryArea.setLineWrap(true);
-        chatHistoryArea.setWrapStyleWord(true);
-        chatHistoryArea.setText("Connect to server to view chat history...");
+        panel.add(controlPanel, BorderLayout.NORTH);
         
-        JScrollPane scrollPane = new JScrollPane(chatHistoryArea);
+        // Chat history table, one page at a time
+        historyModel = new DefaultTableModel(
+            new Object[] { "#", "Time", "Type", "Sender", "Receiver", "Content" }, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable historyTable = new JTable(historyModel);
+        historyTable.setFont(new Font("Consolas", Font.PLAIN, 12));
+        historyTable.getColumnModel().getColumn(0).setPreferredWidth(50);
+        historyTable.getColumnModel().getColumn(1).setPreferredWidth(130);
+        historyTable.getColumnModel().getColumn(2).setPreferredWidth(150);
+        historyTable.getColumnModel().getColumn(5).setPreferredWidth(400);
+        
+        JScrollPane scrollPane = new JScrollPane(historyTable);
         scrollPane.setBorder(BorderFactory.createTitledBorder(
             BorderFactory.createLineBorder(Color.GRAY), 
-            "Chat History (Last " + Constants.MAX_HISTORY_SIZE + " messages)", 
+            "Chat History (" + Constants.HISTORY_PAGE_SIZE + " messages per page)", 
             TitledBorder.LEFT, 
             TitledBorder.TOP));
         
@@ -216,7 +280,25 @@ public class AdminConsole extends JFrame {
             TitledBorder.LEFT, 
             TitledBorder.TOP));
         
-        panel.add(scrollPane, BorderLayout.CENTER);
+        // Metrics table, filled from METRICS_DATA name=value lines
+        metricsModel = new DefaultTableModel(new Object[] { "Metric", "Value" }, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable metricsTable = new JTable(metricsModel);
+        metricsTable.setFont(new Font("Consolas", Font.PLAIN, 12));
+        JScrollPane metricsScrollPane = new JScrollPane(metricsTable);
+        metricsScrollPane.setBorder(BorderFactory.createTitledBorder(
+            BorderFactory.createLineBorder(Color.GRAY), 
+            "Metrics", 
+            TitledBorder.LEFT, 
+            TitledBorder.TOP));
+        
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, scrollPane, metricsScrollPane);
+        splitPane.setResizeWeight(0.4);
+        panel.add(splitPane, BorderLayout.CENTER);
         
         return panel;
     }
@@ -271,8 +353,8 @@ public class AdminConsole extends JFrame {
         String[] instructions = {
             "• To kick a user, enter their exact username and click 'Kick User'",
             "• Use the 'Connected Clients' tab to see all active users",
-            "• Chat history is limited to " + Constants.MAX_HISTORY_SIZE + " most recent messages",
-            "• All tabs auto-refresh when significant events occur",
+            "• Page through chat history with 'Older' and 'Newer', filtered by sender or type",
+            "• Clients, activity, the newest history page and statistics update live",
             "• System statistics show real-time server metrics"
         };
         
@@ -331,18 +413,15 @@ public class AdminConsole extends JFrame {
             new Thread(() -> {
                 try {
                     socket = new Socket(Constants.SERVER_HOST, Constants.SERVER_PORT);
-                    output = new ObjectOutputStream(socket.getOutputStream());
-                    output.flush();
-                    input = new ObjectInputStream(socket.getInputStream());
+                    io = MessageIO.connect(socket);
                     
                     // Send admin login
                     String credentials = username + ":" + password;
                     Message loginMsg = new Message(MessageType.ADMIN_LOGIN, "ADMIN", credentials);
-                    output.writeObject(loginMsg);
-                    output.flush();
+                    io.write(loginMsg);
                     
                     // Wait for response
-                    Message response = (Message) input.readObject();
+                    Message response = io.read();
                     
                     if (MessageType.ADMIN_AUTH_SUCCESS.equals(response.getType())) {
                         connected = true;
@@ -382,7 +461,7 @@ public class AdminConsole extends JFrame {
         new Thread(() -> {
             try {
                 while (connected) {
-                    Message message = (Message) input.readObject();
+                    Message message = io.read();
                     handleServerMessage(message);
                 }
             } catch (Exception e) {
@@ -406,13 +485,20 @@ public class AdminConsole extends JFrame {
                         "\n=========================");
                     break;
                     
-                case MessageType.CHAT_HISTORY_DATA:
-                    chatHistoryArea.setText("=== Chat History ===\n" + message.getContent() + 
-                        "\n====================");
+                case MessageType.HISTORY_PAGE_DATA:
+                    showHistoryPage(HistoryPage.decode(message.getContent()));
                     break;
                     
                 case MessageType.SYSTEM_STATS_DATA:
-                    systemStatsArea.setText(message.getContent());
+                    showSystemStats(message.getContent());
+                    break;
+                    
+                case MessageType.ADMIN_EVENTS:
+                    applyEvents(AdminEvent.decode(message.getContent()));
+                    break;
+                    
+                case MessageType.METRICS_DATA:
+                    showMetrics(message.getContent());
                     break;
                     
                 case MessageType.KICK_SUCCESS:
@@ -420,48 +506,215 @@ public class AdminConsole extends JFrame {
                     JOptionPane.showMessageDialog(this, message.getContent(), 
                         "Kick User", JOptionPane.INFORMATION_MESSAGE);
                     kickUserField.setText("");
-                    requestConnectedClients();
                     break;
             }
         });
     }
     
+    private void applyEvents(List<AdminEvent> events) {
+        boolean usersChanged = false;
+        boolean snapshot = !snapshotReceived;
+        snapshotReceived = true;
+        List<HistoryPage.Record> newRecords = new ArrayList<>();
+        
+        for (AdminEvent event : events) {
+            switch (event.getKind()) {
+                case AdminEvent.USER_JOINED:
+                    onlineUsers.put(event.getKey(), event.getField(1));
+                    if (!snapshot) {
+                        addActivity(event.getKey() + " joined from " + event.getField(1));
+                    }
+                    usersChanged = true;
+                    break;
+                    
+                case AdminEvent.USER_LEFT:
+                    if (onlineUsers.remove(event.getKey()) != null) {
+                        addActivity(event.getKey() + " left");
+                        usersChanged = true;
+                    }
+                    break;
+                    
+                case AdminEvent.TRANSFER_STARTED:
+                case AdminEvent.TRANSFER_FINISHED:
+                    addActivity((AdminEvent.TRANSFER_STARTED.equals(event.getKind()) ? "Transfer started: "
+                        : "Transfer finished: ") + event.getField(2) + " (" + event.getField(1) + ", "
+                        + event.getField(3) + " bytes)");
+                    break;
+                    
+                case AdminEvent.MESSAGE:
+                    newRecords.add(event.toRecord());
+                    break;
+                    
+                case AdminEvent.SKIPPED:
+                    // Fell behind; the newest page is cheaper than the missed events
+                    newRecords.clear();
+                    if (isFollowingLatest()) {
+                        requestChatHistory();
+                    }
+                    break;
+                    
+                case AdminEvent.STATS:
+                    for (Map.Entry<String, Long> entry : event.getStats().entrySet()) {
+                        statsValues.put(entry.getKey(), String.valueOf(entry.getValue()));
+                    }
+                    renderSystemStats();
+                    break;
+            }
+        }
+        
+        if (usersChanged) {
+            renderClients();
+        }
+        if (!newRecords.isEmpty() && isFollowingLatest()) {
+            appendToHistoryPage(newRecords);
+        }
+    }
+    
+    private void renderClients() {
+        StringBuilder list = new StringBuilder("=== Connected Clients (" + onlineUsers.size() + ") ===\n");
+        int index = 1;
+        for (Map.Entry<String, String> user : onlineUsers.entrySet()) {
+            list.append(index++).append(". ").append(user.getKey()).append(" (").append(user.getValue()).append(")\n");
+        }
+        if (onlineUsers.isEmpty()) {
+            list.append("No clients connected\n");
+        }
+        clientListArea.setText(list.append("=========================").toString());
+    }
+    
+    private void addActivity(String line) {
+        activityArea.append("[" + LocalTime.now().format(ACTIVITY_TIME) + "] " + line + "\n");
+        int excess = activityArea.getLineCount() - 1 - MAX_ACTIVITY_LINES;
+        if (excess > 0) {
+            try {
+                activityArea.replaceRange("", 0, activityArea.getLineEndOffset(excess - 1));
+            } catch (javax.swing.text.BadLocationException e) {
+                activityArea.setText("");
+            }
+        }
+    }
+    
+    // The history view shows the newest page, so pushed messages belong at its end
+    private boolean isFollowingLatest() {
+        return historyPage != null && !historyPage.hasNewer();
+    }
+    
+    private void appendToHistoryPage(List<HistoryPage.Record> newRecords) {
+        HistoryPage.Query filters = HistoryPage.Query.newest(Constants.HISTORY_PAGE_SIZE);
+        applyFilters(filters);
+        
+        List<HistoryPage.Record> records = new ArrayList<>(historyPage.getRecords());
+        long newest = records.isEmpty() ? -1 : records.get(records.size() - 1).getSequence();
+        for (HistoryPage.Record record : newRecords) {
+            // The page may already hold messages that were also pushed
+            if (record.getSequence() > newest && filters.matches(record.getMessage())) {
+                records.add(record);
+                newest = record.getSequence();
+            }
+        }
+        
+        int excess = records.size() - Constants.HISTORY_PAGE_SIZE;
+        if (excess > 0) {
+            records = new ArrayList<>(records.subList(excess, records.size()));
+        }
+        if (records.isEmpty()) return;
+        
+        showHistoryPage(new HistoryPage(records, records.get(0).getSequence(), newest,
+            historyPage.hasOlder() || excess > 0, false));
+    }
+    
+    private void showSystemStats(String content) {
+        statsValues.clear();
+        for (String line : content.split("\n")) {
+            int separator = line.indexOf(": ");
+            if (separator > 0) {
+                statsValues.put(line.substring(0, separator), line.substring(separator + 2));
+            }
+        }
+        renderSystemStats();
+    }
+    
+    private void renderSystemStats() {
+        StringBuilder stats = new StringBuilder("=== System Statistics ===\n");
+        for (Map.Entry<String, String> entry : statsValues.entrySet()) {
+            stats.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        systemStatsArea.setText(stats.append("========================").toString());
+    }
+    
     private void requestConnectedClients() {
         if (!connected) return;
         
         try {
             Message request = new Message(MessageType.GET_CONNECTED_CLIENTS, "ADMIN", "");
-            output.writeObject(request);
-            output.flush();
+            io.write(request);
         } catch (IOException e) {
             showError("Failed to request client list: " + e.getMessage());
         }
     }
     
     private void requestChatHistory() {
+        requestHistoryPage(HistoryPage.Query.newest(Constants.HISTORY_PAGE_SIZE));
+    }
+    
+    private void requestHistoryPage(HistoryPage.Query query) {
         if (!connected) return;
         
+        applyFilters(query);
+        
         try {
-            Message request = new Message(MessageType.GET_CHAT_HISTORY, "ADMIN", "");
-            output.writeObject(request);
-            output.flush();
+            io.write(new Message(MessageType.GET_HISTORY_PAGE, "ADMIN", query.encode()));
         } catch (IOException e) {
             showError("Failed to request chat history: " + e.getMessage());
         }
     }
     
+    private void applyFilters(HistoryPage.Query query) {
+        String sender = historySenderField.getText().trim();
+        if (!sender.isEmpty()) {
+            query.sender(sender);
+        }
+        if (historyTypeBox.getSelectedIndex() > 0) {
+            query.type((String) historyTypeBox.getSelectedItem());
+        }
+    }
+    
+    private void showHistoryPage(HistoryPage page) {
+        historyPage = page;
+        historyModel.setRowCount(0);
+        for (HistoryPage.Record record : page.getRecords()) {
+            Message m = record.getMessage();
+            historyModel.addRow(new Object[] { record.getSequence(), m.getTimestamp(), m.getType(),
+                m.getSender(), m.getReceiver() != null ? m.getReceiver() : "ALL", m.getContent() });
+        }
+        historyPageLabel.setText(page.getRecords().isEmpty() ? "  No messages"
+            : "  #" + page.getOlderCursor() + " - #" + page.getNewerCursor());
+        olderButton.setEnabled(connected && page.hasOlder());
+        newerButton.setEnabled(connected && page.hasNewer());
+    }
+    
     private void requestSystemStats() {
         if (!connected) return;
         
         try {
             Message request = new Message(MessageType.GET_SYSTEM_STATS, "ADMIN", "");
-            output.writeObject(request);
-            output.flush();
+            io.write(request);
+            io.write(new Message(MessageType.GET_METRICS, "ADMIN", ""));
         } catch (IOException e) {
             showError("Failed to request system stats: " + e.getMessage());
         }
     }
     
+    private void showMetrics(String content) {
+        metricsModel.setRowCount(0);
+        for (String line : content.split("\n")) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                metricsModel.addRow(new Object[] { line.substring(0, separator), line.substring(separator + 1) });
+            }
+        }
+    }
+    
     private void kickUser() {
         if (!connected) return;
         
@@ -480,8 +733,7 @@ public class AdminConsole extends JFrame {
         if (confirm == JOptionPane.YES_OPTION) {
             try {
                 Message kickMsg = new Message(MessageType.KICK_USER, "ADMIN", username);
-                output.writeObject(kickMsg);
-                output.flush();
+                io.write(kickMsg);
             } catch (IOException e) {
                 showError("Failed to kick user: " + e.getMessage());
             }
@@ -492,18 +744,16 @@ public class AdminConsole extends JFrame {
         try {
             connected = false;
             
-            if (output != null) {
+            if (io != null) {
                 try {
                     Message logoutMsg = new Message(MessageType.LOGOUT, "ADMIN", "");
-                    output.writeObject(logoutMsg);
-                    output.flush();
+                    io.write(logoutMsg);
                 } catch (IOException e) {
                     // Ignore
                 }
+                io.close();
             }
             
-            if (input != null) input.close();
-            if (output != null) output.close();
             if (socket != null && !socket.isClosed()) socket.close();
             
             SwingUtilities.invokeLater(() -> {
@@ -513,8 +763,15 @@ public class AdminConsole extends JFrame {
                 setControlsEnabled(false);
                 
                 clientListArea.setText("Connect to server to view connected clients...");
-                chatHistoryArea.setText("Connect to server to view chat history...");
+                activityArea.setText("");
+                onlineUsers.clear();
+                statsValues.clear();
+                snapshotReceived = false;
+                historyModel.setRowCount(0);
+                historyPageLabel.setText("");
+                historyPage = null;
                 systemStatsArea.setText("Connect to server to view statistics...");
+                metricsModel.setRowCount(0);
             });
             
         } catch (IOException e) {
@@ -525,6 +782,8 @@ public class AdminConsole extends JFrame {
     private void setControlsEnabled(boolean enabled) {
         refreshClientsButton.setEnabled(enabled);
         refreshHistoryButton.setEnabled(enabled);
+        olderButton.setEnabled(enabled && historyPage != null && historyPage.hasOlder());
+        newerButton.setEnabled(enabled && historyPage != null && historyPage.hasNewer());
         refreshStatsButton.setEnabled(enabled);
         kickButton.setEnabled(enabled);
         kickUserField.setEnabled(enabled);
@@ -0,0 +1,243 @@
+package server;
+
+import common.AdminEvent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Pushes server changes to connected admin consoles.
+ *
+ * Publishers hand an event to every subscriber's pending batch and return;
+ * nothing is written on their thread. Every few hundred milliseconds a
+ * dispatcher sends each subscriber what accumulated since its last batch.
+ * Pending events are coalesced per subscriber: a user's latest join or leave
+ * replaces the earlier one, a transfer's finish replaces its start, stats
+ * keep the newest value per name, and message events beyond a cap are
+ * dropped in favour of a SKIPPED count. A slow console therefore holds at
+ * most one batch in flight plus one bounded pending batch, and admin work
+ * follows the rate of change rather than the size of the server state.
+ */
+public final class AdminEventBus {
+
+    /**
+     * Where a subscriber's batches go; called on a delivery thread, one batch at a time
+     */
+    public interface Sink {
+        void deliver(List<AdminEvent> batch) throws IOException;
+    }
+
+    private static final Set<Subscription> SUBSCRIBERS = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService DELIVERY = ConnectionExecutors.createDaemon("admin-event-writer");
+    private static final ScheduledExecutorService DISPATCHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "admin-events");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final MetricsRegistry.Counter publishedEvents = MetricsRegistry.counter(
+            "chat_admin_events_total", "Events published to admin consoles");
+    private static final MetricsRegistry.Counter deliveredBatches = MetricsRegistry.counter(
+            "chat_admin_event_batches_total", "Coalesced event batches sent to admin consoles");
+    private static final MetricsRegistry.Counter skippedEvents = MetricsRegistry.counter(
+            "chat_admin_events_skipped_total", "Message events dropped for admin consoles that fell behind");
+
+    private static volatile Supplier<Map<String, Long>> statsSource;
+    private static Map<String, Long> lastStats = new HashMap<>(); // dispatcher thread only
+
+    static {
+        MetricsRegistry.gauge("chat_admin_subscribers", "Admin sessions receiving pushed events", () -> SUBSCRIBERS.size());
+        long interval = ServerConfig.adminEventIntervalMillis();
+        DISPATCHER.scheduleWithFixedDelay(AdminEventBus::dispatch, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private AdminEventBus() {
+        throw new UnsupportedOperationException("Cannot instantiate AdminEventBus class");
+    }
+
+    /**
+     * Supplier of the values sent in STATS events; only the ones that changed
+     * since the previous batch are published
+     */
+    public static void setStatsSource(Supplier<Map<String, Long>> source) {
+        statsSource = source;
+    }
+
+    /**
+     * Start pushing events to a sink. The initial events (the current state,
+     * usually) are taken after the subscriber is registered and before any
+     * published event can reach it, so no change falls between the two.
+     */
+    public static Subscription subscribe(String name, Sink sink, Supplier<List<AdminEvent>> initial) {
+        Subscription subscription = new Subscription(name, sink);
+        synchronized (subscription) {
+            SUBSCRIBERS.add(subscription);
+            for (AdminEvent event : initial.get()) {
+                subscription.offer(event);
+            }
+        }
+        return subscription;
+    }
+
+    public static void unsubscribe(Subscription subscription) {
+        if (subscription != null) {
+            SUBSCRIBERS.remove(subscription);
+        }
+    }
+
+    /**
+     * Whether anyone is listening; lets hot paths skip building events
+     */
+    public static boolean hasSubscribers() {
+        return !SUBSCRIBERS.isEmpty();
+    }
+
+    public static void publish(AdminEvent event) {
+        if (SUBSCRIBERS.isEmpty()) return;
+
+        publishedEvents.increment();
+        for (Subscription subscription : SUBSCRIBERS) {
+            subscription.offer(event);
+        }
+    }
+
+    // Runs on the dispatcher thread
+    private static void dispatch() {
+        try {
+            if (SUBSCRIBERS.isEmpty()) {
+                lastStats.clear();
+                return;
+            }
+
+            publishStatsDelta();
+            for (Subscription subscription : SUBSCRIBERS) {
+                subscription.flush();
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive whatever a stats supplier throws
+            System.err.println("Error dispatching admin events: " + e.getMessage());
+        }
+    }
+
+    private static void publishStatsDelta() {
+        Supplier<Map<String, Long>> source = statsSource;
+        if (source == null) return;
+
+        Map<String, Long> current = source.get();
+        Map<String, Long> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : current.entrySet()) {
+            if (!Objects.equals(lastStats.get(entry.getKey()), entry.getValue())) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        lastStats = new HashMap<>(current);
+        if (!changed.isEmpty()) {
+            publish(AdminEvent.stats(changed));
+        }
+    }
+
+    /**
+     * One admin session's pending batch
+     */
+    public static final class Subscription {
+        private final String name;
+        private final Sink sink;
+        private final int maxMessages = ServerConfig.adminEventMaxMessages();
+        private final AtomicBoolean delivering = new AtomicBoolean();
+
+        // Guarded by this
+        private final Map<String, AdminEvent> presence = new LinkedHashMap<>();
+        private final Map<String, AdminEvent> transfers = new LinkedHashMap<>();
+        private final ArrayDeque<AdminEvent> messages = new ArrayDeque<>();
+        private final Map<String, Long> stats = new LinkedHashMap<>();
+        private long skipped;
+
+        private Subscription(String name, Sink sink) {
+            this.name = name;
+            this.sink = sink;
+        }
+
+        private synchronized void offer(AdminEvent event) {
+            switch (event.getKind()) {
+                case AdminEvent.USER_JOINED:
+                case AdminEvent.USER_LEFT:
+                    presence.put(event.getKey(), event);
+                    break;
+
+                case AdminEvent.TRANSFER_STARTED:
+                case AdminEvent.TRANSFER_FINISHED:
+                    transfers.put(event.getKey(), event);
+                    break;
+
+                case AdminEvent.STATS:
+                    stats.putAll(event.getStats());
+                    break;
+
+                default:
+                    if (messages.size() >= maxMessages) {
+                        messages.poll();
+                        skipped++;
+                        skippedEvents.increment();
+                    }
+                    messages.add(event);
+            }
+        }
+
+        private synchronized List<AdminEvent> drain() {
+            List<AdminEvent> batch = new ArrayList<>(presence.size() + transfers.size() + messages.size() + 2);
+            batch.addAll(presence.values());
+            batch.addAll(transfers.values());
+            if (skipped > 0) {
+                batch.add(AdminEvent.skipped(skipped));
+            }
+            batch.addAll(messages);
+            if (!stats.isEmpty()) {
+                batch.add(AdminEvent.stats(stats));
+            }
+
+            presence.clear();
+            transfers.clear();
+            messages.clear();
+            stats.clear();
+            skipped = 0;
+            return batch;
+        }
+
+        // At most one batch in flight; anything newer keeps coalescing meanwhile
+        private void flush() {
+            if (!delivering.compareAndSet(false, true)) return;
+
+            List<AdminEvent> batch = drain();
+            if (batch.isEmpty()) {
+                delivering.set(false);
+                return;
+            }
+
+            DELIVERY.execute(() -> {
+                try {
+                    sink.deliver(batch);
+                    deliveredBatches.increment();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Dropping admin event subscriber " + name + ": " + e.getMessage());
+                    unsubscribe(this);
+                } finally {
+                    delivering.set(false);
+                }
+            });
+        }
+    }
+}
@@ -2,103 +2,280 @@ package server;
 
 import common.Message;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * Handles chat logging functionality
+ * Handles chat logging functionality.
+ *
+ * Logging calls only enqueue an entry; a single "chat-logger" thread formats
+ * whatever has accumulated and appends it to the log stores (group commit),
+ * at most every chat.log.flushMillis. A batch stops at 4096 entries or after
+ * flushMillis of appending, so a backlog is flushed in steps rather than only
+ * once the queue is empty. With chat.log.fsync the stores are also forced to
+ * disk after each batch.
+ *
+ * Both logs are SegmentedLogStores under logs/chat_log/ and logs/server_log/,
+ * so recent lines are read from the tail without scanning the whole log, and
+ * each has a LogSearchIndex that the writer extends after every batch.
+ * Segments rotate by size and by time (chat.log.rotateMinutes), sealed ones
+ * are gzipped, and old ones are deleted by chat.log.retentionDays and
+ * chat.log.maxBytes.
+ * The old chat_log.txt and server_log.txt are imported the first time a
+ * store is created, and can be produced again, by default in logs/export, with
+ *   java server.ChatLogger export [directory]
+ *
+ * The queue holds at most chat.log.queueCapacity entries. When it is full,
+ * callers wait for the writer to catch up, or, with chat.log.dropWhenFull,
+ * the entry is discarded and counted in chat_log_dropped_total.
  */
 public class ChatLogger {
     private static final String LOG_DIR = "logs";
-    private static final String CHAT_LOG_FILE = "chat_log.txt";
-    private static final String SERVER_LOG_FILE = "server_log.txt";
+    private static final String CHAT_LOG = "chat_log";
+    private static final String SERVER_LOG = "server_log";
+    private static final String TEXT_SUFFIX = ".txt";
+    private static final String EXPORT_DIR = "export";
     private static final DateTimeFormatter formatter = 
         DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // Inverse of formatChatEntry: [timestamp] [TYPE] sender -> receiver: content
+    private static final Pattern CHAT_ENTRY = Pattern.compile(
+        "\\[([^\\]]*)\\] \\[([A-Z_]+)\\] (.*?) -> (.*?): (.*)", Pattern.DOTALL);
+    private static final LatencyHistogram writeLatency = MetricsRegistry.histogram(
+        "chat_log_write_seconds", "Time to write and flush one batch of log entries");
+    // Entries appended before the writer flushes, however far behind it is
+    private static final int MAX_BATCH = 4096;
+    private static final MetricsRegistry.Counter droppedEntries = MetricsRegistry.counter(
+        "chat_log_dropped_total", "Log entries discarded because the log queue was full");
     
-    private PrintWriter chatLogWriter;
-    private PrintWriter serverLogWriter;
+    private SegmentedLogStore chatLog;
+    private SegmentedLogStore serverLog;
+    private LogSearchIndex chatIndex;
+    private LogSearchIndex serverIndex;
+    
+    // Pending entries, bounded by queueCapacity
+    private final ConcurrentLinkedQueue<LogEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int queueCapacity = ServerConfig.logQueueCapacity();
+    private final long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.logFlushIntervalMillis());
+    private final boolean fsync = ServerConfig.logFsync();
+    private final boolean dropWhenFull = ServerConfig.logDropWhenFull();
+    private Thread writerThread;
+    private volatile boolean closed = false;
+    
+    /**
+     * A queued line for one of the two logs. Formatting happens on the
+     * writer thread; only the timestamp of server events is taken up front.
+     */
+    private static final class LogEntry {
+        final Message message;       // chat log entry
+        final String event;          // server log entry
+        final LocalDateTime time;
+        final CountDownLatch flushed; // flush barrier, no content
+        
+        LogEntry(Message message, String event, LocalDateTime time, CountDownLatch flushed) {
+            this.message = message;
+            this.event = event;
+            this.time = time;
+            this.flushed = flushed;
+        }
+    }
     
     public ChatLogger() {
         initializeLogFiles();
+        MetricsRegistry.gauge("chat_log_queue_depth", "Log entries waiting for the writer thread", pending::get);
     }
     
     /**
-     * Initialize log files and directories
+     * Open the log stores, importing old text logs into new stores
      */
     private void initializeLogFiles() {
         try {
-            // Create logs directory if it doesn't exist
-            File logDir = new File(LOG_DIR);
-            if (!logDir.exists()) {
-                logDir.mkdirs();
-            }
-            
-            // Initialize chat log writer
-            chatLogWriter = new PrintWriter(
-                new BufferedWriter(
-                    new FileWriter(LOG_DIR + File.separator + CHAT_LOG_FILE, true)
-                ), true
-            );
-            
-            // Initialize server log writer
-            serverLogWriter = new PrintWriter(
-                new BufferedWriter(
-                    new FileWriter(LOG_DIR + File.separator + SERVER_LOG_FILE, true)
-                ), true
-            );
+            int segmentBytes = ServerConfig.logSegmentBytes();
+            SegmentedLogStore chat = openStore(CHAT_LOG, segmentBytes);
+            SegmentedLogStore server = openStore(SERVER_LOG, segmentBytes);
             
             // Log session start
             String sessionStart = String.format("[%s] ========== Server Session Started ==========",
                 LocalDateTime.now().format(formatter));
-            chatLogWriter.println(sessionStart);
-            serverLogWriter.println(sessionStart);
+            chat.append(sessionStart);
+            server.append(sessionStart);
+            chatIndex = new LogSearchIndex(chat);
+            serverIndex = new LogSearchIndex(server);
+            chatLog = chat;
+            serverLog = server;
+            
+            writerThread = new Thread(this::runWriter, "chat-logger");
+            writerThread.setDaemon(true);
+            writerThread.start();
             
         } catch (IOException e) {
             System.err.println("Error initializing log files: " + e.getMessage());
         }
     }
     
+    private static SegmentedLogStore openStore(String name, int segmentBytes) throws IOException {
+        SegmentedLogStore store = new SegmentedLogStore(Paths.get(LOG_DIR, name), segmentBytes);
+        store.enableRotation(ServerConfig.logRotateMillis(), ServerConfig.logCompress(),
+            ServerConfig.logRetentionMillis(), ServerConfig.logMaxBytes());
+        Path legacy = Paths.get(LOG_DIR, name + TEXT_SUFFIX);
+        if (store.isEmpty() && Files.isRegularFile(legacy)) {
+            try (BufferedReader reader = Files.newBufferedReader(legacy, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    store.append(line);
+                }
+            }
+            System.out.println("Imported " + store.size() + " lines from " + legacy);
+        }
+        return store;
+    }
+    
     /**
      * Log a chat message
      */
     public void logChatMessage(Message message) {
-        if (chatLogWriter == null) return;
+        if (chatLog == null) return;
         
-        String logEntry = String.format("[%s] [%s] %s -> %s: %s",
+        enqueue(new LogEntry(message, null, null, null));
+    }
+    
+    /**
+     * Log a server event
+     */
+    public void logServerEvent(String event) {
+        if (serverLog == null) return;
+        
+        enqueue(new LogEntry(null, event, LocalDateTime.now(), null));
+    }
+    
+    /**
+     * Wait until everything logged so far has been appended to the stores
+     */
+    public void flush() {
+        if (writerThread == null || closed) return;
+        
+        CountDownLatch flushed = new CountDownLatch(1);
+        queue.add(new LogEntry(null, null, null, flushed));
+        LockSupport.unpark(writerThread);
+        try {
+            flushed.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void enqueue(LogEntry entry) {
+        if (closed) return;
+        
+        while (pending.incrementAndGet() > queueCapacity) {
+            pending.decrementAndGet();
+            if (dropWhenFull) {
+                droppedEntries.increment();
+                return;
+            }
+            // Backpressure: wake the writer and wait for it to make room
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(100_000);
+            if (closed) return;
+        }
+        queue.add(entry);
+    }
+    
+    // ============ WRITER THREAD ============
+    
+    private void runWriter() {
+        while (true) {
+            long start = System.nanoTime();
+            int written = drain(start + flushIntervalNanos);
+            if (written > 0) {
+                flushFiles();
+                writeLatency.recordSince(start);
+            }
+            
+            if (queue.isEmpty()) {
+                if (closed) break;
+                // Let the next batch gather
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+    }
+    
+    /**
+     * Append queued entries until the queue is empty, MAX_BATCH are written or the deadline
+     * passes; returns the number written
+     */
+    private int drain(long deadline) {
+        int written = 0;
+        LogEntry entry;
+        while (written < MAX_BATCH && System.nanoTime() - deadline < 0 && (entry = queue.poll()) != null) {
+            if (entry.flushed != null) {
+                flushFiles();
+                entry.flushed.countDown();
+                continue;
+            }
+            pending.decrementAndGet();
+            try {
+                if (entry.message != null) {
+                    chatLog.append(formatChatEntry(entry.message));
+                } else {
+                    serverLog.append(String.format("[%s] %s", entry.time.format(formatter), entry.event));
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing log entry: " + e.getMessage());
+            }
+            written++;
+        }
+        return written;
+    }
+    
+    // Appends to the mapped segments are visible to readers at once; only
+    // the search index and durability need an explicit step
+    private void flushFiles() {
+        chatIndex.update();
+        serverIndex.update();
+        if (fsync) {
+            chatLog.force();
+            serverLog.force();
+        }
+    }
+    
+    private static String formatChatEntry(Message message) {
+        return String.format("[%s] [%s] %s -> %s: %s",
             message.getTimestamp(),
             message.getType(),
             message.getSender(),
             message.getReceiver() != null ? message.getReceiver() : "ALL",
             message.getContent()
         );
-        
-        chatLogWriter.println(logEntry);
-        chatLogWriter.flush();
     }
     
     /**
-     * Log a server event
+     * Rebuild a logged chat message; null for lines that are not chat entries
      */
-    public void logServerEvent(String event) {
-        if (serverLogWriter == null) return;
-        
-        String logEntry = String.format("[%s] %s",
-            LocalDateTime.now().format(formatter),
-            event
-        );
+    static Message parseChatEntry(String line) {
+        Matcher matcher = CHAT_ENTRY.matcher(line);
+        if (!matcher.matches()) return null;
         
-        serverLogWriter.println(logEntry);
-        serverLogWriter.flush();
+        String receiver = matcher.group(4);
+        Message message = new Message(matcher.group(2), matcher.group(3),
+            "ALL".equals(receiver) ? null : receiver, matcher.group(5));
+        message.setTimestamp(matcher.group(1));
+        return message;
     }
     
     /**
@@ -135,59 +312,59 @@ public class ChatLogger {
      * Get recent chat logs (last n lines)
      */
     public List<String> getRecentChatLogs(int lines) {
-        return getRecentLogs(LOG_DIR + File.separator + CHAT_LOG_FILE, lines);
+        return getRecentLogs(chatLog, lines);
+    }
+    
+    /**
+     * The last chat messages in the log, oldest first; read from the tail of
+     * the store without waiting for the writer thread
+     */
+    public List<Message> getRecentChatMessages(int count) {
+        List<Message> messages = new ArrayList<>();
+        if (chatLog == null || count <= 0) return messages;
+        
+        for (String line : chatLog.tail(count)) {
+            Message message = parseChatEntry(line);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
     }
     
     /**
      * Get recent server logs (last n lines)
      */
     public List<String> getRecentServerLogs(int lines) {
-        return getRecentLogs(LOG_DIR + File.separator + SERVER_LOG_FILE, lines);
+        return getRecentLogs(serverLog, lines);
     }
     
     /**
-     * Get recent logs from a file
+     * Get recent logs from the tail of a store
      */
-    private List<String> getRecentLogs(String filename, int lines) {
-        List<String> allLines = new ArrayList<>();
+    private List<String> getRecentLogs(SegmentedLogStore store, int lines) {
+        if (store == null || lines <= 0) return new ArrayList<>();
         
-        try {
-            allLines = Files.readAllLines(Paths.get(filename));
-            
-            // Return last n lines
-            int startIndex = Math.max(0, allLines.size() - lines);
-            return allLines.subList(startIndex, allLines.size());
-            
-        } catch (IOException e) {
-            System.err.println("Error reading log file: " + e.getMessage());
-            return new ArrayList<>();
-        }
+        flush();
+        return store.tail(lines);
     }
     
     /**
      * Search logs for a specific term
      */
     public List<String> searchLogs(String searchTerm, boolean chatLogs) {
-        String filename = chatLogs ? 
-            LOG_DIR + File.separator + CHAT_LOG_FILE : 
-            LOG_DIR + File.separator + SERVER_LOG_FILE;
+        LogSearchIndex index = chatLogs ? chatIndex : serverIndex;
+        if (index == null) return new ArrayList<>();
         
-        try {
-            return Files.readAllLines(Paths.get(filename))
-                .stream()
-                .filter(line -> line.toLowerCase().contains(searchTerm.toLowerCase()))
-                .collect(Collectors.toList());
-        } catch (IOException e) {
-            System.err.println("Error searching logs: " + e.getMessage());
-            return new ArrayList<>();
-        }
+        flush();
+        return index.search(searchTerm);
     }
     
     /**
      * Clear chat logs
      */
     public void clearChatLogs() {
-        clearLogFile(LOG_DIR + File.separator + CHAT_LOG_FILE);
+        clearLog(chatLog);
         logServerEvent("Chat logs cleared");
     }
     
@@ -195,48 +372,101 @@ public class ChatLogger {
      * Clear server logs
      */
     public void clearServerLogs() {
-        clearLogFile(LOG_DIR + File.separator + SERVER_LOG_FILE);
+        clearLog(serverLog);
     }
     
     /**
-     * Clear a log file
+     * Clear a log store
      */
-    private void clearLogFile(String filename) {
+    private void clearLog(SegmentedLogStore store) {
+        if (store == null) return;
+        
+        // Write out what is queued first so it does not reappear after the header
+        flush();
         try {
-            PrintWriter writer = new PrintWriter(filename);
-            writer.print("");
-            writer.close();
-            
-            String sessionStart = String.format("[%s] ========== Log Cleared ==========",
-                LocalDateTime.now().format(formatter));
-            
-            // Reinitialize the file with header
-            PrintWriter newWriter = new PrintWriter(
-                new BufferedWriter(new FileWriter(filename, true)), true
-            );
-            newWriter.println(sessionStart);
-            newWriter.close();
-            
+            store.clear();
+            store.append(String.format("[%s] ========== Log Cleared ==========",
+                LocalDateTime.now().format(formatter)));
         } catch (IOException e) {
             System.err.println("Error clearing log file: " + e.getMessage());
         }
     }
     
     /**
-     * Close log writers
+     * Write both logs as the old text files into a directory
      */
-    public void close() {
+    public void exportText(Path directory) throws IOException {
+        flush();
+        Files.createDirectories(directory);
+        chatLog.exportText(directory.resolve(CHAT_LOG + TEXT_SUFFIX));
+        serverLog.exportText(directory.resolve(SERVER_LOG + TEXT_SUFFIX));
+    }
+    
+    /**
+     * Drain the queue, then close the stores
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
         String sessionEnd = String.format("[%s] ========== Server Session Ended ==========",
             LocalDateTime.now().format(formatter));
         
-        if (chatLogWriter != null) {
-            chatLogWriter.println(sessionEnd);
-            chatLogWriter.close();
+        try {
+            if (chatLog != null) {
+                chatLog.append(sessionEnd);
+                chatLog.close();
+            }
+            
+            if (serverLog != null) {
+                serverLog.append(sessionEnd);
+                serverLog.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing log files: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Export the logs of this or a running server as text:
+     *   java server.ChatLogger export [directory]   (default: logs/export)
+     * Existing text files are never overwritten, since logs/ holds the legacy
+     * files the stores were imported from.
+     */
+    public static void main(String[] args) {
+        if (args.length == 0 || !"export".equals(args[0])) {
+            System.err.println("Usage: java server.ChatLogger export [directory]");
+            System.exit(2);
+        }
+        Path target = args.length > 1 ? Paths.get(args[1]) : Paths.get(LOG_DIR, EXPORT_DIR);
+        for (String name : new String[] {CHAT_LOG, SERVER_LOG}) {
+            if (Files.exists(target.resolve(name + TEXT_SUFFIX))) {
+                System.err.println("Not overwriting " + target.resolve(name + TEXT_SUFFIX) + "; choose another directory");
+                System.exit(1);
+            }
         }
         
-        if (serverLogWriter != null) {
-            serverLogWriter.println(sessionEnd);
-            serverLogWriter.close();
+        try {
+            Files.createDirectories(target);
+            for (String name : new String[] {CHAT_LOG, SERVER_LOG}) {
+                SegmentedLogStore store = new SegmentedLogStore(
+                    Paths.get(LOG_DIR, name), ServerConfig.logSegmentBytes(), true);
+                Path file = target.resolve(name + TEXT_SUFFIX);
+                store.exportText(file);
+                System.out.println("Exported " + store.size() + " lines to " + file);
+            }
+        } catch (IOException e) {
+            System.err.println("Error exporting logs: " + e.getMessage());
+            System.exit(1);
         }
     }
 }
@@ -0,0 +1,44 @@
+package server;
+
+import common.EncodedFrame;
+import common.Message;
+
+/**
+ * A logged-in chat session as seen by the routing code in Server.
+ * Implemented by the blocking ClientHandler and by the selector-based
+ * NioChatServer sessions so both can share the same client map.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queue or write a message to this client
+     */
+    void sendMessage(Message message);
+
+    /**
+     * Queue or write an already encoded message; used for fan-out so one
+     * encoding is shared by every recipient
+     */
+    void sendFrame(EncodedFrame frame);
+
+    /**
+     * Close the connection and unregister the user
+     */
+    void disconnect();
+
+    String getUsername();
+
+    String getClientAddress();
+
+    boolean isRunning();
+
+    /**
+     * Messages waiting to be written to this client
+     */
+    int getQueueDepth();
+
+    /**
+     * Average time spent writing a batch of messages to the socket
+     */
+    double getAverageWriteMillis();
+}
@@ -1,34 +1,46 @@
 package server;
 
 import common.Constants;
+import common.EncodedFrame;
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientConnection {
     private final Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private final byte[] prefix;
+    private MessageIO io;
+    private volatile OutboundQueue outbound; // started once the connection is authenticated
     private String username;
     private boolean running;
     private boolean isAdmin = false;
+    private volatile AdminEventBus.Subscription adminEvents;
 
     public ClientHandler(Socket socket) {
+        this(socket, new byte[0]);
+    }
+
+    /**
+     * @param prefix bytes already read from the socket, e.g. by NioChatServer
+     *               before it handed over an object-stream client
+     */
+    public ClientHandler(Socket socket, byte[] prefix) {
         this.socket = socket;
+        this.prefix = prefix;
         this.running = true;
     }
 
     @Override
     public void run() {
         try {
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            // Binary clients announce themselves, older clients get object streams
+            io = MessageIO.accept(socket, prefix);
 
-            Message loginMessage = (Message) input.readObject();
+            Message loginMessage = io.read();
             
             if (MessageType.ADMIN_LOGIN.equals(loginMessage.getType())) {
                 handleAdminLogin(loginMessage);
@@ -48,7 +60,7 @@ public class ClientHandler implements Runnable {
 
         } catch (SocketException e) {
             System.out.println("Connection lost with " + username);
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             if (running) {
                 System.err.println("Error in ClientHandler for " + username + ": " + e.getMessage());
             }
@@ -58,22 +70,12 @@ public class ClientHandler implements Runnable {
     }
 
     private void handleAdminLogin(Message loginMessage) throws IOException {
-        String[] credentials = loginMessage.getContent().split(":");
-        
-        if (credentials.length == 2 && 
-            Constants.ADMIN_USERNAME.equals(credentials[0]) && 
-            Constants.ADMIN_PASSWORD.equals(credentials[1])) {
-            
+        if (AdminCommands.authenticate(loginMessage)) {
             isAdmin = true;
             username = "ADMIN";
+            outbound = OutboundQueue.start(io, username, this::disconnect);
             Server.addAdminSocket(socket);
-            
-            sendMessage(new Message(MessageType.ADMIN_AUTH_SUCCESS, "SERVER", "Admin authentication successful"));
-            
-            sendConnectedClientsList();
-            sendChatHistory();
-            sendSystemStats();
-            
+            adminEvents = AdminCommands.open(this);
         } else {
             sendMessage(new Message(MessageType.ADMIN_AUTH_FAILED, "SERVER", "Invalid admin credentials"));
             disconnect();
@@ -81,77 +83,78 @@ public class ClientHandler implements Runnable {
     }
 
     private void handleClientLogin(Message loginMessage) throws IOException {
-        username = loginMessage.getContent();
+        String requestedName = SessionRegistry.loginName(loginMessage.getContent());
+        String token = SessionRegistry.loginToken(loginMessage.getContent());
         
-        if (username == null || username.trim().isEmpty()) {
+        if (requestedName == null || requestedName.trim().isEmpty()) {
             sendMessage(new Message(MessageType.ERROR, "SERVER", "Username cannot be empty"));
             disconnect();
             return;
         }
         
-        if (username.length() > Constants.MAX_USERNAME_LENGTH) {
+        if (requestedName.length() > Constants.MAX_USERNAME_LENGTH) {
             sendMessage(new Message(MessageType.ERROR, "SERVER", "Username too long"));
             disconnect();
             return;
         }
         
-        if (Server.getConnectedClients().stream().anyMatch(c -> c.contains(username))) {
-            sendMessage(new Message(MessageType.ERROR, "SERVER", "Username already taken"));
+        // Removing a session this connection does not own is a no-op, so the name can be set first
+        username = requestedName;
+        
+        // The queue must exist before the session does, since broadcasts reach the session at once
+        outbound = OutboundQueue.start(io, username, this::disconnect);
+        SessionRegistry.Session session = token != null
+            ? Server.resumeClient(username, token, this)
+            : Server.addClient(username, this);
+        
+        if (session == null) {
+            outbound.close();
+            outbound = null;
+            sendMessage(new Message(MessageType.ERROR, "SERVER",
+                token != null ? "Session expired, log in again" : "Username already taken"));
             disconnect();
             return;
         }
         
-        Server.addClient(username, this);
-        sendMessage(new Message(MessageType.LOGIN, "SERVER", "Login successful"));
+        sendMessage(new Message(MessageType.LOGIN, "SERVER", session.loginReply()));
     }
 
-    private void handleAdminCommands() throws IOException, ClassNotFoundException {
+    private void handleAdminCommands() throws IOException {
         while (running) {
-            Message message = (Message) input.readObject();
-            String messageType = message.getType();
-            
-            switch (messageType) {
-                case MessageType.GET_CONNECTED_CLIENTS:
-                    sendConnectedClientsList();
-                    break;
-                    
-                case MessageType.GET_CHAT_HISTORY:
-                    sendChatHistory();
-                    break;
-                    
-                case MessageType.GET_SYSTEM_STATS:
-                    sendSystemStats();
-                    break;
-                    
-                case MessageType.KICK_USER:
-                    handleKickUser(message.getContent());
-                    break;
-                    
-                case MessageType.LOGOUT:
-                    return;
-                    
-                default:
-                    sendMessage(new Message(MessageType.ERROR, "SERVER", "Unknown command"));
+            if (!AdminCommands.handle(this, io.read())) {
+                return;
             }
         }
     }
 
-    private void handleClientMessages() throws IOException, ClassNotFoundException {
+    private void handleClientMessages() throws IOException {
         while (running) {
-            Message message = (Message) input.readObject();
+            Message message = io.read();
             String messageType = message.getType();
             
             switch (messageType) {
                 case MessageType.PUBLIC_MESSAGE:
-                    Server.broadcastMessage(new Message(MessageType.MESSAGE_BROADCAST, username, message.getContent()));
+                    if (Server.acceptChatContent(this, message.getContent())) {
+                        Server.broadcastMessage(new Message(MessageType.MESSAGE_BROADCAST, username, message.getContent()));
+                    }
                     break;
                     
                 case MessageType.PRIVATE_MESSAGE:
-                    Server.sendPrivateMessage(username, message.getReceiver(), message.getContent());
+                    if (Server.acceptChatContent(this, message.getContent())) {
+                        Server.sendPrivateMessage(username, message.getReceiver(), message.getContent());
+                    }
                     break;
                     
                 case MessageType.FILE_TRANSFER:
-                    Server.incrementFileTransfers();
+                    Server.recordFileTransfer(username, message);
+                    break;
+                    
+                case MessageType.FILE_METADATA:
+                case MessageType.FILE_TRANSFER_ACCEPT:
+                case MessageType.FILE_TRANSFER_REJECT:
+                case MessageType.FILE_COMPLETE:
+                case MessageType.FILE_ERROR:
+                    Server.relayFileControl(username, message);
                     break;
                     
                 case MessageType.LOGOUT:
@@ -163,45 +166,29 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void sendConnectedClientsList() throws IOException {
-        String clientList = String.join("\n", Server.getConnectedClients());
-        if (clientList.isEmpty()) {
-            clientList = "No clients connected";
-        }
-        sendMessage(new Message(MessageType.CONNECTED_CLIENTS_LIST, "SERVER", clientList));
-    }
-
-    private void sendChatHistory() throws IOException {
-        StringBuilder history = new StringBuilder();
-        for (Message msg : Server.getChatHistory()) {
-            history.append(msg.toString()).append("\n");
-        }
-        
-        if (history.length() == 0) {
-            history.append("No chat history available");
-        }
-        
-        sendMessage(new Message(MessageType.CHAT_HISTORY_DATA, "SERVER", history.toString()));
-    }
-
-    private void sendSystemStats() throws IOException {
-        String stats = Server.getSystemStats();
-        sendMessage(new Message(MessageType.SYSTEM_STATS_DATA, "SERVER", stats));
+    @Override
+    public void sendMessage(Message message) {
+        sendFrame(EncodedFrame.of(message));
     }
 
-    private void handleKickUser(String targetUsername) throws IOException {
-        if (Server.kickUser(targetUsername)) {
-            sendMessage(new Message(MessageType.KICK_SUCCESS, "SERVER", "User " + targetUsername + " has been kicked"));
-        } else {
-            sendMessage(new Message(MessageType.KICK_FAILED, "SERVER", "User " + targetUsername + " not found"));
+    @Override
+    public void sendFrame(EncodedFrame frame) {
+        OutboundQueue queue = outbound;
+        if (queue != null) {
+            if (!queue.offer(frame)) {
+                disconnect();
+            }
+            return;
         }
+        sendDirect(frame);
     }
 
-    public synchronized void sendMessage(Message message) {
+    // Used before login, when replies are written on the reading thread
+    private synchronized void sendDirect(EncodedFrame frame) {
         try {
-            if (output != null && socket.isConnected() && !socket.isClosed()) {
-                output.writeObject(message);
-                output.flush();
+            if (io != null && socket.isConnected() && !socket.isClosed()) {
+                io.sendFrame(frame);
+                io.flush();
             }
         } catch (IOException e) {
             System.err.println("Error sending message to " + username + ": " + e.getMessage());
@@ -209,35 +196,59 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    @Override
     public void disconnect() {
         if (!running) return;
         
         running = false;
         
+        if (outbound != null) {
+            outbound.close();
+        }
+        
         if (isAdmin) {
+            AdminEventBus.unsubscribe(adminEvents);
             Server.removeAdminSocket(socket);
         } else if (username != null) {
-            Server.removeClient(username);
+            Server.removeClient(username, this);
         }
         
         try {
-            if (input != null) input.close();
-            if (output != null) output.close();
+            if (io != null) io.close();
             if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
             System.err.println("Error closing connection: " + e.getMessage());
         }
     }
 
+    @Override
     public String getUsername() {
         return username;
     }
 
+    @Override
     public String getClientAddress() {
         return socket.getInetAddress().getHostAddress();
     }
     
+    @Override
     public boolean isRunning() {
         return running && !socket.isClosed();
     }
+    
+    @Override
+    public int getQueueDepth() {
+        OutboundQueue queue = outbound;
+        return queue == null ? 0 : queue.getDepth();
+    }
+    
+    @Override
+    public double getAverageWriteMillis() {
+        OutboundQueue queue = outbound;
+        return queue == null ? 0 : queue.getAverageWriteMillis();
+    }
+    
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
 }
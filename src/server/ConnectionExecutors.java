@@ -0,0 +1,113 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run per-connection work for the chat server,
+ * the web admin server, the HTTP file server and TestServer.
+ *
+ * Modes:
+ *   platform - a new (or reused idle) platform thread per connection
+ *   virtual  - a virtual thread per connection (Java 21+, falls back to platform)
+ *   pool     - a fixed number of platform threads; extra connections wait in a queue
+ */
+public final class ConnectionExecutors {
+
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+    public static final String POOL = "pool";
+
+    private ConnectionExecutors() {
+        throw new UnsupportedOperationException("Cannot instantiate ConnectionExecutors class");
+    }
+
+    /**
+     * Create an executor using the mode configured in ServerConfig
+     */
+    public static ExecutorService create(String name) {
+        return create(name, ServerConfig.executorMode(), ServerConfig.executorPoolSize(), false);
+    }
+
+    /**
+     * Create an executor using the configured mode with daemon worker threads
+     */
+    public static ExecutorService createDaemon(String name) {
+        return create(name, ServerConfig.executorMode(), ServerConfig.executorPoolSize(), true);
+    }
+
+    /**
+     * Create a daemon executor that never makes a task wait for a thread, whatever the configured
+     * mode: virtual threads where available, otherwise a cached pool of platform threads. For work
+     * that may block on one client, so that it cannot hold up the tasks of others.
+     */
+    public static ExecutorService createUnbounded(String name) {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        return virtual != null ? virtual : Executors.newCachedThreadPool(namedFactory(name, true));
+    }
+
+    public static ExecutorService create(String name, String mode, int poolSize, boolean daemon) {
+        ThreadFactory factory = namedFactory(name, daemon);
+
+        switch (mode.toLowerCase()) {
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                System.err.println("Virtual threads are not available on Java "
+                        + System.getProperty("java.version") + ", using platform threads for " + name);
+                return Executors.newCachedThreadPool(factory);
+
+            case POOL:
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize,
+                        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+
+            case PLATFORM:
+                return Executors.newCachedThreadPool(factory);
+
+            default:
+                System.err.println("Unknown executor mode '" + mode + "', using " + PLATFORM);
+                return Executors.newCachedThreadPool(factory);
+        }
+    }
+
+    /**
+     * Whether the running JVM supports the virtual executor mode
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively so the server still compiles and runs on Java 11-20
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedFactory(String name, boolean daemon) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+}
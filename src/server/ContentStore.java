@@ -0,0 +1,247 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed storage behind the HTTP file server.
+ *
+ * Each distinct file body is stored once under objects/xx/SHA256, hashed
+ * while it streams in. Upload names map to hashes in an append-only index
+ * (index.tsv: name, hash, size per line, later lines win), so the same
+ * attachment shared under several names or in several rooms takes the disk
+ * space of one copy. A client that already knows the hash can ask whether
+ * the content exists and skip sending it.
+ */
+public class ContentStore {
+
+    /**
+     * Where a name points: the content hash and its size
+     */
+    public static final class Entry {
+        private final String hash;
+        private final long size;
+
+        Entry(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Result of storing an upload
+     */
+    public static final class Stored {
+        private final Entry entry;
+        private final boolean duplicate;
+        private final boolean mismatch;
+
+        Stored(Entry entry, boolean duplicate, boolean mismatch) {
+            this.entry = entry;
+            this.duplicate = duplicate;
+            this.mismatch = mismatch;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        /**
+         * Whether the content was already stored, so the upload used no new disk space
+         */
+        public boolean isDuplicate() {
+            return duplicate;
+        }
+
+        /**
+         * Whether the body did not hash to the expected value, in which case nothing was stored
+         */
+        public boolean isMismatch() {
+            return mismatch;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path objects;
+    private final Path index;
+    private final Map<String, Entry> names = new ConcurrentHashMap<>();
+
+    public ContentStore(Path dir) throws IOException {
+        this.objects = dir.resolve("objects");
+        this.index = dir.resolve("index.tsv");
+        Files.createDirectories(objects);
+        loadIndex();
+    }
+
+    /**
+     * The content a name points to, or null if the name was never uploaded here
+     */
+    public Entry lookup(String name) {
+        return names.get(name);
+    }
+
+    public boolean contains(String hash) {
+        return isValidHash(hash) && Files.isRegularFile(blob(hash));
+    }
+
+    public Path blob(String hash) {
+        return objects.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * Point a name at content that is already stored
+     */
+    public synchronized void link(String name, Entry entry) throws IOException {
+        String line = name + "\t" + entry.hash + "\t" + entry.size + "\n";
+        try (FileChannel out = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+        }
+        names.put(name, entry);
+    }
+
+    /**
+     * The stored size of a hash, for linking a name without an upload
+     */
+    public Entry entryFor(String hash) throws IOException {
+        return contains(hash) ? new Entry(hash, Files.size(blob(hash))) : null;
+    }
+
+    /**
+     * Stream a body into the store, hashing it on the way
+     *
+     * @param buffer       copy buffer to use
+     * @param maxSize      largest accepted body
+     * @param expectedHash the hash the client claimed for the body, or null
+     * @return the stored content, or null if the body was larger than maxSize
+     */
+    public Stored store(InputStream body, byte[] buffer, long maxSize, String expectedHash) throws IOException {
+        MessageDigest sha256 = newDigest();
+        Path partial = Files.createTempFile(objects, ".upload-", ".part");
+        try {
+            long total = 0;
+            try (InputStream is = body;
+                 FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    total += read;
+                    if (total > maxSize) {
+                        return null;
+                    }
+                    sha256.update(buffer, 0, read);
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                }
+            }
+
+            Entry entry = new Entry(toHex(sha256.digest()), total);
+            if (expectedHash != null && !expectedHash.equals(entry.hash)) {
+                return new Stored(entry, false, true); // the partial file is deleted below
+            }
+            Path blob = blob(entry.hash);
+            if (Files.isRegularFile(blob)) {
+                return new Stored(entry, true, false);
+            }
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.move(partial, blob, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, blob);
+            } catch (FileAlreadyExistsException e) {
+                return new Stored(entry, true, false); // an identical upload finished first
+            }
+            return new Stored(entry, false, false);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    public static boolean isValidHash(String hash) {
+        if (hash == null || hash.length() != 64) return false;
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!Files.exists(index)) return;
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 3 || !isValidHash(fields[1])) continue;
+                try {
+                    names.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2])));
+                    lines++;
+                } catch (NumberFormatException e) {
+                    // skip a torn line
+                }
+            }
+        }
+
+        // Names re-uploaded many times leave stale lines behind; rewrite the index once they dominate
+        if (lines > 2 * names.size() + 1024) {
+            compactIndex();
+        }
+    }
+
+    private void compactIndex() throws IOException {
+        Path compacted = Files.createTempFile(objects, ".index-", ".tsv");
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> e : names.entrySet()) {
+            sb.append(e.getKey()).append('\t').append(e.getValue().hash).append('\t')
+              .append(e.getValue().size).append('\n');
+        }
+        Files.write(compacted, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(compacted, index, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,636 @@
+package server;
+
+import common.AdminEvent;
+import common.Constants;
+import common.FileRelay;
+import common.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries file bytes from sender to receiver on FILE_TRANSFER_PORT.
+ *
+ * A transfer is registered when its FILE_METADATA offer passes through the
+ * chat server. The sender then uploads to a spool file with
+ * FileChannel.transferFrom, and the receiver downloads from it with
+ * FileChannel.transferTo, which the kernel serves straight from the page
+ * cache to the socket. The download may start as soon as the first slice is
+ * spooled and follows the upload, so a transfer costs one pass over the file
+ * on each side and the bytes are never copied into the Java heap. Either side
+ * may split the file into frame-aligned ranges and move them over several
+ * connections at once.
+ *
+ * The spool file is deleted once the receiver has read everything, when the
+ * offer is rejected or cancelled, or when the transfer stalls for longer
+ * than the idle timeout; a sweep every half timeout finds those. A file that is fully spooled and waiting for the
+ * receiver to accept gets the longer accept timeout instead. A sender or receiver whose connection drops can
+ * reconnect before then and continue where it stopped. See common.FileRelay
+ * for the header lines and the chunk framing, which the relay passes through
+ * untouched. For compressed offers it reads just the length at the start of
+ * each frame, so that it can place the frame in its slot and skip the rest of
+ * the slot on the way out.
+ */
+public class FileRelayServer implements Runnable {
+
+    private static final MetricsRegistry.Counter bytesIn = MetricsRegistry.counter(
+            "chat_relay_bytes_in_total", "File bytes spooled from senders");
+    private static final MetricsRegistry.Counter bytesOut = MetricsRegistry.counter(
+            "chat_relay_bytes_out_total", "File bytes sent to receivers");
+    private static final MetricsRegistry.Counter refused = MetricsRegistry.counter(
+            "chat_relay_refused_total", "Relay connections refused");
+
+    private static final long REGISTRATION_WAIT_MILLIS = 5000;
+    // The header is read on a pooled thread before authentication, so a silent connection may not hold it long
+    private static final int HEADER_TIMEOUT_MILLIS = 10000;
+
+    private final int port;
+    private final SessionRegistry sessions;
+    private final Path spoolDir = Paths.get(ServerConfig.relaySpoolDir());
+    private final int chunkBytes = ServerConfig.relayChunkBytes();
+    private final long idleNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.relayIdleMillis());
+    private final long acceptNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.relayAcceptMillis());
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private ServerSocketChannel serverChannel;
+    private ExecutorService connectionExecutor;
+    private ScheduledExecutorService sweeper;
+    private volatile boolean running = false;
+
+    public FileRelayServer(int port, SessionRegistry sessions) {
+        this.port = port;
+        this.sessions = sessions;
+        MetricsRegistry.gauge("chat_relay_transfers", "Relayed transfers waiting or in progress", () -> transfers.size());
+    }
+
+    public void start() {
+        running = true;
+        connectionExecutor = ConnectionExecutors.createDaemon("file-relay");
+        // Stalled transfers are dropped on a timer, not only when the next offer arrives
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-relay-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long sweepMillis = TimeUnit.NANOSECONDS.toMillis(idleNanos) / 2;
+        sweeper.scheduleWithFixedDelay(this::sweepIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        Thread acceptor = new Thread(this, "file-relay-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Files.createDirectories(spoolDir);
+            deleteLeftoverSpoolFiles();
+
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("✓ File relay started on port " + port);
+
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                connectionExecutor.execute(() -> handle(channel));
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("File relay error: " + e.getMessage());
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file relay: " + e.getMessage());
+        }
+        for (Transfer transfer : transfers.values()) {
+            discard(transfer);
+        }
+    }
+
+    // ============ TRANSFERS ============
+
+    /**
+     * Accept a FILE_METADATA offer for relaying
+     *
+     * @return null if registered, otherwise the reason it was refused
+     */
+    public String register(String sender, Message offer) {
+        String fileId = offer.getFileId();
+        if (!FileRelay.isValidFileId(fileId)) return "Invalid file ID";
+        if (offer.getFileSize() < 0 || offer.getFileSize() > Constants.MAX_FILE_SIZE) return "File too large";
+
+        Transfer transfer = new Transfer(fileId, sender, offer, spoolDir.resolve(fileId + ".part"));
+        if (transfers.putIfAbsent(fileId, transfer) != null) return "Duplicate file ID";
+
+        synchronized (transfers) {
+            transfers.notifyAll(); // a relay connection may already be waiting for this offer
+        }
+        return null;
+    }
+
+    /**
+     * Drop a transfer after a rejection or cancellation by either party
+     */
+    public void cancel(String fileId, String username) {
+        Transfer transfer = fileId == null ? null : transfers.get(fileId);
+        if (transfer != null && (transfer.sender.equals(username) || transfer.receiver.equals(username))) {
+            discard(transfer);
+        }
+    }
+
+    private void discard(Transfer transfer) {
+        transfers.remove(transfer.fileId, transfer);
+        transfer.close();
+    }
+
+    private void sweepIdle() {
+        long now = System.nanoTime();
+        for (Iterator<Transfer> it = transfers.values().iterator(); it.hasNext(); ) {
+            Transfer transfer = it.next();
+            if (transfer.isIdle(now, idleNanos, acceptNanos)) {
+                it.remove();
+                transfer.close();
+            }
+        }
+    }
+
+    // The sender may reach the relay before its offer has been routed
+    private Transfer awaitTransfer(String fileId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REGISTRATION_WAIT_MILLIS;
+        synchronized (transfers) {
+            Transfer transfer;
+            long remaining;
+            while ((transfer = transfers.get(fileId)) == null
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                transfers.wait(remaining);
+            }
+            return transfer;
+        }
+    }
+
+    private void deleteLeftoverSpoolFiles() {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDir, "*.part")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        } catch (IOException e) {
+            System.err.println("Error cleaning relay spool: " + e.getMessage());
+        }
+    }
+
+    // ============ CONNECTIONS ============
+
+    private void handle(SocketChannel socket) {
+        try (SocketChannel channel = socket) {
+            OutputStream out = Channels.newOutputStream(channel);
+
+            // Channel reads ignore SO_TIMEOUT, so the header is read through the socket's own stream
+            channel.socket().setSoTimeout(HEADER_TIMEOUT_MILLIS);
+            String[] request = FileRelay.readLine(channel.socket().getInputStream());
+            channel.socket().setSoTimeout(0);
+            if (request.length < 4) {
+                refuse(out, "Bad request");
+                return;
+            }
+            String role = request[0];
+            String fileId = request[1];
+            String username = request[2];
+            if (!sessions.authenticate(username, request[3])) {
+                refuse(out, "Not logged in");
+                return;
+            }
+
+            Transfer transfer = awaitTransfer(fileId);
+            if (transfer == null) {
+                refuse(out, "Unknown transfer");
+                return;
+            }
+            boolean upload = FileRelay.SEND.equals(role);
+            if (!(upload ? username.equals(transfer.sender)
+                    : FileRelay.RECV.equals(role) && username.equals(transfer.receiver))) {
+                refuse(out, "Not part of this transfer");
+                return;
+            }
+
+            // An optional byte range lets a party use several streams for one transfer
+            long first = parseOffset(request, 4, 0);
+            long end = parseOffset(request, 5, transfer.size);
+            if (first < 0 || end < first || end > transfer.size
+                    || ((upload || transfer.deflated)
+                        && (!transfer.isFrameBoundary(first) || !transfer.isFrameBoundary(end)))) {
+                refuse(out, "Bad range");
+            } else if (upload) {
+                upload(transfer, channel, out, first, end);
+            } else {
+                download(transfer, channel, out, first, end);
+            }
+        } catch (IOException e) {
+            System.err.println("File relay connection error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long parseOffset(String[] request, int index, long missing) {
+        if (request.length <= index) return missing;
+        try {
+            return Long.parseLong(request[index]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void upload(Transfer transfer, SocketChannel channel, OutputStream out, long first, long end)
+            throws IOException {
+        if (!transfer.claim(true, end, channel)) {
+            refuse(out, "Transfer was cancelled");
+            return;
+        }
+        try {
+            FileChannel spool = transfer.channel();
+            long position = transfer.available(first, end);
+            FileRelay.writeLine(out, FileRelay.OK, String.valueOf(position));
+            if (transfer.firstUpload()) {
+                AdminEventBus.publish(AdminEvent.transferStarted(transfer.fileId, transfer.direction(),
+                        transfer.offer.getFilename(), transfer.offer.getFileSize()));
+            }
+
+            if (transfer.deflated) {
+                uploadFrames(transfer, channel, spool, position, end);
+                return;
+            }
+            while (position < end) {
+                long n = spool.transferFrom(channel, position, Math.min(chunkBytes, end - position));
+                if (n <= 0) break; // the sender went away; it may reconnect and continue from here
+                bytesIn.add(n);
+                if (!transfer.received(end, channel, position, n)) break;
+                position += n;
+            }
+        } finally {
+            transfer.release(true, end, channel);
+        }
+    }
+
+    // Compressed offers: spool each frame at the start of its slot; a frame cut off by a dropped connection is sent again
+    private void uploadFrames(Transfer transfer, SocketChannel channel, FileChannel spool, long position, long end)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FileRelay.FRAME_HEADER);
+        while (position < end) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) return; // the sender went away
+            }
+            int frame = transfer.frameIndex(position);
+            int length = header.getInt(0);
+            if (length < 0 || length > transfer.chunkLength(frame)) {
+                throw new IOException("Bad frame length " + length + " in transfer " + transfer.fileId);
+            }
+            header.flip();
+            spool.write(header, position);
+            bytesIn.add(FileRelay.FRAME_HEADER);
+
+            long frameBytes = FileRelay.FRAME_HEADER + length + FileRelay.CHUNK_TRAILER;
+            for (long written = FileRelay.FRAME_HEADER; written < frameBytes; ) {
+                long n = spool.transferFrom(channel, position + written, frameBytes - written);
+                if (n <= 0) return;
+                bytesIn.add(n);
+                written += n;
+            }
+            if (!transfer.receivedFrame(end, channel, frame, frameBytes)) return;
+            position += transfer.frameLength;
+        }
+    }
+
+    private void download(Transfer transfer, SocketChannel channel, OutputStream out, long first, long end)
+            throws IOException, InterruptedException {
+        if (!transfer.claim(false, end, channel)) {
+            refuse(out, "Transfer was cancelled");
+            return;
+        }
+        boolean finished = false;
+        try {
+            FileRelay.writeLine(out, FileRelay.OK, String.valueOf(transfer.size));
+
+            long position = first;
+            while (position < end) {
+                long available = transfer.awaitBytes(end, channel, position, idleNanos);
+                if (available <= position) {
+                    throw new IOException("Transfer " + transfer.fileId + " stalled or was cancelled");
+                }
+                // Frames are sent one at a time, so the unused end of a compressed slot is skipped
+                int frame = transfer.frameIndex(position);
+                long frameStart = (long) frame * transfer.frameLength;
+                long frameEnd = frameStart + transfer.frameBytes(frame);
+                FileChannel spool = transfer.channel();
+                long n = spool.transferTo(position, Math.min(chunkBytes, Math.min(available, frameEnd) - position), channel);
+                bytesOut.add(n);
+                finished = transfer.delivered(position, n);
+                position += n;
+                if (position >= frameEnd) {
+                    position = Math.min(frameStart + transfer.frameLength, transfer.size);
+                }
+            }
+            if (first == end) {
+                finished = transfer.delivered(first, 0);
+            }
+        } finally {
+            transfer.release(false, end, channel);
+        }
+
+        // Whichever stream delivers the last frame ends the transfer
+        if (finished) {
+            discard(transfer);
+            Server.recordRelayedFile(transfer.sender, transfer.offer);
+        }
+    }
+
+    private static void refuse(OutputStream out, String reason) throws IOException {
+        refused.increment();
+        FileRelay.writeLine(out, FileRelay.ERR, reason);
+    }
+
+    /**
+     * One offered file and its spool.
+     *
+     * The spool is allocated at full size up front, so upload streams can write their ranges in any
+     * order. Progress is kept per frame: how many bytes of each frame have arrived and have been sent
+     * on, which is enough for a download stream to follow whichever upload stream fills its range.
+     */
+    private static final class Transfer {
+        private final String fileId;
+        private final String sender;
+        private final String receiver;
+        private final long size;
+        private final long fileSize;
+        private final boolean deflated;
+        private final Message offer;
+        private final Path spool;
+        private final int frameLength;
+
+        // Guarded by this; connections are keyed by the end of the range they carry
+        private FileChannel channel;
+        private final long[] frameBytes; // length of each frame; -1 for a compressed frame not yet spooled
+        private final long[] received;
+        private final long[] delivered;
+        private int deliveredFrames;
+        private boolean finished;
+        private boolean uploadStarted;
+        private boolean downloadStarted;
+        private final Map<Long, SocketChannel> uploaders = new HashMap<>();
+        private final Map<Long, SocketChannel> downloaders = new HashMap<>();
+        private boolean closed;
+        private long lastProgressNanos = System.nanoTime();
+
+        Transfer(String fileId, String sender, Message offer, Path spool) {
+            this.fileId = fileId;
+            this.sender = sender;
+            this.receiver = offer.getReceiver();
+            this.fileSize = offer.getFileSize();
+            this.deflated = FileRelay.isDeflated(offer.getContent());
+            this.size = FileRelay.wireLength(fileSize, deflated);
+            this.frameLength = FileRelay.slotLength(deflated);
+            this.offer = offer;
+            this.spool = spool;
+            int frames = (int) ((size + frameLength - 1) / frameLength);
+            this.frameBytes = new long[frames];
+            for (int frame = 0; frame < frames; frame++) {
+                frameBytes[frame] = deflated ? -1 : Math.min(frameLength, size - (long) frame * frameLength);
+            }
+            this.received = new long[frames];
+            this.delivered = new long[frames];
+        }
+
+        int frameIndex(long position) {
+            return (int) (position / frameLength);
+        }
+
+        /**
+         * Length of the original chunk a frame carries
+         */
+        int chunkLength(int frame) {
+            return (int) Math.min(Constants.FILE_CHUNK_SIZE, fileSize - (long) frame * Constants.FILE_CHUNK_SIZE);
+        }
+
+        synchronized long frameBytes(int frame) {
+            return frameBytes[frame];
+        }
+
+        String direction() {
+            return sender + " -> " + receiver;
+        }
+
+        boolean isFrameBoundary(long offset) {
+            return offset % frameLength == 0 || offset == size;
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            if (closed) throw new IOException("Transfer " + fileId + " was cancelled");
+            if (channel == null) {
+                channel = FileChannel.open(spool, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (size > 0) {
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+            }
+            return channel;
+        }
+
+        /**
+         * Make a connection the uploader or downloader of a range. A reconnecting party takes over
+         * from its previous connection, which may not have noticed yet that its peer is gone.
+         */
+        boolean claim(boolean upload, long end, SocketChannel connection) {
+            SocketChannel previous;
+            synchronized (this) {
+                if (closed) return false;
+                previous = (upload ? uploaders : downloaders).put(end, connection);
+                downloadStarted |= !upload;
+                lastProgressNanos = System.nanoTime();
+                notifyAll();
+            }
+            if (previous != null) {
+                try {
+                    previous.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing superseded relay connection: " + e.getMessage());
+                }
+            }
+            return true;
+        }
+
+        /**
+         * True for the first upload connection of the transfer only, so resumed and parallel ranges
+         * do not announce it again
+         */
+        synchronized boolean firstUpload() {
+            if (uploadStarted) return false;
+            uploadStarted = true;
+            return true;
+        }
+
+        synchronized void release(boolean upload, long end, SocketChannel connection) {
+            (upload ? uploaders : downloaders).remove(end, connection);
+            lastProgressNanos = System.nanoTime();
+            notifyAll();
+        }
+
+        /**
+         * Where the spooled bytes starting at an offset run out, at most the end of the range
+         */
+        synchronized long available(long position, long end) {
+            while (position < end) {
+                int frame = frameIndex(position);
+                long frameStart = (long) frame * frameLength;
+                long spooled = received[frame] == frameBytes[frame]
+                        ? Math.min(frameStart + frameLength, size) // a whole frame counts as its whole slot
+                        : frameStart + received[frame];
+                if (spooled <= position) break;
+                position = Math.min(spooled, end);
+            }
+            return position;
+        }
+
+        /**
+         * Record bytes spooled by an upload stream
+         *
+         * @return false if another connection has taken over the range
+         */
+        synchronized boolean received(long end, SocketChannel connection, long position, long count) {
+            if (uploaders.get(end) != connection) return false;
+            advance(received, position, count);
+            lastProgressNanos = System.nanoTime();
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Record a whole compressed frame spooled by an upload stream
+         *
+         * @return false if another connection has taken over the range
+         */
+        synchronized boolean receivedFrame(long end, SocketChannel connection, int frame, long bytes) {
+            if (uploaders.get(end) != connection) return false;
+            frameBytes[frame] = bytes;
+            received[frame] = bytes;
+            lastProgressNanos = System.nanoTime();
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Record bytes sent on by a download stream
+         *
+         * @return true for the one call that completes delivery of every frame
+         */
+        synchronized boolean delivered(long position, long count) {
+            int before = countFull(delivered, position, count);
+            advance(delivered, position, count);
+            deliveredFrames += countFull(delivered, position, count) - before;
+            if (deliveredFrames < delivered.length || finished) return false;
+            finished = true;
+            return true;
+        }
+
+        // Frames are filled front to back by one stream at a time, so a fill count describes each
+        private void advance(long[] fill, long position, long count) {
+            long end = position + count;
+            while (position < end) {
+                int frame = (int) (position / frameLength);
+                long frameStart = (long) frame * frameLength;
+                long upTo = Math.min(end, frameStart + frameLength);
+                fill[frame] = Math.max(fill[frame], upTo - frameStart);
+                position = upTo;
+            }
+        }
+
+        private int countFull(long[] fill, long position, long count) {
+            int full = 0;
+            int last = (int) (Math.min(size, position + Math.max(count, 1)) - 1) / frameLength;
+            for (int frame = (int) (position / frameLength); frame <= last && frame < fill.length; frame++) {
+                if (fill[frame] == frameBytes[frame]) full++;
+            }
+            return full;
+        }
+
+        /**
+         * Wait until bytes past the position are spooled
+         *
+         * @return where the spooled bytes run out, or -1 if the transfer was cancelled or another
+         *         connection took over the range
+         */
+        synchronized long awaitBytes(long end, SocketChannel connection, long position, long idleNanos)
+                throws InterruptedException {
+            long available;
+            while ((available = available(position, end)) <= position && !closed
+                    && downloaders.get(end) == connection) {
+                long remaining = idleNanos - (System.nanoTime() - lastProgressNanos);
+                if (remaining <= 0) break;
+                wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            }
+            return closed || downloaders.get(end) != connection ? -1 : available;
+        }
+
+        /**
+         * Whether nobody is connected and nothing has happened for too long. A file that is fully
+         * spooled but not yet downloaded is waiting for the receiver to accept the offer, which may
+         * take a person longer than the idle timeout, so it gets acceptNanos instead.
+         */
+        synchronized boolean isIdle(long now, long idleNanos, long acceptNanos) {
+            if (!uploaders.isEmpty() || !downloaders.isEmpty()) return false;
+            long limit = !downloadStarted && isSpooled() ? acceptNanos : idleNanos;
+            return now - lastProgressNanos > limit;
+        }
+
+        private boolean isSpooled() {
+            for (int frame = 0; frame < received.length; frame++) {
+                if (received[frame] != frameBytes[frame]) return false;
+            }
+            return true;
+        }
+
+        void close() {
+            FileChannel open;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                open = channel;
+                notifyAll();
+            }
+            try {
+                if (open != null) open.close();
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                System.err.println("Error deleting relay spool " + spool + ": " + e.getMessage());
+            }
+        }
+    }
+}
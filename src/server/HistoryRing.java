@@ -0,0 +1,181 @@
+package server;
+
+import common.Constants;
+import common.HistoryPage;
+import common.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity history of recent chat messages.
+ *
+ * Writers claim a sequence number with one getAndIncrement and publish the
+ * message into slot (sequence & mask); nothing is ever copied or shifted, and
+ * once the ring is full the oldest slot is simply overwritten. Readers never
+ * block writers: a snapshot walks the last `capacity` sequences and keeps the
+ * slots whose stored sequence matches, skipping any that are not published
+ * yet or that a faster writer has already overwritten.
+ *
+ * Sequence numbers double as cursors for paging through the history, so a
+ * page costs only the slots it walks, not a copy of the whole ring.
+ */
+public class HistoryRing {
+
+    /**
+     * A message and the sequence number it was appended under
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final Message message;
+
+        Entry(long sequence, Message message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public HistoryRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        if (size <= 0) {
+            throw new IllegalArgumentException("History capacity too large: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Append a message and return its sequence number
+     */
+    public long append(Message message) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Entry(sequence, message));
+        return sequence;
+    }
+
+    /**
+     * The most recent messages, oldest first
+     */
+    public List<Message> latest(int limit) {
+        List<Entry> entries = latestEntries(limit);
+        List<Message> messages = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            messages.add(entry.message);
+        }
+        return messages;
+    }
+
+    /**
+     * The most recent entries, oldest first
+     */
+    public List<Entry> latestEntries(int limit) {
+        long end = nextSequence.get();
+        long start = Math.max(end - Math.min(limit, capacity()), 0);
+        return collect(start, end);
+    }
+
+    /**
+     * Every retained message, oldest first
+     */
+    public List<Message> snapshot() {
+        return latest(capacity());
+    }
+
+    /**
+     * A page of messages matching the query, walking from its cursor
+     * towards older or newer messages
+     */
+    public HistoryPage page(HistoryPage.Query query) {
+        long end = nextSequence.get();
+        long oldest = Math.max(end - capacity(), 0);
+        int limit = query.getLimit();
+        List<HistoryPage.Record> records = new ArrayList<>(Math.min(limit, 64));
+        long cursor = query.getCursor();
+        long sequence;
+        int bytes = 0; // a page that reaches MAX_PAYLOAD_SIZE stops, and the next page starts where it stopped
+
+        if (query.isOlder()) {
+            sequence = cursor < 0 ? end - 1 : Math.min(cursor - 1, end - 1);
+            for (; sequence >= oldest && records.size() < limit; sequence--) {
+                Entry entry = slots.get((int) (sequence & mask));
+                if (entry == null || entry.sequence < sequence) continue; // not published yet
+                if (entry.sequence > sequence) {                          // overwritten: past the oldest
+                    sequence = oldest - 1;
+                    break;
+                }
+                if (query.matches(entry.message)) {
+                    bytes += HistoryPage.encodedLength(sequence, entry.message);
+                    if (bytes > Constants.MAX_PAYLOAD_SIZE && !records.isEmpty()) break;
+                    records.add(new HistoryPage.Record(sequence, entry.message));
+                }
+            }
+            Collections.reverse(records);
+            boolean hasOlder = sequence >= oldest;
+            long olderCursor = records.isEmpty() ? sequence + 1 : records.get(0).getSequence();
+            long newerCursor = records.isEmpty() ? olderCursor - 1 : records.get(records.size() - 1).getSequence();
+            return new HistoryPage(records, olderCursor, newerCursor, hasOlder, cursor >= 0 && cursor < end);
+        }
+
+        sequence = Math.max(cursor + 1, oldest);
+        for (; sequence < end && records.size() < limit; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry == null || entry.sequence < sequence) break; // not published yet: resume here next time
+            if (entry.sequence > sequence) continue;               // overwritten while paging
+            if (query.matches(entry.message)) {
+                bytes += HistoryPage.encodedLength(sequence, entry.message);
+                if (bytes > Constants.MAX_PAYLOAD_SIZE && !records.isEmpty()) break;
+                records.add(new HistoryPage.Record(sequence, entry.message));
+            }
+        }
+        long newerCursor = records.isEmpty() ? sequence - 1 : records.get(records.size() - 1).getSequence();
+        long olderCursor = records.isEmpty() ? newerCursor + 1 : records.get(0).getSequence();
+        return new HistoryPage(records, olderCursor, newerCursor, cursor + 1 > oldest, sequence < end);
+    }
+
+    private List<Entry> collect(long start, long end) {
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry != null && entry.sequence == sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Number of messages currently retained
+     */
+    public int size() {
+        return (int) Math.min(nextSequence.get(), capacity());
+    }
+
+    /**
+     * Total number of messages ever appended
+     */
+    public long getAppendedCount() {
+        return nextSequence.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -1,5 +1,6 @@
 package server;
 
+import common.AdminEvent;
 import common.Constants;
 
 import com.sun.net.httpserver.Headers;
@@ -10,34 +11,92 @@ import com.sun.net.httpserver.HttpServer;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Minimal HTTP file server to accept uploads and serve files.
  * Uploads use a simple POST where the client sets header X-Filename.
+ *
+ * Requests run on a bounded worker pool (-Dchat.http.workers), so a slow
+ * client holds one worker rather than the server. Downloads honour a single
+ * Range header with 206 Partial Content, which lets clients resume or fetch
+ * parts of a file in parallel. Uploads stream into a temporary file that
+ * replaces the target only when complete. File bytes are copied through one
+ * reusable buffer per worker.
+ *
+ * Uploads are stored by content (see ContentStore): a file already on the
+ * server costs no disk space when uploaded again. A client that sends the
+ * X-Content-SHA256 header with an empty body claims existing content
+ * without sending it; 404 means the server needs the bytes.
  */
 public class HttpFileServer {
+    private static final MetricsRegistry.Counter uploadedBytes = MetricsRegistry.counter(
+            "chat_file_upload_bytes_total", "Bytes received by the HTTP file server");
+    private static final MetricsRegistry.Counter downloadedBytes = MetricsRegistry.counter(
+            "chat_file_download_bytes_total", "Bytes served by the HTTP file server");
+    private static final MetricsRegistry.Counter dedupHits = MetricsRegistry.counter(
+            "chat_file_dedup_hits_total", "Uploads whose content was already stored");
+    private static final MetricsRegistry.Counter dedupBytes = MetricsRegistry.counter(
+            "chat_file_dedup_bytes_saved_total", "Disk bytes not written because the content was already stored");
+    private static final MetricsRegistry.Counter rangeRequests = MetricsRegistry.counter(
+            "chat_file_range_requests_total", "Downloads answered with 206 Partial Content");
+    private static final LatencyHistogram transferLatency = MetricsRegistry.histogram(
+            "chat_file_transfer_seconds", "Duration of one HTTP upload or download");
+    private static final AtomicLong transferIds = new AtomicLong();
+    private static final AtomicLong activeTransfers = new AtomicLong();
+    private static final String HASH_HEADER = "X-Content-SHA256";
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    // The exchange body is a stream, so file bytes go through a buffer; each worker keeps its own
+    private static final ThreadLocal<byte[]> BUFFERS =
+            ThreadLocal.withInitial(() -> new byte[ServerConfig.httpFileBufferBytes()]);
+
+    static {
+        MetricsRegistry.gauge("chat_file_transfers_active", "HTTP uploads and downloads in progress",
+                activeTransfers::get);
+    }
+
     public static void startFileServer(int port) throws IOException {
         Path dir = Paths.get(Constants.FILES_DIR);
         if (!Files.exists(dir))
             Files.createDirectories(dir);
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/upload", new UploadHandler(dir));
-        server.createContext("/files", new FileHandler(dir));
-        server.setExecutor(null);
+        ContentStore store = new ContentStore(dir);
+        int workers = ServerConfig.httpFileWorkers();
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), workers);
+        server.createContext("/upload", new UploadHandler(dir, store));
+        server.createContext("/files", new FileHandler(dir, store));
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(createExecutor(workers));
         server.start();
-        System.out.println("HTTP file server started on http://" + Constants.SERVER_IP + ":" + port);
+        System.out.println("HTTP file server started on http://" + Constants.SERVER_IP + ":" + port
+                + " (" + workers + " workers)");
+    }
+
+    // Virtual threads are cheap enough to keep one per request; otherwise cap the threads at the worker count
+    private static ExecutorService createExecutor(int workers) {
+        if (ConnectionExecutors.VIRTUAL.equalsIgnoreCase(ServerConfig.executorMode())) {
+            return ConnectionExecutors.create("http-file");
+        }
+        return ConnectionExecutors.create("http-file", ConnectionExecutors.POOL, workers, false);
     }
 
     static class UploadHandler implements HttpHandler {
         private final Path dir;
+        private final ContentStore store;
 
-        UploadHandler(Path dir) {
+        UploadHandler(Path dir, ContentStore store) {
             this.dir = dir;
+            this.store = store;
         }
 
         @Override
@@ -45,7 +104,7 @@ public class HttpFileServer {
             // Add CORS headers
             exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
             exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "POST, OPTIONS");
-            exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Filename");
+            exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Filename, " + HASH_HEADER);
 
             // Handle preflight OPTIONS request
             if ("OPTIONS".equalsIgnoreCase(exchange.getRequestMethod())) {
@@ -65,16 +124,78 @@ public class HttpFileServer {
             }
 
             Path out = dir.resolve(filename).normalize();
-            try (InputStream is = exchange.getRequestBody(); OutputStream os = Files.newOutputStream(out)) {
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = is.read(buffer)) != -1)
-                    os.write(buffer, 0, read);
+            if (!out.startsWith(dir) || out.equals(dir) || out.getFileName().toString().startsWith(".")
+                    || filename.indexOf('\t') >= 0) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            String name = out.getFileName().toString();
+
+            String claimedHash = reqHeaders.getFirst(HASH_HEADER);
+            if (claimedHash != null) {
+                claimedHash = claimedHash.trim().toLowerCase();
+                if (!ContentStore.isValidHash(claimedHash)) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+            }
+
+            long length = contentLength(reqHeaders);
+            if (length > Constants.MAX_FILE_SIZE) {
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+
+            // A hash without a body asks to reuse stored content
+            if (claimedHash != null && length == 0 && !EMPTY_SHA256.equals(claimedHash)) {
+                ContentStore.Entry entry = store.entryFor(claimedHash);
+                if (entry == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                store.link(name, entry);
+                dedupHits.increment();
+                dedupBytes.add(entry.getSize());
+                sendUploadResult(exchange, name, entry, true);
+                return;
+            }
+
+            String id = String.valueOf(transferIds.incrementAndGet());
+            AdminEventBus.publish(AdminEvent.transferStarted(id, "upload", name, length));
+            long start = System.nanoTime();
+            ContentStore.Stored stored;
+            activeTransfers.incrementAndGet();
+            try {
+                stored = store.store(exchange.getRequestBody(), BUFFERS.get(), Constants.MAX_FILE_SIZE,
+                        claimedHash);
+            } finally {
+                activeTransfers.decrementAndGet();
+            }
+            if (stored == null) {
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+            if (stored.isMismatch()) {
+                exchange.sendResponseHeaders(400, -1); // the body is not what the client said it was
+                return;
             }
+            ContentStore.Entry entry = stored.getEntry();
+            store.link(name, entry);
+            if (stored.isDuplicate()) {
+                dedupHits.increment();
+                dedupBytes.add(entry.getSize());
+            }
+            uploadedBytes.add(entry.getSize());
+            transferLatency.recordSince(start);
+            AdminEventBus.publish(AdminEvent.transferFinished(id, "upload", name, entry.getSize()));
+            sendUploadResult(exchange, name, entry, stored.isDuplicate());
+        }
 
-            String fileUrl = "http://" + Constants.SERVER_IP + ":" + Constants.FILE_HTTP_PORT + "/files/"
-                    + out.getFileName().toString();
-            String resp = "{\"url\":\"" + fileUrl + "\", \"filename\":\"" + out.getFileName().toString() + "\"}";
+        private void sendUploadResult(HttpExchange exchange, String name, ContentStore.Entry entry,
+                boolean deduplicated) throws IOException {
+            String fileUrl = "http://" + Constants.SERVER_IP + ":" + Constants.FILE_HTTP_PORT + "/files/" + name;
+            String resp = "{\"url\":\"" + fileUrl + "\", \"filename\":\"" + name + "\", \"sha256\":\""
+                    + entry.getHash() + "\", \"deduplicated\":" + deduplicated + "}";
             exchange.getResponseHeaders().add("Content-Type", "application/json");
             byte[] bytes = resp.getBytes("UTF-8");
             exchange.sendResponseHeaders(200, bytes.length);
@@ -86,36 +207,174 @@ public class HttpFileServer {
 
     static class FileHandler implements HttpHandler {
         private final Path dir;
+        private final ContentStore store;
 
-        FileHandler(Path dir) {
+        FileHandler(Path dir, ContentStore store) {
             this.dir = dir;
+            this.store = store;
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // Add CORS headers
             exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "Content-Range, Accept-Ranges, ETag");
+
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equalsIgnoreCase(method);
+            if (!head && !"GET".equalsIgnoreCase(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
 
             URI req = exchange.getRequestURI();
             String path = req.getPath(); // /files/filename
             String filename = path.substring(path.indexOf("/files/") + 7);
-            Path file = dir.resolve(filename).normalize();
-            if (!Files.exists(file) || !file.startsWith(dir)) {
+            ContentStore.Entry entry = store.lookup(filename);
+            Path file = entry != null ? store.blob(entry.getHash()) : legacyFile(filename);
+            if (file == null || !Files.isRegularFile(file)) {
                 exchange.sendResponseHeaders(404, -1);
                 return;
             }
 
-            String mime = Files.probeContentType(file);
+            String mime = URLConnection.guessContentTypeFromName(filename);
+            if (mime == null)
+                mime = Files.probeContentType(file);
             if (mime == null)
                 mime = "application/octet-stream";
-            exchange.getResponseHeaders().add("Content-Type", mime);
-            exchange.sendResponseHeaders(200, Files.size(file));
-            try (OutputStream os = exchange.getResponseBody(); InputStream is = Files.newInputStream(file)) {
-                byte[] buf = new byte[8192];
-                int r;
-                while ((r = is.read(buf)) != -1)
-                    os.write(buf, 0, r);
+            Headers respHeaders = exchange.getResponseHeaders();
+            respHeaders.add("Content-Type", mime);
+            respHeaders.add("Accept-Ranges", "bytes");
+
+            // Stored content never changes under its hash, so the hash is a strong validator
+            if (entry != null) {
+                String etag = "\"" + entry.getHash() + "\"";
+                respHeaders.add("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+            }
+
+            long size = Files.size(file);
+            long[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"), size);
+            if (range != null && range.length == 0) {
+                respHeaders.add("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
             }
+
+            long first = range == null ? 0 : range[0];
+            long length = range == null ? size : range[1] - range[0] + 1;
+            int status = range == null ? 200 : 206;
+            if (range != null) {
+                respHeaders.add("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+                rangeRequests.increment();
+            }
+
+            if (head) {
+                respHeaders.add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            long start = System.nanoTime();
+            String id = String.valueOf(transferIds.incrementAndGet());
+            AdminEventBus.publish(AdminEvent.transferStarted(id, "download", filename, length));
+            // A length of 0 would mean chunked encoding to HttpServer; -1 sends an empty body
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            activeTransfers.incrementAndGet();
+            try (OutputStream os = exchange.getResponseBody();
+                 FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                copyRange(in, first, length, os);
+            } finally {
+                activeTransfers.decrementAndGet();
+            }
+            downloadedBytes.add(length);
+            transferLatency.recordSince(start);
+            AdminEventBus.publish(AdminEvent.transferFinished(id, "download", filename, length));
+        }
+
+        // Files uploaded before the content store existed sit directly in the upload directory
+        private Path legacyFile(String filename) {
+            Path file = dir.resolve(filename).normalize();
+            if (!file.startsWith(dir) || file.getParent() == null || !file.getParent().equals(dir)
+                    || file.getFileName().toString().startsWith(".")
+                    || file.getFileName().toString().equals("index.tsv")) {
+                return null;
+            }
+            return file;
+        }
+    }
+
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = MetricsRegistry.scrape().getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    private static void copyRange(FileChannel in, long position, long count, OutputStream out) throws IOException {
+        byte[] buffer = BUFFERS.get();
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long end = position + count;
+        while (position < end) {
+            wrapped.clear().limit((int) Math.min(buffer.length, end - position));
+            int read = in.read(wrapped, position);
+            if (read < 0) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            out.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * The byte range asked for by a Range header. Only single ranges are
+     * honoured; a list of ranges or a malformed header gets the whole file.
+     *
+     * @return {first, last} (inclusive), null to send the whole file, or an
+     *         empty array if the range lies outside the file
+     */
+    static long[] parseRange(String header, long size) {
+        if (header == null) return null;
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6) || header.indexOf(',') >= 0) return null;
+
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            if (dash == 0) {
+                // Suffix range: the last N bytes
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix <= 0 || size == 0) return new long[0];
+                return new long[] { Math.max(0, size - suffix), size - 1 };
+            }
+
+            long first = Long.parseLong(spec.substring(0, dash).trim());
+            String lastText = spec.substring(dash + 1).trim();
+            long last = lastText.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastText);
+            if (first < 0 || last < first) return null;
+            if (first >= size) return new long[0];
+            return new long[] { first, Math.min(last, size - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long contentLength(Headers headers) {
+        String length = headers.getFirst("Content-Length");
+        if (length == null) return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
@@ -0,0 +1,465 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * Inverted index over a SegmentedLogStore, used by ChatLogger.searchLogs.
+ *
+ * Lines are split into lowercase letter/digit terms. Each segment has its own
+ * index from term to a posting list of record numbers in that segment,
+ * stored as varint-encoded gaps. The active segment's index lives in memory
+ * and is extended by update() after each batch the log writer appends; once
+ * the segment is sealed its index is written next to it as <base>.terms and
+ * loaded again only when a search needs it. Sealed segments without a
+ * .terms file (older logs) are indexed by the first search that reaches them.
+ *
+ * A query matches lines in which every query term is the prefix of a term.
+ * Queries that are more than one bare term (phrases, punctuation) are then
+ * checked against the line text, so results match the old substring search
+ * except that a term must start at a word boundary.
+ *
+ * Each segment is searched as a separate task on a fork-join pool, so older
+ * (possibly compressed) segments are inflated and scanned in parallel.
+ *
+ * Loaded indexes of sealed segments are kept in least recently used order
+ * and dropped once their postings pass chat.log.indexCacheBytes; a dropped
+ * index is read back from its .terms file by the next search that needs it.
+ */
+public class LogSearchIndex {
+    private static final String TERMS_SUFFIX = ".terms";
+    private static final int MAGIC = 0x4c534931; // "LSI1"
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final LatencyHistogram searchLatency = MetricsRegistry.histogram(
+            "chat_log_search_seconds", "Time to answer one log search");
+    private static final ForkJoinPool searchPool = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(), pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("log-search-" + t.getPoolIndex());
+                return t;
+            }, null, false);
+
+    private final SegmentedLogStore store;
+    private final Map<Long, SegmentIndex> indexes = new ConcurrentHashMap<>();
+    private final long cacheBytes = ServerConfig.logIndexCacheBytes();
+    // Guarded by itself; sealed segments whose postings are loaded, by base, with their posting bytes
+    private final LinkedHashMap<Long, Long> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private long loadedBytes;
+
+    public LogSearchIndex(SegmentedLogStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Index lines appended since the last call and write out the index of
+     * any segment sealed since then. Called from the log writer thread.
+     */
+    public void update() {
+        List<SegmentedLogStore.Segment> segments = store.segments();
+        Set<Long> live = new HashSet<>();
+
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentedLogStore.Segment segment = segments.get(i);
+            boolean sealed = i < segments.size() - 1;
+            live.add(segment.baseSequence);
+
+            SegmentIndex index = indexFor(segment);
+            if (!sealed) {
+                index.append(segment);
+            } else if (index.isBuilding()) {
+                index.seal(segment);
+                cached(segment.baseSequence, index);
+            }
+        }
+
+        // Segments removed by clear() or retention
+        for (Long base : new ArrayList<>(indexes.keySet())) {
+            if (!live.contains(base)) {
+                synchronized (loaded) {
+                    Long bytes = loaded.remove(base);
+                    if (bytes != null) loadedBytes -= bytes;
+                }
+                indexes.remove(base).delete();
+            }
+        }
+    }
+
+    /**
+     * Lines containing the query, oldest first
+     */
+    public List<String> search(String query) {
+        long start = System.nanoTime();
+        String needle = query.toLowerCase();
+        List<String> terms = tokenize(needle);
+        boolean verify = terms.size() != 1 || !terms.get(0).equals(needle);
+
+        List<SegmentedLogStore.Segment> segments = store.segments();
+        List<Callable<List<String>>> tasks = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentedLogStore.Segment segment = segments.get(i);
+            boolean sealed = i < segments.size() - 1;
+            tasks.add(() -> searchSegment(segment, sealed, terms, needle, verify));
+        }
+
+        List<String> matches = new ArrayList<>();
+        try {
+            for (Future<List<String>> result : searchPool.invokeAll(tasks)) {
+                matches.addAll(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error searching logs: " + e.getCause());
+        }
+        searchLatency.recordSince(start);
+        return matches;
+    }
+
+    private List<String> searchSegment(SegmentedLogStore.Segment segment, boolean sealed,
+                                       List<String> terms, String needle, boolean verify) {
+        List<String> matches = new ArrayList<>();
+        if (segment.deleted) return matches;
+        int count = segment.count;
+
+        if (terms.isEmpty()) {
+            // Nothing to look up, e.g. only punctuation
+            for (int record = 0; record < count; record++) {
+                String line = segment.read(record);
+                if (line.toLowerCase().contains(needle)) {
+                    matches.add(line);
+                }
+            }
+            return matches;
+        }
+
+        SegmentIndex index = indexFor(segment);
+        BitSet hits = index.find(segment, sealed, terms);
+        if (sealed) {
+            cached(segment.baseSequence, index);
+        }
+        for (int record = hits.nextSetBit(0); record >= 0 && record < count; record = hits.nextSetBit(record + 1)) {
+            String line = segment.read(record);
+            if (!verify || line.toLowerCase().contains(needle)) {
+                matches.add(line);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Bytes used by the posting lists of all segments currently loaded
+     */
+    public long getPostingBytes() {
+        long total = 0;
+        for (SegmentIndex index : indexes.values()) {
+            total += index.postingBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Mark a sealed segment's index as just used, and unload the least recently used ones past the budget
+     */
+    private void cached(long base, SegmentIndex index) {
+        synchronized (loaded) {
+            if (loaded.get(base) == null) {
+                long bytes = index.postingBytes();
+                loaded.put(base, bytes);
+                loadedBytes += bytes;
+            }
+            Iterator<Map.Entry<Long, Long>> eldest = loaded.entrySet().iterator();
+            while (loadedBytes > cacheBytes && loaded.size() > 1) {
+                Map.Entry<Long, Long> entry = eldest.next();
+                SegmentIndex unused = indexes.get(entry.getKey());
+                if (unused != null) {
+                    unused.unload();
+                }
+                loadedBytes -= entry.getValue();
+                eldest.remove();
+            }
+        }
+    }
+
+    private SegmentIndex indexFor(SegmentedLogStore.Segment segment) {
+        return indexes.computeIfAbsent(segment.baseSequence, base -> new SegmentIndex(
+                store.getDirectory().resolve(segment.name + TERMS_SUFFIX)));
+    }
+
+    /**
+     * Lowercase letter/digit runs of an already lowercased line
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    // ============ SEGMENT INDEX ============
+
+    /**
+     * The index of one segment: a growing HashMap while the segment is
+     * active (its terms sorted only when a search needs them), sorted arrays
+     * once it is sealed
+     */
+    private static final class SegmentIndex {
+        private final Path file;
+        private HashMap<String, PostingList> building;
+        private String[] buildingTerms; // sorted keys of building, null when stale
+        private int indexed;
+        private String[] terms;
+        private byte[][] postings;
+
+        SegmentIndex(Path file) {
+            this.file = file;
+        }
+
+        synchronized boolean isBuilding() {
+            return building != null;
+        }
+
+        /**
+         * Index the records appended to the segment since the last call
+         */
+        synchronized void append(SegmentedLogStore.Segment segment) {
+            if (building == null) {
+                building = new HashMap<>();
+                indexed = 0;
+            }
+            int count = segment.count;
+            for (; indexed < count; indexed++) {
+                for (String term : tokenize(segment.read(indexed).toLowerCase())) {
+                    PostingList list = building.get(term);
+                    if (list == null) {
+                        list = new PostingList();
+                        building.put(term, list);
+                        buildingTerms = null;
+                    }
+                    list.add(indexed);
+                }
+            }
+        }
+
+        /**
+         * Freeze the index of a segment that no longer grows and write it out
+         */
+        synchronized void seal(SegmentedLogStore.Segment segment) {
+            append(segment);
+            terms = sortedBuildingTerms();
+            postings = new byte[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                postings[i] = building.get(terms[i]).toBytes();
+            }
+            building = null;
+            buildingTerms = null;
+            write(segment.count);
+        }
+
+        synchronized BitSet find(SegmentedLogStore.Segment segment, boolean sealed, List<String> query) {
+            if (!sealed) {
+                append(segment);
+            } else if (terms == null) {
+                if (building != null || !read(segment.count)) {
+                    if (building == null) {
+                        // Old segment without an index yet
+                        append(segment);
+                    }
+                    seal(segment);
+                }
+            }
+
+            BitSet result = null;
+            for (String prefix : query) {
+                BitSet any = new BitSet();
+                if (building != null) {
+                    String[] sorted = sortedBuildingTerms();
+                    int i = Arrays.binarySearch(sorted, prefix);
+                    for (i = i < 0 ? -i - 1 : i; i < sorted.length && sorted[i].startsWith(prefix); i++) {
+                        building.get(sorted[i]).decodeInto(any);
+                    }
+                } else {
+                    int i = Arrays.binarySearch(terms, prefix);
+                    for (i = i < 0 ? -i - 1 : i; i < terms.length && terms[i].startsWith(prefix); i++) {
+                        PostingList.decode(postings[i], postings[i].length, any);
+                    }
+                }
+                if (result == null) {
+                    result = any;
+                } else {
+                    result.and(any);
+                }
+                if (result.isEmpty()) break;
+            }
+            return result;
+        }
+
+        private String[] sortedBuildingTerms() {
+            if (buildingTerms == null) {
+                buildingTerms = building.keySet().toArray(new String[0]);
+                Arrays.sort(buildingTerms);
+            }
+            return buildingTerms;
+        }
+
+        /**
+         * Drop the postings of a sealed index; the next find reads them back from the file
+         */
+        synchronized void unload() {
+            if (building == null) {
+                terms = null;
+                postings = null;
+            }
+        }
+
+        synchronized long postingBytes() {
+            long total = 0;
+            if (building != null) {
+                for (PostingList list : building.values()) {
+                    total += list.length;
+                }
+            } else if (postings != null) {
+                for (byte[] list : postings) {
+                    total += list.length;
+                }
+            }
+            return total;
+        }
+
+        private void write(int records) {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(records);
+                out.writeInt(terms.length);
+                for (int i = 0; i < terms.length; i++) {
+                    out.writeUTF(terms[i]);
+                    out.writeInt(postings[i].length);
+                    out.write(postings[i]);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing log index " + file + ": " + e.getMessage());
+                return;
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Error writing log index " + file + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Load the index file; false if it is missing or does not match the segment
+         */
+        private boolean read(int records) {
+            if (!Files.isRegularFile(file)) return false;
+
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+                if (in.readInt() != MAGIC || in.readInt() != records) return false;
+                int count = in.readInt();
+                String[] loadedTerms = new String[count];
+                byte[][] loadedPostings = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    loadedTerms[i] = in.readUTF();
+                    loadedPostings[i] = new byte[in.readInt()];
+                    in.readFully(loadedPostings[i]);
+                }
+                terms = loadedTerms;
+                postings = loadedPostings;
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error reading log index " + file + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Error deleting log index " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // ============ POSTING LIST ============
+
+    /**
+     * Ascending record numbers as varint gaps
+     */
+    private static final class PostingList {
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int last = -1;
+
+        void add(int record) {
+            if (record == last) return; // term repeated in one line
+            int gap = record - last;
+            last = record;
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((gap & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            bytes[length++] = (byte) gap;
+        }
+
+        void decodeInto(BitSet records) {
+            decode(bytes, length, records);
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        static void decode(byte[] bytes, int length, BitSet records) {
+            int record = -1;
+            int i = 0;
+            while (i < length) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[i++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                record += gap;
+                records.set(record);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide server metrics.
+ *
+ * Counters are LongAdders, so hot paths on many threads never contend on one
+ * cache line; gauges are read from a supplier when scraped; latencies go into
+ * LatencyHistograms. Everything can be rendered in the Prometheus text format
+ * for /metrics, or as name=value lines for the admin console.
+ */
+public final class MetricsRegistry {
+
+    /**
+     * Anything that can be exported by the registry
+     */
+    interface Metric {
+        String getName();
+
+        void writePrometheus(StringBuilder out);
+
+        void writeSnapshot(Map<String, String> out);
+    }
+
+    private static final Map<String, Metric> METRICS = new ConcurrentHashMap<>();
+    // Registration order, so the output is stable and grouped by subsystem
+    private static final ConcurrentLinkedQueue<Metric> ORDER = new ConcurrentLinkedQueue<>();
+
+    private MetricsRegistry() {
+        throw new UnsupportedOperationException("Cannot instantiate MetricsRegistry class");
+    }
+
+    // ============ REGISTRATION ============
+
+    public static Counter counter(String name, String help) {
+        return register(name, new Counter(name, help), Counter.class);
+    }
+
+    public static LatencyHistogram histogram(String name, String help) {
+        return register(name, new LatencyHistogram(name, help), LatencyHistogram.class);
+    }
+
+    /**
+     * Register a gauge; a later registration under the same name replaces the supplier
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        Gauge gauge = register(name, new Gauge(name, help), Gauge.class);
+        gauge.value = value;
+    }
+
+    private static <T extends Metric> T register(String name, T metric, Class<T> type) {
+        Metric existing = METRICS.putIfAbsent(name, metric);
+        if (existing == null) {
+            ORDER.add(metric);
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as "
+                    + existing.getClass().getSimpleName());
+        }
+        return type.cast(existing);
+    }
+
+    // ============ EXPORT ============
+
+    /**
+     * All metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : ORDER) {
+            metric.writePrometheus(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Flattened metric values, histograms expanded to count/p50/p99/max
+     */
+    public static Map<String, String> snapshot() {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (Metric metric : ORDER) {
+            metric.writeSnapshot(values);
+        }
+        return values;
+    }
+
+    /**
+     * The snapshot as name=value lines, as sent to the admin console
+     */
+    public static String formatSnapshot() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> entry : snapshot().entrySet()) {
+            out.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    // ============ METRIC TYPES ============
+
+    /**
+     * Monotonic counter
+     */
+    public static final class Counter implements Metric {
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void writePrometheus(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        public void writeSnapshot(Map<String, String> out) {
+            out.put(name, String.valueOf(get()));
+        }
+    }
+
+    /**
+     * Value sampled when the metrics are read
+     */
+    static final class Gauge implements Metric {
+        private final String name;
+        private final String help;
+        private volatile LongSupplier value = () -> 0;
+
+        Gauge(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        long get() {
+            return value.getAsLong();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void writePrometheus(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        public void writeSnapshot(Map<String, String> out) {
+            out.put(name, String.valueOf(get()));
+        }
+    }
+}
@@ -0,0 +1,690 @@
+package server;
+
+import common.Constants;
+import common.EncodedFrame;
+import common.Message;
+import common.MessageCodec;
+import common.MessageType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector-based chat server used when the server runs in "nio" mode.
+ * A small, fixed number of event loops serve every chat connection with
+ * non-blocking reads and writes instead of one blocked thread per socket.
+ *
+ * Wire format: the binary MessageCodec protocol. A client opens with
+ * MessageCodec.MAGIC, the server echoes it, and both sides then exchange
+ * length-prefixed frames. A connection that opens with anything else is
+ * taken to be an object-stream client, as MessageIO.accept does: it leaves
+ * the selector and is served by a blocking ClientHandler. Sessions register
+ * with Server exactly like ClientHandler does, so broadcasts and private
+ * messages reach both kinds of connection, and admin consoles get the same
+ * commands through AdminCommands.
+ *
+ * The loops only read, decode and write. Decoded messages are routed on a
+ * worker executor, one task at a time per session so they keep their order,
+ * because routing can wait: a legacy recipient's queue under the BLOCK
+ * policy, or a full log queue. A session with INBOX_LIMIT messages waiting
+ * for its worker stops being read until they are handled.
+ */
+public class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Large enough to absorb login storms; SERVER_BACKLOG is sized for the threaded server
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int INBOX_LIMIT = 256;
+    // Queued after the last message of a session whose peer closed; compared by identity
+    private static final Message END_OF_STREAM = new Message(MessageType.LOGOUT, "SERVER", "");
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final ExecutorService legacyHandlers = ConnectionExecutors.create("client-handler");
+    private final ExecutorService workers = ConnectionExecutors.createUnbounded("nio-worker");
+    private final int queueCapacity = ServerConfig.outboundQueueCapacity();
+    // BLOCK cannot wait on a selector thread, so it disconnects like DISCONNECT
+    private final OutboundQueue.OverflowPolicy overflowPolicy = ServerConfig.overflowPolicy();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    public NioChatServer(int port, int loopThreads) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Bind the listening channel and start the event loop threads
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("✓ NIO server started on port " + port + " with " + loops.length + " event loop(s)");
+    }
+
+    /**
+     * Block until every event loop has exited
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.thread.join();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing NIO server channel: " + e.getMessage());
+        }
+        legacyHandlers.shutdownNow();
+        workers.shutdown(); // the loops may still hand over the disconnects of their last sessions
+    }
+
+    // Run work that may block off the loop thread; inline once the server is shutting down
+    private void offLoop(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Number of open sockets, logged in or not
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    private void acceptConnections() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("NIO accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One selector and the thread that drives it
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                NioSession session = new NioSession(this, channel);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                sessionCount.incrementAndGet();
+            } catch (IOException e) {
+                System.err.println("Failed to register NIO connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            acceptConnections();
+                            continue;
+                        }
+
+                        NioSession session = (NioSession) key.attachment();
+                        if (key.isReadable()) {
+                            session.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    }
+
+                    // Run work queued by this loop itself, e.g. flushes of replies
+                    runTasks();
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("NIO event loop error: " + e.getMessage());
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioSession) {
+                    ((NioSession) key.attachment()).disconnect();
+                }
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * A chat connection owned by a single event loop
+     */
+    private final class NioSession implements ClientConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final String address;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>(); // guarded by itself
+        private ByteBuffer writing; // frame being written, taken off the queue; loop thread only
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private SelectionKey key;
+        private ByteBuffer partial; // bytes of an incomplete frame, null when idle
+        private final ArrayDeque<Message> inbox = new ArrayDeque<>(); // decoded, not yet routed; guarded by itself
+        private boolean routing = false; // guarded by inbox: a worker is draining it
+        private boolean readPaused = false; // loop thread only
+        private volatile String username;
+        private volatile boolean isAdmin = false;
+        private volatile AdminEventBus.Subscription adminEvents;
+        private volatile boolean running = true;
+        private boolean closeWhenFlushed = false;
+        private boolean handshakeDone = false;
+        private volatile long totalWriteNanos = 0;
+        private volatile long writeCalls = 0;
+
+        NioSession(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.address = socket.getInetAddress() != null ? socket.getInetAddress().getHostAddress() : "unknown";
+        }
+
+        void onReadable(ByteBuffer readBuffer) {
+            try {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read == -1) {
+                    // Messages read before the end are still routed, then the session ends
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    dispatch(END_OF_STREAM);
+                    return;
+                }
+                readBuffer.flip();
+
+                ByteBuffer source = readBuffer;
+                if (partial != null) {
+                    partial = ensureCapacity(partial, readBuffer.remaining());
+                    partial.put(readBuffer);
+                    partial.flip();
+                    source = partial;
+                }
+
+                decodeFrames(source);
+
+                if (!running) {
+                    partial = null;
+                } else if (source.hasRemaining()) {
+                    // Keep the incomplete frame for the next read
+                    ByteBuffer rest = ByteBuffer.allocate(Math.max(source.remaining(), 256));
+                    rest.put(source);
+                    partial = rest;
+                } else {
+                    partial = null;
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        private void decodeFrames(ByteBuffer source) {
+            if (!handshakeDone && !readHandshake(source)) {
+                return;
+            }
+
+            while (running && source.hasRemaining()) {
+                int length = MessageCodec.peekFrameLength(source);
+                if (length == -1) {
+                    return;
+                }
+                if (length > Constants.MAX_FRAME_SIZE) {
+                    System.err.println("Invalid frame length " + length + " from " + address);
+                    disconnect();
+                    return;
+                }
+                int header = MessageCodec.varIntSize(length);
+                if (source.remaining() < header + length) {
+                    return;
+                }
+
+                int bodyStart = source.position() + header;
+                source.position(bodyStart + length);
+                try {
+                    dispatch(MessageCodec.decode(source.array(), source.arrayOffset() + bodyStart, length));
+                } catch (IOException e) {
+                    sendMessage(new Message(MessageType.ERROR, "SERVER", "Malformed message"));
+                }
+            }
+        }
+
+        private boolean readHandshake(ByteBuffer source) {
+            byte[] magic = MessageCodec.MAGIC;
+            if (source.remaining() < magic.length) {
+                return false;
+            }
+            int start = source.position();
+            for (byte expected : magic) {
+                if (source.get() != expected) {
+                    source.position(start);
+                    handOver(source);
+                    return false;
+                }
+            }
+            handshakeDone = true;
+            enqueue(ByteBuffer.wrap(magic));
+            return true;
+        }
+
+        /**
+         * Pass an object-stream client, and the bytes read from it so far, to a blocking ClientHandler
+         */
+        private void handOver(ByteBuffer source) {
+            byte[] prefix = new byte[source.remaining()];
+            source.get(prefix);
+            running = false;
+            key.cancel();
+            sessionCount.decrementAndGet();
+            loop.execute(() -> {
+                try {
+                    // The cancelled key is only deregistered by the next select
+                    loop.selector.selectNow();
+                    channel.configureBlocking(true);
+                    legacyHandlers.execute(new ClientHandler(channel.socket(), prefix));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Failed to hand over object-stream client " + address + ": " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queue a decoded message for routing on a worker; called on the loop thread
+         */
+        private void dispatch(Message message) {
+            boolean start;
+            int waiting;
+            synchronized (inbox) {
+                inbox.add(message);
+                waiting = inbox.size();
+                start = !routing;
+                routing = true;
+            }
+            if (start) {
+                offLoop(this::route);
+            }
+            if (waiting >= INBOX_LIMIT && key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                readPaused = true;
+            }
+        }
+
+        // Worker side of dispatch: handle messages in arrival order until the inbox is empty
+        private void route() {
+            while (true) {
+                Message message;
+                synchronized (inbox) {
+                    message = inbox.poll();
+                    if (message == null) {
+                        routing = false;
+                        break;
+                    }
+                }
+                if (message == END_OF_STREAM) {
+                    disconnect();
+                } else if (running) {
+                    handleMessage(message);
+                }
+            }
+            loop.execute(this::resumeReading);
+        }
+
+        private void resumeReading() {
+            if (readPaused && running && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                readPaused = false;
+            }
+        }
+
+        private ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+            if (buffer.remaining() >= extra) {
+                return buffer;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        private void handleMessage(Message message) {
+            String type = message.getType();
+
+            if (isAdmin) {
+                if (!AdminCommands.handle(this, message)) {
+                    disconnect();
+                }
+                return;
+            }
+
+            if (username == null) {
+                if (MessageType.LOGIN.equals(type)) {
+                    handleLogin(SessionRegistry.loginName(message.getContent()),
+                            SessionRegistry.loginToken(message.getContent()));
+                } else if (MessageType.ADMIN_LOGIN.equals(type)) {
+                    handleAdminLogin(message);
+                } else {
+                    sendAndClose(new Message(MessageType.ERROR, "SERVER", "Invalid login message"));
+                }
+                return;
+            }
+
+            switch (type) {
+                case MessageType.PUBLIC_MESSAGE:
+                    if (Server.acceptChatContent(this, message.getContent())) {
+                        Server.broadcastMessage(new Message(MessageType.MESSAGE_BROADCAST, username, message.getContent()));
+                    }
+                    break;
+
+                case MessageType.PRIVATE_MESSAGE:
+                    if (Server.acceptChatContent(this, message.getContent())) {
+                        Server.sendPrivateMessage(username, message.getReceiver(), message.getContent());
+                    }
+                    break;
+
+                case MessageType.FILE_TRANSFER:
+                    Server.recordFileTransfer(username, message);
+                    break;
+
+                case MessageType.FILE_METADATA:
+                case MessageType.FILE_TRANSFER_ACCEPT:
+                case MessageType.FILE_TRANSFER_REJECT:
+                case MessageType.FILE_COMPLETE:
+                case MessageType.FILE_ERROR:
+                    Server.relayFileControl(username, message);
+                    break;
+
+                case MessageType.LOGOUT:
+                    disconnect();
+                    break;
+
+                default:
+                    sendMessage(new Message(MessageType.ERROR, "SERVER", "Unknown message type"));
+            }
+        }
+
+        private void handleLogin(String requestedName, String token) {
+            if (requestedName == null || requestedName.trim().isEmpty()) {
+                sendAndClose(new Message(MessageType.ERROR, "SERVER", "Username cannot be empty"));
+                return;
+            }
+
+            if (requestedName.length() > Constants.MAX_USERNAME_LENGTH) {
+                sendAndClose(new Message(MessageType.ERROR, "SERVER", "Username too long"));
+                return;
+            }
+
+            // Removing a session this connection does not own is a no-op, so the name can be set first
+            username = requestedName;
+            SessionRegistry.Session session = token != null
+                    ? Server.resumeClient(username, token, this)
+                    : Server.addClient(username, this);
+            if (session == null) {
+                username = null;
+                sendAndClose(new Message(MessageType.ERROR, "SERVER",
+                        token != null ? "Session expired, log in again" : "Username already taken"));
+                return;
+            }
+            sendMessage(new Message(MessageType.LOGIN, "SERVER", session.loginReply()));
+        }
+
+        private void handleAdminLogin(Message message) {
+            if (!AdminCommands.authenticate(message)) {
+                sendAndClose(new Message(MessageType.ADMIN_AUTH_FAILED, "SERVER", "Invalid admin credentials"));
+                return;
+            }
+            isAdmin = true;
+            username = "ADMIN";
+            Server.addAdminSocket(channel.socket());
+            adminEvents = AdminCommands.open(this);
+        }
+
+        private void sendAndClose(Message message) {
+            sendMessage(message);
+            loop.execute(() -> {
+                closeWhenFlushed = true;
+                flush();
+            });
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sendFrame(EncodedFrame.of(message));
+        }
+
+        @Override
+        public void sendFrame(EncodedFrame frame) {
+            if (!running) return;
+
+            byte[] bytes;
+            try {
+                bytes = frame.binary();
+            } catch (IllegalArgumentException e) {
+                System.err.println("Not sending message to " + username + ": " + e.getMessage());
+                return;
+            }
+            // The byte array is shared; only the buffer position is per session
+            if (!enqueue(ByteBuffer.wrap(bytes))) {
+                disconnect();
+            }
+        }
+
+        /**
+         * Queue a frame for the loop to write, applying the overflow policy when the queue is full
+         *
+         * @return false if the client overflowed and should be disconnected
+         */
+        private boolean enqueue(ByteBuffer frame) {
+            synchronized (outbound) {
+                if (outbound.size() >= queueCapacity) {
+                    if (overflowPolicy != OutboundQueue.OverflowPolicy.DROP_OLDEST) {
+                        System.err.println("Outbound queue for " + username + " is full (" + outbound.size() + " messages)");
+                        return false;
+                    }
+                    outbound.poll(); // never the frame being written, which has left the queue
+                }
+                outbound.add(frame);
+            }
+
+            // Only the first message after a flush schedules a write on the loop
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+            return true;
+        }
+
+        /**
+         * Write queued frames; called on the owning loop thread only
+         */
+        void flush() {
+            flushScheduled.set(false);
+            if (!channel.isOpen()) return;
+
+            try {
+                while (true) {
+                    if (writing == null) {
+                        synchronized (outbound) {
+                            writing = outbound.poll();
+                        }
+                        if (writing == null) break;
+                    }
+                    long start = System.nanoTime();
+                    channel.write(writing);
+                    totalWriteNanos += System.nanoTime() - start;
+                    writeCalls++;
+                    if (writing.hasRemaining()) {
+                        // Socket buffer is full, wait for OP_WRITE
+                        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writing = null;
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (closeWhenFlushed) {
+                    disconnect();
+                }
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            if (!running) return;
+            running = false;
+
+            // Removing a client broadcasts that it left, which may wait like any other routing
+            if (Thread.currentThread() == loop.thread) {
+                offLoop(this::unregister);
+            } else {
+                unregister();
+            }
+            loop.execute(this::close);
+        }
+
+        private void unregister() {
+            if (isAdmin) {
+                AdminEventBus.unsubscribe(adminEvents);
+                Server.removeAdminSocket(channel.socket());
+            } else if (username != null) {
+                Server.removeClient(username, this);
+            }
+        }
+
+        private void close() {
+            synchronized (outbound) {
+                outbound.clear();
+            }
+            writing = null;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
+            }
+            sessionCount.decrementAndGet();
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public String getClientAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running && channel.isOpen();
+        }
+
+        @Override
+        public int getQueueDepth() {
+            synchronized (outbound) {
+                return outbound.size();
+            }
+        }
+
+        @Override
+        public double getAverageWriteMillis() {
+            long calls = writeCalls;
+            return calls == 0 ? 0 : totalWriteNanos / 1_000_000.0 / calls;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package server;
+
+import common.EncodedFrame;
+import common.MessageIO;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of messages waiting to be written to one client. Senders only
+ * enqueue, so a client with a full TCP window delays nobody but itself; what
+ * happens when its queue fills up is decided by the OverflowPolicy.
+ *
+ * The queue is drained by a writer task that is submitted when the first
+ * message arrives and returns once the queue is empty, so an idle connection
+ * holds no writer thread and the writer pool is shared by all clients.
+ * Writers never wait for a thread, whatever chat.executor says: a bounded
+ * pool would leave every client behind the ones whose sockets are full.
+ */
+public class OutboundQueue implements Runnable {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, // discard the oldest queued message to make room
+        DISCONNECT,  // drop the client
+        BLOCK;       // make the sender wait, then drop the client on timeout
+
+        public static OverflowPolicy parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown overflow policy '" + value + "', using DISCONNECT");
+                return DISCONNECT;
+            }
+        }
+    }
+
+    private static final ExecutorService WRITERS = ConnectionExecutors.createUnbounded("client-writer");
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 2;
+    private static final int MAX_BATCH = 64;
+
+    static {
+        // Writer tasks are short, so idle writer threads exit soon instead of staying beside every reader
+        if (WRITERS instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) WRITERS).setKeepAliveTime(WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private final MessageIO io;
+    private final String owner;
+    private final BlockingQueue<EncodedFrame> queue;
+    private final OverflowPolicy policy;
+    private final long blockMillis;
+    private final Runnable onFailure;
+    private volatile boolean closed = false;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false); // a writer task is queued or running
+
+    // Per-connection statistics
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private volatile long writtenMessages = 0;
+    private volatile long lastWriteNanos = 0;
+    private volatile long maxWriteNanos = 0;
+    private volatile long totalWriteNanos = 0;
+    private volatile long writeBatches = 0;
+
+    /**
+     * @param onFailure called once if the writer fails or the queue overflows
+     *                  under DISCONNECT/BLOCK; it should disconnect the client
+     */
+    public OutboundQueue(MessageIO io, String owner, int capacity, OverflowPolicy policy,
+                         long blockMillis, Runnable onFailure) {
+        this.io = io;
+        this.owner = owner;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockMillis = blockMillis;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Create a queue using the capacity and policy from ServerConfig
+     */
+    public static OutboundQueue start(MessageIO io, String owner, Runnable onFailure) {
+        return new OutboundQueue(io, owner, ServerConfig.outboundQueueCapacity(),
+                ServerConfig.overflowPolicy(), ServerConfig.overflowBlockMillis(), onFailure);
+    }
+
+    /**
+     * Queue a frame for the writer
+     *
+     * @return false if the client overflowed and should be disconnected
+     */
+    public boolean offer(EncodedFrame frame) {
+        if (closed) return true;
+        if (queue.offer(frame)) {
+            schedule();
+            return true;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(frame)) {
+                    if (queue.poll() != null) {
+                        droppedMessages.incrementAndGet();
+                    }
+                }
+                schedule();
+                return true;
+
+            case BLOCK:
+                try {
+                    if (queue.offer(frame, blockMillis, TimeUnit.MILLISECONDS)) {
+                        schedule();
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.err.println("Outbound queue for " + owner + " stayed full for " + blockMillis + " ms");
+                return false;
+
+            case DISCONNECT:
+            default:
+                System.err.println("Outbound queue for " + owner + " is full (" + queue.size() + " messages)");
+                return false;
+        }
+    }
+
+    /**
+     * Stop the writer; messages still queued are discarded
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    // Submit the writer unless it is already queued or running
+    private void schedule() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            WRITERS.execute(this);
+        }
+    }
+
+    /**
+     * Write until the queue is empty, then return the thread to the pool
+     */
+    @Override
+    public void run() {
+        try {
+            do {
+                EncodedFrame frame;
+                while (!closed && (frame = queue.poll()) != null) {
+                    // Write everything that is already queued, then flush once
+                    long start = System.nanoTime();
+                    int batch = 0;
+                    do {
+                        io.sendFrame(frame);
+                        batch++;
+                    } while (batch < MAX_BATCH && !closed && (frame = queue.poll()) != null);
+                    io.flush();
+                    recordWrite(batch, System.nanoTime() - start);
+                }
+                scheduled.set(false);
+                // A message offered after the last poll saw the writer still scheduled, so pick it up here
+            } while (!closed && !queue.isEmpty() && scheduled.compareAndSet(false, true));
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Error sending message to " + owner + ": " + e.getMessage());
+                closed = true;
+                onFailure.run();
+            }
+        }
+    }
+
+    private void recordWrite(int messages, long nanos) {
+        writtenMessages += messages;
+        lastWriteNanos = nanos;
+        totalWriteNanos += nanos;
+        writeBatches++;
+        if (nanos > maxWriteNanos) {
+            maxWriteNanos = nanos;
+        }
+    }
+
+    // ============ STATISTICS ============
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    public long getWrittenMessages() {
+        return writtenMessages;
+    }
+
+    public double getLastWriteMillis() {
+        return lastWriteNanos / 1_000_000.0;
+    }
+
+    public double getMaxWriteMillis() {
+        return maxWriteNanos / 1_000_000.0;
+    }
+
+    public double getAverageWriteMillis() {
+        long batches = writeBatches;
+        return batches == 0 ? 0 : totalWriteNanos / 1_000_000.0 / batches;
+    }
+}
@@ -27,7 +27,7 @@ public class PrivateChatHandler {
         }
 
         // Get receiver's handler
-        ClientHandler receiverHandler = server.getClientHandler(receiver);
+        ClientConnection receiverHandler = server.getClientHandler(receiver);
         if (receiverHandler == null || !receiverHandler.isRunning()) {
             System.out.println("Private message failed: User '" + receiver + "' not found or offline");
             return false;
@@ -37,7 +37,7 @@ public class PrivateChatHandler {
         receiverHandler.sendMessage(message);
 
         // Send confirmation to sender
-        ClientHandler senderHandler = server.getClientHandler(sender);
+        ClientConnection senderHandler = server.getClientHandler(sender);
         if (senderHandler != null) {
             Message confirmation = new Message(MessageType.INFO, Constants.SERVER_NAME,
                     "Private message sent to " + receiver);
@@ -64,7 +64,7 @@ public class PrivateChatHandler {
             return;
         }
 
-        ClientHandler receiverHandler = server.getClientHandler(receiver);
+        ClientConnection receiverHandler = server.getClientHandler(receiver);
         if (receiverHandler == null || !receiverHandler.isRunning()) {
             notifyFileTransferError(sender, "User '" + receiver + "' is not online");
             return;
@@ -108,12 +108,12 @@ public class PrivateChatHandler {
     /**
      * Handle file transfer request
      */
-    private void handleFileTransferRequest(Message message, ClientHandler receiverHandler) {
+    private void handleFileTransferRequest(Message message, ClientConnection receiverHandler) {
         // Forward the request to the receiver
         receiverHandler.sendMessage(message);
 
         // Notify sender that request was sent
-        ClientHandler senderHandler = server.getClientHandler(message.getSender());
+        ClientConnection senderHandler = server.getClientHandler(message.getSender());
         if (senderHandler != null) {
             Message notification = new Message(MessageType.INFO, Constants.SERVER_NAME,
                     "File transfer request sent to " + message.getReceiver());
@@ -134,7 +134,7 @@ public class PrivateChatHandler {
     /**
      * Handle file transfer acceptance
      */
-    private void handleFileTransferAccept(Message message, ClientHandler receiverHandler) {
+    private void handleFileTransferAccept(Message message, ClientConnection receiverHandler) {
         // The receiver here is actually the original sender
         // Forward the acceptance to the original sender
         receiverHandler.sendMessage(message);
@@ -153,7 +153,7 @@ public class PrivateChatHandler {
     /**
      * Handle file transfer rejection
      */
-    private void handleFileTransferReject(Message message, ClientHandler receiverHandler) {
+    private void handleFileTransferReject(Message message, ClientConnection receiverHandler) {
         // Forward the rejection to the original sender
         receiverHandler.sendMessage(message);
 
@@ -172,7 +172,7 @@ public class PrivateChatHandler {
      * Handle file metadata message
      * This is sent before the actual file data transfer begins
      */
-    private void handleFileMetadata(Message message, ClientHandler receiverHandler) {
+    private void handleFileMetadata(Message message, ClientConnection receiverHandler) {
         // Forward the metadata to the receiver
         receiverHandler.sendMessage(message);
 
@@ -193,7 +193,7 @@ public class PrivateChatHandler {
     /**
      * Handle file transfer completion notification
      */
-    private void handleFileComplete(Message message, ClientHandler receiverHandler) {
+    private void handleFileComplete(Message message, ClientConnection receiverHandler) {
         // Forward completion notification to the receiver
         receiverHandler.sendMessage(message);
 
@@ -211,7 +211,7 @@ public class PrivateChatHandler {
     /**
      * Handle file transfer error notification
      */
-    private void handleFileError(Message message, ClientHandler receiverHandler) {
+    private void handleFileError(Message message, ClientConnection receiverHandler) {
         // Forward error notification to the receiver
         receiverHandler.sendMessage(message);
 
@@ -229,7 +229,7 @@ public class PrivateChatHandler {
     /**
      * Handle file transfer progress update
      */
-    private void handleFileProgress(Message message, ClientHandler receiverHandler) {
+    private void handleFileProgress(Message message, ClientConnection receiverHandler) {
         // Optionally forward progress to receiver (usually not needed)
         // receiverHandler.sendMessage(message);
 
@@ -277,7 +277,7 @@ public class PrivateChatHandler {
      * Notify sender of file transfer error
      */
     private void notifyFileTransferError(String username, String errorMessage) {
-        ClientHandler handler = server.getClientHandler(username);
+        ClientConnection handler = server.getClientHandler(username);
         if (handler != null) {
             Message error = new Message(MessageType.FILE_TRANSFER_ERROR,
                     Constants.SERVER_NAME, errorMessage);
@@ -289,8 +289,8 @@ public class PrivateChatHandler {
      * Notify both parties of successful file transfer
      */
     public void notifyFileTransferComplete(String sender, String receiver, String filename) {
-        ClientHandler senderHandler = server.getClientHandler(sender);
-        ClientHandler receiverHandler = server.getClientHandler(receiver);
+        ClientConnection senderHandler = server.getClientHandler(sender);
+        ClientConnection receiverHandler = server.getClientHandler(receiver);
 
         if (senderHandler != null) {
             Message msg = new Message(MessageType.FILE_TRANSFER_COMPLETE,
@@ -0,0 +1,672 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only log of text lines stored in fixed-size, memory-mapped segments.
+ *
+ * Each segment is a set of files named after the sequence number of its
+ * first record and the time it was started:
+ *   00000000000000000000-20261016-093000.seg     records as [int length][UTF-8 bytes]
+ *   00000000000000000000-20261016-093000.idx     one int per record: the offset where it ends
+ *   00000000000000000000-20261016-093000.seg.gz  the .seg once the segment is sealed and compressed
+ *
+ * Appends are plain memory copies into the mapped segment; a new segment is
+ * started when the data or the index is full, or, with rotation enabled,
+ * when the clock enters a new rotation interval. Because every record's
+ * position is in the index, the last N lines are read straight from the
+ * newest segments without touching the rest of the log, and on startup the
+ * record count of a segment is found by binary search for the first empty
+ * index slot.
+ *
+ * With rotation enabled, sealed segments are gzipped on a background thread
+ * and the oldest ones are deleted once they are past the retention age or
+ * the log exceeds its size limit. Only the segment taking appends is mapped;
+ * sealed segments are read, or inflated, on demand and kept in memory until
+ * the garbage collector needs the space.
+ *
+ * One thread appends (ChatLogger's writer); any thread may read.
+ */
+public class SegmentedLogStore implements Closeable {
+    private static final String DATA_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COMPRESSED_SUFFIX = ".seg.gz";
+    private static final int HEADER_BYTES = 4;
+    private static final int AVERAGE_RECORD_BYTES = 32; // sizes the offset index
+    private static final DateTimeFormatter NAME_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    // Compression and retention for all stores
+    private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "log-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean readOnly;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private Segment active;
+
+    // Rotation policy, see enableRotation
+    private long rotateMillis;
+    private boolean compress;
+    private long retentionMillis;
+    private long maxBytes;
+
+    /**
+     * Open or create the store in the given directory
+     */
+    public SegmentedLogStore(Path dir, int segmentBytes) throws IOException {
+        this(dir, segmentBytes, false);
+    }
+
+    /**
+     * @param readOnly open existing segments for reading only, e.g. to export
+     *                 the log of a running server
+     */
+    public SegmentedLogStore(Path dir, int segmentBytes, boolean readOnly) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.readOnly = readOnly;
+        if (!readOnly) {
+            Files.createDirectories(dir);
+        }
+        loadSegments();
+    }
+
+    private void loadSegments() throws IOException {
+        if (!Files.isDirectory(dir)) return;
+
+        // Segment name -> compressed, sorted by base sequence
+        TreeMap<String, Boolean> names = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(COMPRESSED_SUFFIX)) {
+                    names.put(name.substring(0, name.length() - COMPRESSED_SUFFIX.length()), true);
+                } else if (name.endsWith(DATA_SUFFIX)) {
+                    names.putIfAbsent(name.substring(0, name.length() - DATA_SUFFIX.length()), false);
+                }
+            }
+        }
+
+        int remaining = names.size();
+        for (Map.Entry<String, Boolean> entry : names.entrySet()) {
+            boolean last = --remaining == 0;
+            try {
+                segments.add(new Segment(dir, entry.getKey(), entry.getValue(), last && !readOnly));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring unexpected file in log store: " + entry.getKey());
+            }
+        }
+        if (!readOnly) {
+            active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * Start new segments every rotateMillis (aligned to the interval), gzip
+     * sealed segments in the background, and delete the oldest segments
+     * once they are older than retentionMillis or the store is larger than
+     * maxBytes. Zero turns the respective limit off.
+     */
+    public synchronized void enableRotation(long rotateMillis, boolean compress, long retentionMillis, long maxBytes) {
+        this.rotateMillis = rotateMillis;
+        this.compress = compress;
+        this.retentionMillis = retentionMillis;
+        this.maxBytes = maxBytes;
+        if (readOnly) return;
+
+        // Segments sealed before the last shutdown
+        if (compress) {
+            for (Segment segment : segments) {
+                if (segment != active && !segment.compressed) {
+                    maintenance.execute(() -> compress(segment));
+                }
+            }
+        }
+        if (retentionMillis > 0 || maxBytes > 0) {
+            maintenance.scheduleWithFixedDelay(this::enforceRetention, 0, 10, TimeUnit.MINUTES);
+        }
+    }
+
+    // ============ WRITING ============
+
+    /**
+     * Append one line. Lines longer than a segment are truncated.
+     */
+    public synchronized void append(String line) throws IOException {
+        if (readOnly) throw new IOException("Log store " + dir + " is read-only");
+
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > segmentBytes - HEADER_BYTES) {
+            bytes = Arrays.copyOf(bytes, segmentBytes - HEADER_BYTES);
+        }
+        if (active == null || !active.fits(bytes.length) || rotationDue()) {
+            roll();
+        }
+        active.append(bytes);
+    }
+
+    private boolean rotationDue() {
+        return rotateMillis > 0 && active.count > 0
+                && System.currentTimeMillis() / rotateMillis != active.createdMillis / rotateMillis;
+    }
+
+    private void roll() throws IOException {
+        long base = active == null ? 0 : active.baseSequence + active.count;
+        Segment sealed = active;
+        if (sealed != null) {
+            sealed.seal();
+        }
+        active = new Segment(dir, base, segmentBytes);
+        segments.add(active);
+
+        if (sealed != null) {
+            if (compress) {
+                maintenance.execute(() -> compress(sealed));
+            }
+            if (retentionMillis > 0 || maxBytes > 0) {
+                maintenance.execute(this::enforceRetention);
+            }
+        }
+    }
+
+    /**
+     * Write the mapped pages of the active segment to disk
+     */
+    public synchronized void force() {
+        if (active != null) {
+            active.force();
+        }
+    }
+
+    /**
+     * Remove every record and start again from an empty segment
+     */
+    public synchronized void clear() throws IOException {
+        if (readOnly) throw new IOException("Log store " + dir + " is read-only");
+
+        List<Segment> old = new ArrayList<>(segments);
+        long base = active == null ? 0 : active.baseSequence + active.count;
+        active = new Segment(dir, base, segmentBytes);
+        segments.add(active);
+        segments.removeAll(old);
+        for (Segment segment : old) {
+            segment.delete();
+        }
+    }
+
+    // ============ MAINTENANCE ============
+
+    private void compress(Segment segment) {
+        try {
+            segment.compress();
+        } catch (IOException e) {
+            System.err.println("Error compressing log segment " + segment.name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the oldest sealed segments while they are past the retention
+     * age or the store is over its size limit
+     */
+    synchronized void enforceRetention() {
+        long expiry = System.currentTimeMillis() - retentionMillis;
+        long total = getDiskBytes();
+
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            // A segment's last record is at most as old as the next segment
+            boolean expired = retentionMillis > 0 && segments.get(1).createdMillis < expiry;
+            boolean oversized = maxBytes > 0 && total > maxBytes;
+            if (!expired && !oversized) break;
+
+            total -= oldest.diskBytes();
+            segments.remove(0);
+            oldest.delete();
+        }
+    }
+
+    // ============ READING ============
+
+    /**
+     * The last n lines, oldest first; only the newest segments are read
+     */
+    public List<String> tail(int n) {
+        List<Segment> snapshot = new ArrayList<>(segments);
+        String[] lines = new String[n];
+        int filled = 0;
+
+        for (int s = snapshot.size() - 1; s >= 0 && filled < n; s--) {
+            Segment segment = snapshot.get(s);
+            if (segment.deleted) continue;
+            int count = segment.count;
+            int take = Math.min(n - filled, count);
+            for (int i = 0; i < take; i++) {
+                lines[n - filled - take + i] = segment.read(count - take + i);
+            }
+            filled += take;
+        }
+        return new ArrayList<>(Arrays.asList(lines).subList(n - filled, n));
+    }
+
+    /**
+     * Visit every line, oldest first
+     */
+    public void forEach(Consumer<String> action) {
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment.deleted) continue;
+            int count = segment.count;
+            for (int i = 0; i < count; i++) {
+                action.accept(segment.read(i));
+            }
+        }
+    }
+
+    /**
+     * Write the whole log as a plain text file, one record per line
+     */
+    public void exportText(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            IOException[] failure = new IOException[1];
+            forEach(line -> {
+                if (failure[0] != null) return;
+                try {
+                    writer.write(line);
+                    writer.newLine();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+        }
+    }
+
+    /**
+     * Number of records currently in the store
+     */
+    public long size() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.count;
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Disk space taken by the segments, counting uncompressed ones at full size
+     */
+    public long getDiskBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.diskBytes();
+        }
+        return total;
+    }
+
+    Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Current segments, oldest first; all but the last are sealed
+     */
+    List<Segment> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    @Override
+    public synchronized void close() {
+        force();
+        // Mapped buffers are released by the garbage collector
+    }
+
+    // ============ SEGMENT ============
+
+    /**
+     * One data file, plain or compressed, and its offset index.
+     *
+     * Only the segment being appended to is mapped. Sealed segments are read
+     * into the heap when needed, and their mappings are released as soon as
+     * they are sealed, because Windows cannot delete a file that is mapped.
+     */
+    static final class Segment {
+        // Unsafe.invokeCleaner unmaps a buffer now instead of when it is collected; null if unavailable
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // the mappings are then released by the garbage collector
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        final String name;
+        final long baseSequence;
+        final long createdMillis;
+        private final Path dir;
+        private final int capacity;
+        private final int indexEntries;
+        private MappedByteBuffer data;   // mapped while the segment takes appends
+        private MappedByteBuffer index;
+        private ByteBuffer writer;       // writer-owned view of data
+        private int[] ends;              // the index once the segment is sealed
+        private SoftReference<ByteBuffer> loaded = new SoftReference<>(null);
+        private long compressedBytes;
+        private int position;
+        volatile int count;
+        volatile boolean compressed;
+        volatile boolean deleted;
+
+        /**
+         * Start a new, writable segment
+         */
+        Segment(Path dir, long baseSequence, int size) throws IOException {
+            this.dir = dir;
+            this.baseSequence = baseSequence;
+            this.createdMillis = System.currentTimeMillis();
+            this.name = String.format("%020d-%s", baseSequence, LocalDateTime.now().format(NAME_TIME));
+            this.capacity = size;
+            this.indexEntries = Math.max(1, size / AVERAGE_RECORD_BYTES);
+            this.index = map(path(INDEX_SUFFIX), (long) indexEntries * 4, true);
+            this.data = map(path(DATA_SUFFIX), capacity, true);
+            this.writer = data.duplicate();
+        }
+
+        /**
+         * Open an existing segment; only the newest one is writable
+         */
+        Segment(Path dir, String name, boolean compressed, boolean writable) throws IOException {
+            this.dir = dir;
+            this.name = name;
+            int split = name.indexOf('-');
+            this.baseSequence = Long.parseLong(split < 0 ? name : name.substring(0, split));
+            this.compressed = compressed;
+            this.createdMillis = parseTime(split < 0 ? null : name.substring(split + 1));
+
+            if (compressed) {
+                // Left over if the process stopped between compressing and deleting
+                Files.deleteIfExists(path(DATA_SUFFIX));
+                this.capacity = 0;
+                this.compressedBytes = Files.size(path(COMPRESSED_SUFFIX));
+            } else {
+                this.capacity = (int) Files.size(path(DATA_SUFFIX));
+            }
+            this.indexEntries = (int) (Files.size(path(INDEX_SUFFIX)) / 4);
+            this.ends = readIndex();
+            this.count = ends.length;
+            this.position = count == 0 ? 0 : ends[count - 1];
+            if (writable && !compressed) {
+                this.index = map(path(INDEX_SUFFIX), (long) indexEntries * 4, true);
+                this.data = map(path(DATA_SUFFIX), capacity, true);
+                this.writer = data.duplicate();
+                this.ends = null;
+            }
+        }
+
+        private long parseTime(String time) throws IOException {
+            if (time != null) {
+                try {
+                    return LocalDateTime.parse(time, NAME_TIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    // fall back to the file time
+                }
+            }
+            Path file = compressed ? path(COMPRESSED_SUFFIX) : path(DATA_SUFFIX);
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+
+        private Path path(String suffix) {
+            return dir.resolve(name + suffix);
+        }
+
+        private static MappedByteBuffer map(Path path, long size, boolean writable) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), writable ? "rw" : "r");
+                 FileChannel channel = file.getChannel()) {
+                long length = writable ? size : Math.min(size, channel.size());
+                return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        0, length);
+            }
+        }
+
+        // Index entries are end offsets, always > 0, so the first 0 marks the end
+        private int[] readIndex() throws IOException {
+            try (FileChannel channel = FileChannel.open(path(INDEX_SUFFIX), StandardOpenOption.READ)) {
+                ByteBuffer entry = ByteBuffer.allocate(4);
+                int low = 0;
+                int high = indexEntries;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    entry.clear();
+                    readFully(channel, entry, (long) mid * 4);
+                    if (entry.getInt(0) != 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                ByteBuffer entries = ByteBuffer.allocate(low * 4);
+                readFully(channel, entries, 0);
+                int[] ends = new int[low];
+                entries.flip();
+                entries.asIntBuffer().get(ends);
+                return ends;
+            }
+        }
+
+        private void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Log segment " + name + " is truncated");
+                }
+            }
+        }
+
+        boolean fits(int length) {
+            return writer != null && count < indexEntries && position + HEADER_BYTES + length <= capacity;
+        }
+
+        void append(byte[] bytes) {
+            writer.position(position);
+            writer.putInt(bytes.length);
+            writer.put(bytes);
+            position += HEADER_BYTES + bytes.length;
+            index.putInt(count * 4, position);
+            count++; // publishes the record to readers
+        }
+
+        // Synchronized with seal and delete, which unmap the buffers read here
+        synchronized String read(int record) {
+            ByteBuffer view = data().duplicate();
+            int start = record == 0 ? 0 : end(record - 1);
+            int length = view.getInt(start);
+            byte[] bytes = new byte[length];
+            view.position(start + HEADER_BYTES);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int end(int record) {
+            return ends != null ? ends[record] : index.getInt(record * 4);
+        }
+
+        private ByteBuffer data() {
+            if (data != null) {
+                return data;
+            }
+            ByteBuffer buffer = loaded.get();
+            if (buffer == null) {
+                try {
+                    buffer = compressed ? inflate() : load();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read log segment " + name, e);
+                }
+                loaded = new SoftReference<>(buffer);
+            }
+            return buffer;
+        }
+
+        private ByteBuffer load() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(position);
+            try (FileChannel channel = FileChannel.open(path(DATA_SUFFIX), StandardOpenOption.READ)) {
+                readFully(channel, buffer, 0);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private ByteBuffer inflate() throws IOException {
+            byte[] bytes = new byte[position];
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path(COMPRESSED_SUFFIX)), 64 * 1024)) {
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0) throw new IOException("Compressed log segment " + name + " is truncated");
+                    read += n;
+                }
+            }
+            return ByteBuffer.wrap(bytes);
+        }
+
+        synchronized void seal() {
+            force();
+            unmap();
+        }
+
+        // Keep the index on the heap and drop the mappings now, not when they are collected
+        private void unmap() {
+            if (index != null) {
+                int[] copy = new int[count];
+                for (int record = 0; record < copy.length; record++) {
+                    copy[record] = index.getInt(record * 4);
+                }
+                ends = copy;
+            }
+            writer = null;
+            for (MappedByteBuffer buffer : new MappedByteBuffer[] { data, index }) {
+                if (buffer != null && INVOKE_CLEANER != null) {
+                    try {
+                        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        System.err.println("Cannot unmap log segment " + name + ": " + e.getMessage());
+                    }
+                }
+            }
+            data = null;
+            index = null;
+        }
+
+        /**
+         * Replace the sealed data file with a gzipped copy
+         */
+        void compress() throws IOException {
+            if (compressed || deleted) return;
+
+            Path target = path(COMPRESSED_SUFFIX);
+            Path temp = dir.resolve(name + COMPRESSED_SUFFIX + ".tmp");
+            ByteBuffer view;
+            synchronized (this) {
+                view = data().duplicate(); // the plain bytes, which stay valid as the inflated copy
+            }
+            view.limit(position);
+            byte[] chunk = new byte[64 * 1024];
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), chunk.length)) {
+                while (view.hasRemaining()) {
+                    int n = Math.min(chunk.length, view.remaining());
+                    view.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                if (deleted) {
+                    Files.deleteIfExists(target);
+                    return;
+                }
+                compressedBytes = Files.size(target);
+                compressed = true;
+            }
+            Files.deleteIfExists(path(DATA_SUFFIX));
+        }
+
+        long diskBytes() {
+            return (compressed ? compressedBytes : capacity) + (long) count * 4;
+        }
+
+        void force() {
+            if (writer != null) {
+                data.force();
+                index.force();
+            }
+        }
+
+        /**
+         * Delete every file of this segment, including its search index
+         */
+        synchronized void delete() {
+            deleted = true;
+            unmap();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + ".*")) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                System.err.println("Error deleting log segment " + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,30 +1,66 @@
 package server;
 
+import common.AdminEvent;
 import common.Constants;
+import common.EncodedFrame;
+import common.HistoryPage;
 import common.Message;
 import common.MessageType;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
 public class Server {
     private static final int PORT = Constants.SERVER_PORT;
     private static ServerSocket serverSocket;
+    private static NioChatServer nioServer;
+    private static FileRelayServer fileRelay;
+    private static ExecutorService clientExecutor;
     
     // Thread-safe collections
-    private static Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static List<Message> chatHistory = new CopyOnWriteArrayList<>();
+    private static final SessionRegistry sessions = new SessionRegistry(ServerConfig.sessionResumeMillis());
+    private static HistoryRing chatHistory = new HistoryRing(ServerConfig.historyCapacity());
     private static Set<Socket> adminSockets = ConcurrentHashMap.newKeySet();
     
     // Statistics
-    private static int totalMessagesSent = 0;
-    private static int totalFilesTransferred = 0;
+    private static final MetricsRegistry.Counter messagesRouted = MetricsRegistry.counter(
+        "chat_messages_routed_total", "Broadcast and private messages routed by the server");
+    private static final MetricsRegistry.Counter filesTransferred = MetricsRegistry.counter(
+        "chat_files_transferred_total", "File transfers announced by clients");
+    private static final MetricsRegistry.Counter sessionResumes = MetricsRegistry.counter(
+        "chat_session_resumes_total", "Sessions taken back with a reconnect token");
+    private static final MetricsRegistry.Counter broadcastRecipients = MetricsRegistry.counter(
+        "chat_broadcast_recipients_total", "Deliveries queued by broadcasts");
+    private static final LatencyHistogram routeLatency = MetricsRegistry.histogram(
+        "chat_message_route_seconds", "Time to record and route one message");
+    private static final LatencyHistogram fanoutLatency = MetricsRegistry.histogram(
+        "chat_broadcast_fanout_seconds", "Time to hand one broadcast to every client");
     private static LocalDateTime serverStartTime;
+    private static volatile long startupMillis;
+    private static volatile long historyRecoveryMillis;
+
+    static {
+        MetricsRegistry.gauge("chat_active_users", "Logged-in chat users", () -> sessions.size());
+        MetricsRegistry.gauge("chat_admin_consoles", "Connected admin consoles", () -> adminSockets.size());
+        MetricsRegistry.gauge("chat_history_size", "Messages held in the in-memory history", () -> chatHistory.size());
+        MetricsRegistry.gauge("chat_outbound_queue_depth", "Messages waiting in all client outbound queues", () -> {
+            long depth = 0;
+            for (SessionRegistry.Session session : sessions.sessions()) {
+                depth += session.getConnection().getQueueDepth();
+            }
+            return depth;
+        });
+        MetricsRegistry.gauge("chat_startup_millis", "JVM start to accepting connections", () -> startupMillis);
+        MetricsRegistry.gauge("chat_history_recovery_millis", "Time to restore the history from the chat log",
+            () -> historyRecoveryMillis);
+        AdminEventBus.setStatsSource(Server::getStatsSnapshot);
+    }
     
     // Chat logger instance
     private static ChatLogger chatLogger = new ChatLogger();
@@ -39,9 +75,25 @@ public class Server {
         WebAdminServer webAdmin = new WebAdminServer(8080);
         webAdmin.start();
         
+        // File bytes go through the relay, never over the chat connections
+        fileRelay = new FileRelayServer(ServerConfig.relayPort(), sessions);
+        fileRelay.start();
+        
+        // Drain queued log entries on Ctrl+C as well as on a normal shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(chatLogger::close, "chat-logger-shutdown"));
+        
+        restoreChatHistory();
+        
+        if (ServerConfig.MODE_NIO.equalsIgnoreCase(ServerConfig.serverMode())) {
+            runNioServer();
+            return;
+        }
+        
         try {
             serverSocket = new ServerSocket(PORT);
-            System.out.println("✓ Server started on port " + PORT);
+            clientExecutor = ConnectionExecutors.create("client-handler");
+            System.out.println("✓ Server started on port " + PORT + " (" + ServerConfig.executorMode() + " executor)");
+            markReady();
             System.out.println("✓ Waiting for client connections...");
             System.out.println("=".repeat(50));
             
@@ -49,9 +101,9 @@ public class Server {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("\n[NEW CONNECTION] " + clientSocket.getInetAddress().getHostAddress());
                 
-                // Start a new thread to handle this client
+                // Hand the client to the configured executor
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
-                new Thread(clientHandler).start();
+                clientExecutor.execute(clientHandler);
             }
             
         } catch (IOException e) {
@@ -62,28 +114,74 @@ public class Server {
         }
     }
     
-    // Add client to the map
-    public static synchronized void addClient(String username, ClientHandler handler) {
-        clients.put(username, handler);
-        System.out.println("[USER JOINED] " + username + " | Total clients: " + clients.size());
+    // Serve chat connections from a few selector threads instead of one thread per socket
+    private static void runNioServer() {
+        try {
+            nioServer = new NioChatServer(PORT, ServerConfig.nioLoopThreads());
+            nioServer.start();
+            markReady();
+            System.out.println("✓ Waiting for client connections...");
+            System.out.println("=".repeat(50));
+            nioServer.awaitTermination();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            shutdown();
+        }
+    }
+    
+    // Claim a username and announce the new user; null if the name is taken
+    public static SessionRegistry.Session addClient(String username, ClientConnection handler) {
+        SessionRegistry.Session session = sessions.register(username, handler);
+        if (session != null) {
+            announceJoin(session, handler);
+        }
+        return session;
+    }
+    
+    // Give a reconnecting client its session back; null if the token is wrong or expired
+    public static SessionRegistry.Session resumeClient(String username, String token, ClientConnection handler) {
+        boolean wasOnline = sessions.get(username) != null;
+        SessionRegistry.Session session = sessions.resume(username, token, handler);
+        if (session == null) {
+            return null;
+        }
+        sessionResumes.increment();
+        if (wasOnline) {
+            // Same session on a new connection; nobody saw the user leave
+            System.out.println("[USER RECONNECTED] " + username + " (#" + session.getId() + ")");
+        } else {
+            announceJoin(session, handler);
+        }
+        return session;
+    }
+    
+    private static void announceJoin(SessionRegistry.Session session, ClientConnection handler) {
+        String username = session.getUsername();
+        System.out.println("[USER JOINED] " + username + " (#" + session.getId() + ") | Total clients: " + sessions.size());
+        chatLogger.logUserConnected(username);
         
         // Notify all clients about new user
         broadcastMessage(new Message(MessageType.USER_JOINED, "SERVER", username + " has joined the chat"));
         
         // Update all admin consoles
-        updateAdminConsoles();
+        AdminEventBus.publish(AdminEvent.userJoined(username, handler.getClientAddress()));
     }
     
-    // Remove client from the map
-    public static synchronized void removeClient(String username) {
-        if (clients.remove(username) != null) {
-            System.out.println("[USER LEFT] " + username + " | Total clients: " + clients.size());
+    // End a user's session, unless the connection has already been replaced by a reconnect
+    public static void removeClient(String username, ClientConnection handler) {
+        if (sessions.unregister(username, handler)) {
+            System.out.println("[USER LEFT] " + username + " | Total clients: " + sessions.size());
+            chatLogger.logUserDisconnected(username);
             
             // Notify all clients about user leaving
             broadcastMessage(new Message(MessageType.USER_LEFT, "SERVER", username + " has left the chat"));
             
             // Update all admin consoles
-            updateAdminConsoles();
+            AdminEventBus.publish(AdminEvent.userLeft(username));
         }
     }
     
@@ -99,45 +197,94 @@ public class Server {
         System.out.println("[ADMIN DISCONNECTED] " + socket.getInetAddress().getHostAddress());
     }
     
+    // Refuse chat content over MAX_MESSAGE_LENGTH before it reaches the history, the log or other clients
+    static boolean acceptChatContent(ClientConnection sender, String content) {
+        if (content == null || content.length() <= Constants.MAX_MESSAGE_LENGTH) {
+            return true;
+        }
+        sender.sendMessage(new Message(MessageType.ERROR, Constants.SERVER_NAME,
+            "Message too long (max " + Constants.MAX_MESSAGE_LENGTH + " characters)"));
+        return false;
+    }
+    
     // Broadcast message to all clients
     public static void broadcastMessage(Message message) {
-        // Add to history
-        addToChatHistory(message);
+        long start = System.nanoTime();
+        
+        // Add to history and the chat log
+        long sequence = addToChatHistory(message);
+        chatLogger.logChatMessage(message);
         
         // Increment message counter
-        totalMessagesSent++;
+        messagesRouted.increment();
         
-        // Send to all clients
-        for (ClientHandler client : clients.values()) {
-            client.sendMessage(message);
+        // Encode once and share the frame with every recipient
+        long fanoutStart = System.nanoTime();
+        EncodedFrame frame = EncodedFrame.of(message);
+        int recipients = 0;
+        for (SessionRegistry.Session session : sessions.sessions()) {
+            session.getConnection().sendFrame(frame);
+            recipients++;
         }
+        broadcastRecipients.add(recipients);
+        fanoutLatency.recordSince(fanoutStart);
+        publishMessageEvent(sequence, message);
+        routeLatency.recordSince(start);
     }
     
     // Send private message
     public static void sendPrivateMessage(String sender, String receiver, String content) {
+        long start = System.nanoTime();
         Message message = new Message(MessageType.PRIVATE_MESSAGE_RECEIVED, sender, receiver, content);
-        addToChatHistory(message);
-        totalMessagesSent++;
+        long sequence = addToChatHistory(message);
+        chatLogger.logChatMessage(message);
+        messagesRouted.increment();
         
-        ClientHandler receiverHandler = clients.get(receiver);
+        ClientConnection receiverHandler = sessions.get(receiver);
         if (receiverHandler != null) {
-            receiverHandler.sendMessage(message);
+            EncodedFrame frame = EncodedFrame.of(message);
+            receiverHandler.sendFrame(frame);
             
             // Also send to sender for confirmation
-            ClientHandler senderHandler = clients.get(sender);
+            ClientConnection senderHandler = sessions.get(sender);
             if (senderHandler != null) {
-                senderHandler.sendMessage(message);
+                senderHandler.sendFrame(frame);
             }
         }
+        publishMessageEvent(sequence, message);
+        routeLatency.recordSince(start);
     }
     
-    // Add message to chat history
-    private static void addToChatHistory(Message message) {
-        chatHistory.add(message);
+    // Refill the history from the end of the chat log so a restart keeps context
+    private static void restoreChatHistory() {
+        int count = Math.min(ServerConfig.historyWarmStart(), chatHistory.capacity());
+        if (count == 0) return;
         
-        // Keep only last MAX_HISTORY_SIZE messages
-        if (chatHistory.size() > Constants.MAX_HISTORY_SIZE) {
-            chatHistory.remove(0);
+        long start = System.nanoTime();
+        List<Message> messages = chatLogger.getRecentChatMessages(count);
+        for (Message message : messages) {
+            chatHistory.append(message);
+        }
+        historyRecoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("✓ Restored " + messages.size() + " messages from the chat log in "
+            + historyRecoveryMillis + " ms");
+    }
+    
+    private static void markReady() {
+        startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.println("✓ Ready " + startupMillis + " ms after JVM start");
+    }
+    
+    // Add message to chat history
+    private static long addToChatHistory(Message message) {
+        // The ring overwrites its oldest entry once full
+        return chatHistory.append(message);
+    }
+    
+    // Tell admin consoles about a routed message, if any are listening
+    private static void publishMessageEvent(long sequence, Message message) {
+        if (AdminEventBus.hasSubscribers()) {
+            AdminEventBus.publish(AdminEvent.message(sequence, message));
         }
     }
     
@@ -145,19 +292,28 @@ public class Server {
     public static List<String> getConnectedClients() {
         List<String> clientList = new ArrayList<>();
         int index = 1;
-        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
-            String clientInfo = String.format("%d. %s (%s)", 
+        for (SessionRegistry.Session session : sessions.sessions()) {
+            ClientConnection connection = session.getConnection();
+            String clientInfo = String.format("%d. %s #%d (%s) [queue=%d, write=%.2fms]", 
                 index++, 
-                entry.getKey(), 
-                entry.getValue().getClientAddress());
+                session.getUsername(), 
+                session.getId(), 
+                connection.getClientAddress(),
+                connection.getQueueDepth(),
+                connection.getAverageWriteMillis());
             clientList.add(clientInfo);
         }
         return clientList;
     }
     
-    // Get chat history
+    // Get the last MAX_HISTORY_SIZE messages of chat history
     public static List<Message> getChatHistory() {
-        return new ArrayList<>(chatHistory);
+        return chatHistory.latest(Constants.MAX_HISTORY_SIZE);
+    }
+    
+    // Get one page of chat history for admin consoles
+    public static HistoryPage getChatHistoryPage(HistoryPage.Query query) {
+        return chatHistory.page(query);
     }
     
     // Get system statistics
@@ -165,38 +321,96 @@ public class Server {
         StringBuilder stats = new StringBuilder();
         stats.append("=== System Statistics ===\n");
         stats.append("Server Start Time: ").append(serverStartTime).append("\n");
-        stats.append("Active Users: ").append(clients.size()).append("\n");
-        stats.append("Total Messages Sent: ").append(totalMessagesSent).append("\n");
-        stats.append("Files Transferred: ").append(totalFilesTransferred).append("\n");
-        stats.append("Chat History Size: ").append(chatHistory.size()).append("\n");
-        stats.append("Admin Consoles Connected: ").append(adminSockets.size()).append("\n");
+        for (Map.Entry<String, Long> entry : getStatsSnapshot().entrySet()) {
+            stats.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
         stats.append("========================");
         return stats.toString();
     }
     
-    // Increment file transfer counter
-    public static void incrementFileTransfers() {
-        totalFilesTransferred++;
+    // Current values of the statistics, keyed by their display name; admin consoles get changes as STATS events
+    static Map<String, Long> getStatsSnapshot() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("Active Users", (long) sessions.size());
+        stats.put("Total Messages Sent", messagesRouted.get());
+        stats.put("Files Transferred", filesTransferred.get());
+        stats.put("Chat History Size", (long) chatHistory.size());
+        stats.put("Admin Consoles Connected", (long) adminSockets.size());
+        return stats;
+    }
+    
+    // Current users and statistics, sent to an admin console when it subscribes
+    static List<AdminEvent> getAdminSnapshot() {
+        List<AdminEvent> events = new ArrayList<>();
+        for (SessionRegistry.Session session : sessions.sessions()) {
+            events.add(AdminEvent.userJoined(session.getUsername(), session.getConnection().getClientAddress()));
+        }
+        events.add(AdminEvent.stats(getStatsSnapshot()));
+        return events;
+    }
+    
+    // Count a file transfer announced by a client; nothing has moved yet, so admin consoles are not told
+    public static void recordFileTransfer(String username, Message announcement) {
+        filesTransferred.increment();
+    }
+    
+    // Count a file the relay has delivered in full and tell admin consoles it finished
+    static void recordRelayedFile(String sender, Message offer) {
+        filesTransferred.increment();
+        if (AdminEventBus.hasSubscribers()) {
+            AdminEventBus.publish(AdminEvent.transferFinished(offer.getFileId(), sender + " -> " + offer.getReceiver(),
+                offer.getFilename(), offer.getFileSize()));
+        }
+    }
+    
+    // Pass a file offer, answer or cancellation to the other user; the bytes themselves go through the relay
+    public static void relayFileControl(String username, Message message) {
+        message.setSender(username);
+        String receiver = message.getReceiver();
+        ClientConnection target = receiver == null ? null : sessions.get(receiver);
+        ClientConnection origin = sessions.get(username);
+        
+        String error = null;
+        if (target == null) {
+            error = "User " + receiver + " is not online";
+        } else if (MessageType.FILE_METADATA.equals(message.getType())) {
+            error = fileRelay != null ? fileRelay.register(username, message) : "File relay is not running";
+        }
+        
+        if (error != null) {
+            if (fileRelay != null && !MessageType.FILE_METADATA.equals(message.getType())) {
+                fileRelay.cancel(message.getFileId(), username);
+            }
+            if (origin != null) {
+                Message reply = new Message(MessageType.FILE_ERROR, "SERVER", username, error);
+                reply.setFileId(message.getFileId());
+                origin.sendMessage(reply);
+            }
+            return;
+        }
+        
+        if (fileRelay != null && (MessageType.FILE_TRANSFER_REJECT.equals(message.getType())
+                || MessageType.FILE_ERROR.equals(message.getType()))) {
+            fileRelay.cancel(message.getFileId(), username);
+        }
+        target.sendMessage(message);
     }
     
     // Kick user
     public static boolean kickUser(String username) {
-        ClientHandler handler = clients.get(username);
+        ClientConnection handler = sessions.get(username);
         if (handler != null) {
+            chatLogger.logAdminAction("KICK_USER " + username);
             handler.disconnect();
+            sessions.forget(username); // a kicked user cannot resume with the old token
             return true;
         }
         return false;
     }
     
-    // Update all admin consoles with latest info
-    private static void updateAdminConsoles() {
-        // This will be called by admin handlers when they request updates
-    }
-    
     // Get client handler by username
-    public static ClientHandler getClientHandler(String username) {
-        return clients.get(username);
+    public static ClientConnection getClientHandler(String username) {
+        return sessions.get(username);
     }
     
     // Get chat logger
@@ -210,14 +424,28 @@ public class Server {
             System.out.println("\nShutting down server...");
             
             // Disconnect all clients
-            for (ClientHandler client : clients.values()) {
-                client.disconnect();
+            for (SessionRegistry.Session session : sessions.sessions()) {
+                session.getConnection().disconnect();
+            }
+            
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+            
+            if (fileRelay != null) {
+                fileRelay.stop();
+            }
+            
+            if (clientExecutor != null) {
+                clientExecutor.shutdownNow();
             }
             
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
             
+            chatLogger.close();
+            
             System.out.println("Server shutdown complete");
         } catch (IOException e) {
             System.err.println("Error during shutdown: " + e.getMessage());
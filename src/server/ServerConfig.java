@@ -0,0 +1,262 @@
+package server;
+
+import common.Constants;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime settings for the chat server.
+ * Each value can be overridden with a -Dchat.* system property and
+ * otherwise falls back to the defaults in Constants.
+ */
+public final class ServerConfig {
+
+    public static final String MODE_THREAD = "thread";
+    public static final String MODE_NIO = "nio";
+
+    private ServerConfig() {
+        throw new UnsupportedOperationException("Cannot instantiate ServerConfig class");
+    }
+
+    /**
+     * Connection handling mode: "thread" (one ClientHandler per socket) or "nio"
+     */
+    public static String serverMode() {
+        return stringProperty("chat.server.mode", Constants.DEFAULT_SERVER_MODE);
+    }
+
+    /**
+     * Number of selector loops used by NioChatServer
+     */
+    public static int nioLoopThreads() {
+        return Math.max(1, intProperty("chat.nio.threads", Constants.NIO_LOOP_THREADS));
+    }
+
+    /**
+     * How connection handlers are run: "platform", "virtual" or "pool"
+     */
+    public static String executorMode() {
+        return stringProperty("chat.executor", Constants.DEFAULT_EXECUTOR_MODE);
+    }
+
+    /**
+     * Worker count used by the bounded "pool" executor mode
+     */
+    public static int executorPoolSize() {
+        return Math.max(1, intProperty("chat.executor.poolSize", Constants.EXECUTOR_POOL_SIZE));
+    }
+
+    /**
+     * Messages buffered per client before the overflow policy applies
+     */
+    public static int outboundQueueCapacity() {
+        return Math.max(1, intProperty("chat.outbound.capacity", Constants.OUTBOUND_QUEUE_CAPACITY));
+    }
+
+    /**
+     * What to do when a client's outbound queue is full
+     */
+    public static OutboundQueue.OverflowPolicy overflowPolicy() {
+        return OutboundQueue.OverflowPolicy.parse(
+                stringProperty("chat.outbound.policy", Constants.DEFAULT_OVERFLOW_POLICY));
+    }
+
+    /**
+     * How long a sender waits for queue space under the "block" policy
+     */
+    public static long overflowBlockMillis() {
+        return Math.max(0, longProperty("chat.outbound.blockMillis", Constants.OVERFLOW_BLOCK_TIMEOUT));
+    }
+
+    /**
+     * How long after a disconnect a client may take its session back with its reconnect token (0 = only while
+     * the old connection is still open)
+     */
+    public static long sessionResumeMillis() {
+        return Math.max(0, longProperty("chat.session.resumeMillis", Constants.SESSION_RESUME_TIMEOUT));
+    }
+
+    /**
+     * Time between admin event batches; events in between are coalesced
+     */
+    public static long adminEventIntervalMillis() {
+        return Math.max(10, longProperty("chat.admin.eventMillis", Constants.ADMIN_EVENT_INTERVAL));
+    }
+
+    /**
+     * Message events buffered per admin console before older ones are skipped
+     */
+    public static int adminEventMaxMessages() {
+        return Math.max(1, intProperty("chat.admin.maxMessageEvents", Constants.ADMIN_EVENT_MAX_MESSAGES));
+    }
+
+    /**
+     * Port of the file relay that carries file bytes between users
+     */
+    public static int relayPort() {
+        return intProperty("chat.relay.port", Constants.FILE_TRANSFER_PORT);
+    }
+
+    /**
+     * Directory holding relayed files until the receiver has read them
+     */
+    public static String relaySpoolDir() {
+        return stringProperty("chat.relay.spoolDir", Constants.RELAY_SPOOL_DIR);
+    }
+
+    /**
+     * Largest slice moved by one transferFrom/transferTo call; receivers are woken after each slice
+     */
+    public static int relayChunkBytes() {
+        return Math.max(64 * 1024, intProperty("chat.relay.chunkBytes", Constants.RELAY_CHUNK_SIZE));
+    }
+
+    /**
+     * How long a relayed transfer may go without progress before its spool file is deleted
+     */
+    public static long relayIdleMillis() {
+        return Math.max(1000, longProperty("chat.relay.idleMillis", Constants.RELAY_IDLE_TIMEOUT));
+    }
+
+    /**
+     * How long a fully spooled file may wait for its first download before its spool file is deleted
+     */
+    public static long relayAcceptMillis() {
+        return Math.max(relayIdleMillis(), longProperty("chat.relay.acceptMillis", Constants.RELAY_ACCEPT_TIMEOUT));
+    }
+
+    /**
+     * Worker threads of the HTTP file server; each upload or download holds one while it runs
+     */
+    public static int httpFileWorkers() {
+        return Math.max(1, intProperty("chat.http.workers", Constants.HTTP_FILE_WORKERS));
+    }
+
+    /**
+     * Size of the buffer each HTTP file server worker copies file bytes through
+     */
+    public static int httpFileBufferBytes() {
+        return Math.max(8192, intProperty("chat.http.bufferBytes", Constants.HTTP_FILE_BUFFER_SIZE));
+    }
+
+    /**
+     * Messages kept in the in-memory history ring (rounded up to a power of two)
+     */
+    public static int historyCapacity() {
+        return Math.max(Constants.MAX_HISTORY_SIZE,
+                intProperty("chat.history.capacity", Constants.HISTORY_RING_CAPACITY));
+    }
+
+    /**
+     * Messages read back from the end of the chat log into the history on startup (0 = start empty)
+     */
+    public static int historyWarmStart() {
+        return Math.max(0, intProperty("chat.history.warmStart", Constants.HISTORY_WARM_START));
+    }
+
+    /**
+     * Log entries that may wait for the writer thread before callers are held back
+     */
+    public static int logQueueCapacity() {
+        return Math.max(1, intProperty("chat.log.queueCapacity", Constants.LOG_QUEUE_CAPACITY));
+    }
+
+    /**
+     * Longest time a written log entry stays in the buffer before it is flushed
+     */
+    public static long logFlushIntervalMillis() {
+        return Math.max(1, longProperty("chat.log.flushMillis", Constants.LOG_FLUSH_INTERVAL));
+    }
+
+    /**
+     * Force log files to disk after every flush
+     */
+    public static boolean logFsync() {
+        return booleanProperty("chat.log.fsync", false);
+    }
+
+    /**
+     * Size of each memory-mapped log segment; at least 64 KB, at most 1 GB
+     */
+    public static int logSegmentBytes() {
+        return Math.min(1 << 30, Math.max(64 * 1024, intProperty("chat.log.segmentBytes", Constants.LOG_SEGMENT_SIZE)));
+    }
+
+    /**
+     * Start a new log segment at the start of every interval (0 = by size only)
+     */
+    public static long logRotateMillis() {
+        return TimeUnit.MINUTES.toMillis(Math.max(0, longProperty("chat.log.rotateMinutes", Constants.LOG_ROTATE_INTERVAL)));
+    }
+
+    /**
+     * Gzip log segments once they are sealed
+     */
+    public static boolean logCompress() {
+        return booleanProperty("chat.log.compress", true);
+    }
+
+    /**
+     * Age after which sealed log segments are deleted (0 = keep)
+     */
+    public static long logRetentionMillis() {
+        return TimeUnit.DAYS.toMillis(Math.max(0, intProperty("chat.log.retentionDays", Constants.LOG_RETENTION_DAYS)));
+    }
+
+    /**
+     * Disk space each log may use before its oldest segments are deleted (0 = unlimited)
+     */
+    public static long logMaxBytes() {
+        return Math.max(0, longProperty("chat.log.maxBytes", Constants.LOG_MAX_BYTES));
+    }
+
+    /**
+     * Posting bytes of sealed log segments each search index keeps loaded; the least recently searched are dropped
+     */
+    public static long logIndexCacheBytes() {
+        return Math.max(0, longProperty("chat.log.indexCacheBytes", Constants.LOG_INDEX_CACHE_BYTES));
+    }
+
+    /**
+     * Discard log entries instead of waiting when the log queue is full
+     */
+    public static boolean logDropWhenFull() {
+        return booleanProperty("chat.log.dropWhenFull", false);
+    }
+
+    static String stringProperty(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    static int intProperty(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + " (using " + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+
+    static long longProperty(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + " (using " + defaultValue + ")");
+            return defaultValue;
+        }
+    }
+
+    static boolean booleanProperty(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,254 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logged-in chat sessions, keyed by username.
+ *
+ * A login reserves its name with a single putIfAbsent, so checking and
+ * claiming a username is one O(1) step with no global lock; two logins race
+ * only when they ask for the same name. Each username is interned to a small
+ * numeric ID that stays the same for the life of the server.
+ *
+ * Every session also gets a random reconnect token. A client that lost its
+ * connection can present the token to take its session back, both while the
+ * server still holds the old connection and for a short grace period after
+ * the session ended.
+ */
+public class SessionRegistry {
+
+    /**
+     * One user's session; the connection changes when the user reconnects
+     */
+    public static final class Session {
+        private final int id;
+        private final String username;
+        private final String token;
+        private volatile ClientConnection connection;
+        private volatile long endedNanos;
+
+        Session(int id, String username, String token, ClientConnection connection) {
+            this.id = id;
+            this.username = username;
+            this.token = token;
+            this.connection = connection;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public ClientConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Content of the LOGIN reply: the greeting, then session=ID and token=TOKEN lines
+         */
+        public String loginReply() {
+            return "Login successful\nsession=" + id + "\ntoken=" + token;
+        }
+    }
+
+    private static final int TOKEN_BYTES = 18;
+    private static final int DETACHED_SWEEP_SIZE = 1024;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> detached = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    // One generator per thread, so a login storm does not queue on a shared entropy source
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    });
+    private final long resumeNanos;
+
+    /**
+     * @param resumeMillis how long a token stays valid after its session ended
+     */
+    public SessionRegistry(long resumeMillis) {
+        this.resumeNanos = TimeUnit.MILLISECONDS.toNanos(resumeMillis);
+    }
+
+    /**
+     * Claim a username for a new session
+     *
+     * @return the session, or null if the name is in use
+     */
+    public Session register(String username, ClientConnection connection) {
+        Session existing = sessions.get(username);
+        if (existing != null) return null; // cheap rejection without building a session
+
+        Session session = new Session(idFor(username), username, newToken(), connection);
+        if (sessions.putIfAbsent(username, session) != null) {
+            return null;
+        }
+        detached.remove(username); // a fresh login invalidates the last session's token
+        return session;
+    }
+
+    /**
+     * Take a session back with its reconnect token. If the session is still
+     * live, its old connection is closed without ending the session.
+     *
+     * @return the resumed session, or null if the token does not match
+     */
+    public Session resume(String username, String token, ClientConnection connection) {
+        if (token == null) return null;
+
+        Session live = sessions.get(username);
+        if (live != null) {
+            if (!tokenMatches(live, token)) return null;
+
+            ClientConnection replaced = null;
+            synchronized (live) {
+                if (sessions.get(username) == live) {
+                    replaced = live.connection;
+                    live.connection = connection;
+                }
+            }
+            if (replaced != null) {
+                replaced.disconnect(); // no longer owns the session, so nothing is unregistered
+                return live;
+            }
+            // The session ended meanwhile; resume it like any other ended session
+        }
+
+        Session ended = detached.get(username);
+        if (ended == null || !tokenMatches(ended, token)
+                || System.nanoTime() - ended.endedNanos > resumeNanos
+                || !detached.remove(username, ended)) {
+            return null;
+        }
+        Session session = new Session(ended.id, username, ended.token, connection);
+        return sessions.putIfAbsent(username, session) == null ? session : null;
+    }
+
+    /**
+     * End a session, unless the connection was already replaced by a reconnect
+     *
+     * @return true if this connection owned the session and it was removed
+     */
+    public boolean unregister(String username, ClientConnection connection) {
+        Session session = sessions.get(username);
+        if (session == null) return false;
+
+        synchronized (session) {
+            if (session.connection != connection || !sessions.remove(username, session)) {
+                return false;
+            }
+        }
+
+        session.endedNanos = System.nanoTime();
+        if (resumeNanos > 0) {
+            detached.put(username, session);
+            if (detached.size() > DETACHED_SWEEP_SIZE) {
+                sweepDetached();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop a user's reconnect token, e.g. after an admin kicked them
+     */
+    public void forget(String username) {
+        detached.remove(username);
+    }
+
+    /**
+     * Whether the token belongs to the user's live session; lets side channels
+     * such as the file relay tell which user is connecting
+     */
+    public boolean authenticate(String username, String token) {
+        Session session = username == null || token == null ? null : sessions.get(username);
+        return session != null && tokenMatches(session, token);
+    }
+
+    public ClientConnection get(String username) {
+        Session session = sessions.get(username);
+        return session == null ? null : session.connection;
+    }
+
+    public Session getSession(String username) {
+        return sessions.get(username);
+    }
+
+    public Collection<Session> sessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private int idFor(String username) {
+        return ids.computeIfAbsent(username, name -> nextId.incrementAndGet());
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.get().nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static boolean tokenMatches(Session session, String token) {
+        return MessageDigest.isEqual(session.token.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sweepDetached() {
+        long now = System.nanoTime();
+        for (Iterator<Session> it = detached.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().endedNanos > resumeNanos) {
+                it.remove();
+            }
+        }
+    }
+
+    // ============ LOGIN CONTENT ============
+
+    /**
+     * The username in a LOGIN request: the first line of its content
+     */
+    public static String loginName(String content) {
+        if (content == null) return null;
+        int newline = content.indexOf('\n');
+        return newline < 0 ? content : content.substring(0, newline);
+    }
+
+    /**
+     * The reconnect token in a LOGIN request, sent as a token=TOKEN line after the username
+     */
+    public static String loginToken(String content) {
+        if (content == null) return null;
+        for (String line : content.split("\n")) {
+            if (line.startsWith("token=")) {
+                String token = line.substring(6).trim();
+                return token.isEmpty() ? null : token;
+            }
+        }
+        return null;
+    }
+}
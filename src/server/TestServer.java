@@ -8,6 +8,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Small test server stub used to validate the client during development.
@@ -16,18 +17,19 @@ import java.net.Socket;
 public class TestServer {
     public static void main(String[] args) {
         System.out.println("TestServer starting on port " + Constants.SERVER_PORT);
+        ExecutorService executor = ConnectionExecutors.createDaemon("test-client");
         try (ServerSocket serverSocket = new ServerSocket(Constants.SERVER_PORT)) {
             while (true) {
                 System.out.println("Waiting for client...");
                 Socket socket = serverSocket.accept();
                 System.out.println("Client connected from " + socket.getRemoteSocketAddress());
 
-                Thread t = new Thread(() -> handleClient(socket));
-                t.setDaemon(true);
-                t.start();
+                executor.execute(() -> handleClient(socket));
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -1,6 +1,8 @@
 package server;
 
+import common.AdminEvent;
 import common.Constants;
+import common.HistoryPage;
 import common.Message;
 import common.MessageType;
 
@@ -12,6 +14,7 @@ import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,6 +27,7 @@ public class WebAdminServer implements Runnable {
     private final int port;
     private final Map<String, WebSocketConnection> connections = new ConcurrentHashMap<>();
     private boolean running = false;
+    private ExecutorService connectionExecutor;
 
     public WebAdminServer(int port) {
         this.port = port;
@@ -31,6 +35,7 @@ public class WebAdminServer implements Runnable {
 
     public void start() {
         running = true;
+        connectionExecutor = ConnectionExecutors.create("web-admin");
         new Thread(this).start();
     }
 
@@ -43,7 +48,7 @@ public class WebAdminServer implements Runnable {
             
             while (running) {
                 Socket client = serverSocket.accept();
-                new Thread(new WebSocketConnection(client)).start();
+                connectionExecutor.execute(new WebSocketConnection(client));
             }
         } catch (IOException e) {
             if (running) {
@@ -54,6 +59,9 @@ public class WebAdminServer implements Runnable {
 
     public void stop() {
         running = false;
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
         try {
             if (serverSocket != null) serverSocket.close();
         } catch (IOException e) {
@@ -68,6 +76,7 @@ public class WebAdminServer implements Runnable {
         private boolean isWebSocket = false;
         private String sessionId;
         private ClientHandler adminHandler;
+        private volatile AdminEventBus.Subscription adminEvents;
 
         public WebSocketConnection(Socket socket) {
             this.socket = socket;
@@ -89,6 +98,8 @@ public class WebAdminServer implements Runnable {
                 if (firstLine.startsWith("GET /admin")) {
                     // Serve admin HTML page
                     serveAdminPage();
+                } else if (firstLine.startsWith("GET /metrics")) {
+                    serveMetrics();
                 } else if (firstLine.contains("Upgrade: websocket") || firstLine.startsWith("GET")) {
                     // Handle WebSocket upgrade
                     handleWebSocketUpgrade(reader, firstLine);
@@ -128,6 +139,19 @@ public class WebAdminServer implements Runnable {
             }
         }
 
+        private void serveMetrics() throws IOException {
+            byte[] content = MetricsRegistry.scrape().getBytes(StandardCharsets.UTF_8);
+            String response = "HTTP/1.1 200 OK\r\n" +
+                    "Content-Type: text/plain; version=0.0.4; charset=UTF-8\r\n" +
+                    "Content-Length: " + content.length + "\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n";
+
+            output.write(response.getBytes(StandardCharsets.UTF_8));
+            output.write(content);
+            output.flush();
+        }
+
         private void handleWebSocketUpgrade(BufferedReader reader, String firstLine) throws IOException {
             String key = null;
             String line;
@@ -221,7 +245,8 @@ public class WebAdminServer implements Runnable {
             return new String(payload, StandardCharsets.UTF_8);
         }
 
-        private void sendWebSocketFrame(String message) throws IOException {
+        // Replies and pushed events come from different threads
+        private synchronized void sendWebSocketFrame(String message) throws IOException {
             byte[] payload = message.getBytes(StandardCharsets.UTF_8);
             
             output.write(0x81); // Text frame
@@ -262,6 +287,9 @@ public class WebAdminServer implements Runnable {
                     case "GET_CHAT_HISTORY":
                         sendChatHistory();
                         break;
+                    case "GET_HISTORY_PAGE":
+                        sendHistoryPage(jsonMessage);
+                        break;
                     case "GET_SYSTEM_STATS":
                         sendSystemStats();
                         break;
@@ -295,6 +323,12 @@ public class WebAdminServer implements Runnable {
                 Constants.ADMIN_PASSWORD.equals(parts[1])) {
                 
                 sendJsonMessage("ADMIN_AUTH_SUCCESS", "SERVER", "Admin authentication successful");
+                
+                // Push changes to this page from now on
+                if (adminEvents == null) {
+                    adminEvents = AdminEventBus.subscribe("web-" + sessionId,
+                        batch -> sendWebSocketFrame(AdminEvent.toJson(batch)), Server::getAdminSnapshot);
+                }
             } else {
                 sendJsonMessage("ADMIN_AUTH_FAILED", "SERVER", "Invalid admin credentials");
             }
@@ -326,6 +360,23 @@ public class WebAdminServer implements Runnable {
             sendJsonMessage("CHAT_HISTORY_DATA", "SERVER", history.toString());
         }
 
+        // {"type":"GET_HISTORY_PAGE","cursor":"120","direction":"older","limit":"50","filterSender":"","filterType":""}
+        private void sendHistoryPage(String jsonMessage) throws IOException {
+            StringBuilder query = new StringBuilder();
+            appendQueryField(query, "cursor", extractJsonField(jsonMessage, "cursor"));
+            appendQueryField(query, "direction", extractJsonField(jsonMessage, "direction"));
+            appendQueryField(query, "limit", extractJsonField(jsonMessage, "limit"));
+            appendQueryField(query, "sender", extractJsonField(jsonMessage, "filterSender"));
+            appendQueryField(query, "type", extractJsonField(jsonMessage, "filterType"));
+            sendWebSocketFrame(Server.getChatHistoryPage(HistoryPage.Query.parse(query.toString())).toJson());
+        }
+
+        private void appendQueryField(StringBuilder query, String key, String value) {
+            if (value != null) {
+                query.append(key).append('=').append(value).append('\n');
+            }
+        }
+
         private void sendSystemStats() throws IOException {
             String stats = Server.getSystemStats();
             sendJsonMessage("SYSTEM_STATS_DATA", "SERVER", stats);
@@ -349,6 +400,7 @@ public class WebAdminServer implements Runnable {
         }
 
         private void cleanup() {
+            AdminEventBus.unsubscribe(adminEvents);
             connections.remove(sessionId);
             try {
                 if (socket != null) socket.close();
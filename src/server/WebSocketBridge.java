@@ -1,5 +1,6 @@
 package server;
 
+import common.EncodedFrame;
 import common.Message;
 import common.MessageType;
 import common.Constants;
@@ -90,7 +91,8 @@ public class WebSocketBridge extends WebSocketServer {
 
     // Very small JSON parser for our message shape. Expects JSON like:
     // {"type":"BROADCAST","sender":"alice","content":"Hello","targetUser":"bob"}
-    private Message parseJsonMessage(String json) {
+    // Public and static so the benchmarks module can measure it.
+    public static Message parseJsonMessage(String json) {
         if (json == null)
             return null;
         String type = extractString(json, "type");
@@ -105,7 +107,7 @@ public class WebSocketBridge extends WebSocketServer {
         return m;
     }
 
-    private String extractString(String json, String key) {
+    private static String extractString(String json, String key) {
         Pattern p = Pattern.compile("\"" + key + "\"\\s*:\\s*\"(.*?)\"");
         Matcher m = p.matcher(json);
         if (m.find())
@@ -114,19 +116,7 @@ public class WebSocketBridge extends WebSocketServer {
     }
 
     private String toJson(Message m) {
-        StringBuilder sb = new StringBuilder();
-        sb.append('{');
-        sb.append("\"type\":\"").append(m.getType()).append('\"');
-        sb.append(',');
-        sb.append("\"sender\":\"").append(escape(m.getSender())).append('\"');
-        sb.append(',');
-        sb.append("\"content\":\"").append(escape(m.getContent())).append('\"');
-        if (m.getTargetUser() != null) {
-            sb.append(',');
-            sb.append("\"targetUser\":\"").append(escape(m.getTargetUser())).append('\"');
-        }
-        sb.append('}');
-        return sb.toString();
+        return EncodedFrame.of(m).json();
     }
 
     private Message buildSystemMessage(String text) {
@@ -137,16 +127,9 @@ public class WebSocketBridge extends WebSocketServer {
         return toJson(buildSystemMessage(text));
     }
 
-    private String escape(String s) {
-        if (s == null)
-            return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
-    }
-
+    // broadcast() builds the WebSocket frame once for all connections
     private void broadcastJson(String json) {
-        for (WebSocket ws : userSockets.values()) {
-            ws.send(json);
-        }
+        broadcast(json, userSockets.values());
     }
 
     public static void main(String[] args) throws Exception {
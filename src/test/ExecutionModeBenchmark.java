@@ -0,0 +1,179 @@
+package test;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the server executor modes ("platform", "virtual", "pool").
+ * Starts Server in-process with the requested mode, opens N blocking
+ * clients, then measures how many log in and the broadcast delivery latency.
+ *
+ * Usage: java test.ExecutionModeBenchmark <mode> [clients] [messages]
+ * Run once per mode; Server keeps static state so modes cannot share a JVM.
+ */
+public class ExecutionModeBenchmark {
+    private static final String PREFIX = "bench:";
+
+    private final int clientCount;
+    private final int messageCount;
+    private final List<BenchClient> clients = new ArrayList<>();
+    private final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "bench-reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long[] latencies;
+    private final AtomicInteger latencyCount = new AtomicInteger();
+    private volatile CountDownLatch delivered;
+
+    public ExecutionModeBenchmark(int clientCount, int messageCount) {
+        this.clientCount = clientCount;
+        this.messageCount = messageCount;
+        this.latencies = new long[clientCount * messageCount];
+    }
+
+    private int connectClients() {
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                BenchClient client = new BenchClient("bench" + i);
+                if (client.login()) {
+                    clients.add(client);
+                    readers.execute(client);
+                }
+            } catch (Exception e) {
+                System.err.println("Client " + i + " failed: " + e.getMessage());
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Connected " + clients.size() + "/" + clientCount + " clients in " + elapsed + " ms");
+        return clients.size();
+    }
+
+    private void measureBroadcasts() throws Exception {
+        BenchClient sender = clients.get(0);
+        int timeouts = 0;
+
+        for (int i = 0; i < messageCount; i++) {
+            delivered = new CountDownLatch(clients.size());
+            sender.send(new Message(MessageType.PUBLIC_MESSAGE, sender.username,
+                    PREFIX + i + ":" + System.nanoTime()));
+            if (!delivered.await(10, TimeUnit.SECONDS)) {
+                timeouts++;
+            }
+        }
+
+        int count = latencyCount.get();
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.printf("Deliveries: %d, timeouts: %d%n", count, timeouts);
+        System.out.printf("Broadcast latency p50=%.3f ms p99=%.3f ms max=%.3f ms%n",
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6,
+                count == 0 ? 0 : sorted[count - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private void recordDelivery(String content) {
+        int end = content.lastIndexOf(':');
+        long sentAt = Long.parseLong(content.substring(end + 1));
+        int slot = latencyCount.getAndIncrement();
+        if (slot < latencies.length) {
+            latencies[slot] = System.nanoTime() - sentAt;
+        }
+        CountDownLatch latch = delivered;
+        if (latch != null) latch.countDown();
+    }
+
+    class BenchClient implements Runnable {
+        private final String username;
+        private final Socket socket;
+        private final ObjectOutputStream output;
+        private final ObjectInputStream input;
+
+        BenchClient(String username) throws Exception {
+            this.username = username;
+            this.socket = new Socket(Constants.SERVER_IP, Constants.SERVER_PORT);
+            this.output = new ObjectOutputStream(socket.getOutputStream());
+            output.flush();
+            this.input = new ObjectInputStream(socket.getInputStream());
+        }
+
+        boolean login() throws Exception {
+            // A saturated "pool" executor never picks the connection up, so give up after a while
+            socket.setSoTimeout(5000);
+            send(new Message(MessageType.LOGIN, username, username));
+            try {
+                while (true) {
+                    Message reply = (Message) input.readObject();
+                    if (MessageType.ERROR.equals(reply.getType())) return false;
+                    if (MessageType.LOGIN.equals(reply.getType())) return true;
+                }
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                return false;
+            } finally {
+                if (!socket.isClosed()) socket.setSoTimeout(0);
+            }
+        }
+
+        synchronized void send(Message message) throws Exception {
+            output.writeObject(message);
+            output.flush();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Message message = (Message) input.readObject();
+                    if (MessageType.MESSAGE_BROADCAST.equals(message.getType())
+                            && message.getContent() != null && message.getContent().startsWith(PREFIX)) {
+                        recordDelivery(message.getContent());
+                    }
+                }
+            } catch (Exception e) {
+                // connection closed at the end of the run
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        System.setProperty("chat.executor", mode);
+        Thread serverThread = new Thread(() -> server.Server.main(new String[0]), "bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+
+        System.out.println("=== Execution mode: " + mode + ", clients: " + clients + ", messages: " + messages + " ===");
+        ExecutionModeBenchmark benchmark = new ExecutionModeBenchmark(clients, messages);
+        if (benchmark.connectClients() > 0) {
+            benchmark.measureBroadcasts();
+        }
+        System.out.println("JVM threads: " + Thread.activeCount());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,343 @@
+package test;
+
+import client.files.FileReceiver;
+import client.files.FileSender;
+import common.Constants;
+import common.FileRelay;
+import common.Message;
+import common.MessageIO;
+import common.MessageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Loopback throughput of the server's file relay.
+ *
+ * Logs a sender and a receiver in to a running Server, offers a file over the
+ * chat connection and moves it through the relay on FILE_TRANSFER_PORT. The
+ * default mode drives both ends with transferTo/transferFrom so the numbers
+ * show what the relay itself sustains; --client=true uses FileSender and
+ * FileReceiver instead. Every run checks the received file against the
+ * original's CRC32. --streams splits each side into that many parallel relay
+ * connections over disjoint ranges. With --resume=true the client run closes the receiver
+ * halfway through, as if it had dropped off, and times how long the second
+ * receiveFile call takes to pick up the rest. --content=text relays a
+ * CSV-like log instead of random bytes, which FileSender compresses unless
+ * --compress=false.
+ *
+ * Usage: java test.FileRelayBenchmark [--option=value ...]
+ *   --sizeMb=100         file size, at most MAX_FILE_SIZE
+ *   --runs=3
+ *   --client=false       send with FileSender and receive with FileReceiver
+ *   --resume=false       interrupt each client run halfway and resume it
+ *   --streams=1          parallel relay connections per side
+ *   --rateLimitMb=0      FileSender rate limit in MB/s, 0 for none
+ *   --sha256=false       have FileSender add a SHA-256 digest that FileReceiver verifies
+ *   --content=random     random or text
+ *   --compress=true      let FileSender compress files that compress well
+ *   --port=5000          chat port
+ *   --relayPort=5001
+ */
+public class FileRelayBenchmark {
+    private static final String PREFIX = "rb:";
+
+    private final long size;
+    private final int runs;
+    private final boolean useClients;
+    private final boolean resume;
+    private final int streams;
+    private final long rateLimit;
+    private final boolean sha256;
+    private final boolean text;
+    private final boolean compress;
+    private final int port;
+    private final int relayPort;
+
+    public FileRelayBenchmark(Map<String, String> options) {
+        this.size = Long.parseLong(options.getOrDefault("sizeMb", "100")) * 1024 * 1024;
+        this.runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+        this.useClients = Boolean.parseBoolean(options.getOrDefault("client", "false"));
+        this.streams = Integer.parseInt(options.getOrDefault("streams", "1"));
+        this.sha256 = Boolean.parseBoolean(options.getOrDefault("sha256", "false"));
+        this.text = "text".equals(options.getOrDefault("content", "random"));
+        this.compress = Boolean.parseBoolean(options.getOrDefault("compress", String.valueOf(Constants.FILE_COMPRESSION)));
+        this.rateLimit = Long.parseLong(options.getOrDefault("rateLimitMb", "0")) * 1024 * 1024;
+        this.resume = useClients && Boolean.parseBoolean(options.getOrDefault("resume", "false"));
+        this.port = Integer.parseInt(options.getOrDefault("port", String.valueOf(Constants.SERVER_PORT)));
+        this.relayPort = Integer.parseInt(options.getOrDefault("relayPort", String.valueOf(Constants.FILE_TRANSFER_PORT)));
+    }
+
+    public void run() throws Exception {
+        if (size > Constants.MAX_FILE_SIZE) {
+            throw new IllegalArgumentException("The relay accepts files up to " + (Constants.MAX_FILE_SIZE >> 20) + " MB");
+        }
+        Path source = Files.createTempFile("relay-bench", ".bin");
+        Path target = Files.createTempFile("relay-bench", ".out");
+        try {
+            // The raw run relays opaque bytes, so it sends as many as the framed file would take
+            long sourceSize = useClients ? size : FileRelay.wireLength(size);
+            long expectedCrc = writeSourceFile(source, sourceSize, text);
+            Session sender = login(PREFIX + "sender");
+            Session receiver = login(PREFIX + "receiver");
+
+            System.out.printf("Relaying %d MB of %s, %s, %d stream(s)%n", size >> 20, text ? "text" : "random bytes",
+                    useClients ? "FileSender -> FileReceiver" : "transferTo -> transferFrom", streams);
+            for (int i = 1; i <= runs; i++) {
+                Files.deleteIfExists(target);
+                long start = System.nanoTime();
+                long received = useClients
+                        ? relayWithClients(sender, receiver, source.toFile(), target)
+                        : relayRaw(sender, receiver, source, target);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                boolean intact = received == sourceSize && crc(target) == expectedCrc;
+                System.out.printf("  run %d: %.2f s, %.1f MB/s%s%n", i, seconds, size / seconds / (1024 * 1024),
+                        intact ? "" : "  CORRUPT (" + received + " bytes)");
+                if (lastResume != null) {
+                    System.out.println("         " + lastResume);
+                }
+            }
+
+            sender.io.close();
+            receiver.io.close();
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private long relayRaw(Session sender, Session receiver, Path source, Path target) throws Exception {
+        String fileId = UUID.randomUUID().toString();
+        Message offer = new Message(MessageType.FILE_METADATA, sender.username, receiver.username,
+                source.getFileName().toString(), size, fileId);
+        sender.io.write(offer);
+        awaitMessage(receiver, MessageType.FILE_METADATA);
+
+        long[][] ranges = FileRelay.stripes(size, streams);
+        AtomicLong received = new AtomicLong();
+        List<Thread> downloads = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            out.write(ByteBuffer.allocate(1), in.size() - 1); // transferFrom cannot write past the end of the file
+            for (long[] range : ranges) {
+                Thread download = new Thread(() -> {
+                    try (SocketChannel channel = openRelay(FileRelay.RECV, fileId, receiver, range)) {
+                        for (long position = range[0]; position < range[1]; ) {
+                            long n = out.transferFrom(channel, position, range[1] - position);
+                            if (n <= 0) break;
+                            position += n;
+                            received.addAndGet(n);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Download failed: " + e.getMessage());
+                    }
+                }, "relay-bench-download");
+                download.start();
+                downloads.add(download);
+            }
+
+            List<Thread> uploads = new ArrayList<>();
+            for (long[] range : ranges) {
+                Thread upload = new Thread(() -> {
+                    try (SocketChannel channel = openRelay(FileRelay.SEND, fileId, sender, range)) {
+                        for (long position = range[0]; position < range[1]; ) {
+                            position += in.transferTo(position, range[1] - position, channel);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Upload failed: " + e.getMessage());
+                    }
+                }, "relay-bench-upload");
+                upload.start();
+                uploads.add(upload);
+            }
+            for (Thread thread : uploads) thread.join();
+            for (Thread thread : downloads) thread.join();
+        }
+        return received.get();
+    }
+
+    private long relayWithClients(Session sender, Session receiver, File source, Path target) throws Exception {
+        if (fileSender == null) {
+            fileSender = new FileSender(sender.io, sender.username, sender.token); // kept, so it learns the link rate
+        }
+        FileReceiver fileReceiver = new FileReceiver(receiver.io, receiver.username, receiver.token);
+        fileSender.setRelayAddress(Constants.SERVER_HOST, relayPort);
+        fileReceiver.setRelayAddress(Constants.SERVER_HOST, relayPort);
+        fileSender.setStreams(streams);
+        fileSender.setRateLimit(rateLimit);
+        fileSender.setSha256(sha256);
+        fileSender.setCompression(compress);
+        fileReceiver.setStreams(streams);
+        fileReceiver.setReceiveDirectory(target.getParent().resolve("relay-bench-" + UUID.randomUUID()).toString());
+
+        Thread upload = new Thread(() -> fileSender.sendFile(source, receiver.username), "relay-bench-upload");
+        upload.start();
+        Message offer = awaitMessage(receiver, MessageType.FILE_METADATA);
+        Thread chat = new Thread(() -> {
+            try {
+                fileReceiver.handleFileComplete(awaitMessage(receiver, MessageType.FILE_COMPLETE));
+            } catch (IOException e) {
+                System.err.println("Receiver chat connection failed: " + e.getMessage());
+            }
+        }, "relay-bench-chat");
+        chat.start();
+        String saved = resume ? receiveInterrupted(fileReceiver, offer) : fileReceiver.receiveFile(offer);
+        upload.join();
+        chat.join();
+        if (saved == null) return -1;
+
+        Path savedPath = new File(saved).toPath();
+        Files.move(savedPath, target);
+        Files.deleteIfExists(savedPath.getParent());
+        return Files.size(target);
+    }
+
+    private FileSender fileSender;
+    private String lastResume;
+
+    // Drop the receiver at half way, then receive the same file ID again
+    private String receiveInterrupted(FileReceiver fileReceiver, Message offer) throws Exception {
+        Thread first = new Thread(() -> fileReceiver.receiveFile(offer), "relay-bench-receive");
+        first.start();
+        while (fileReceiver.getProgress() < 50 && first.isAlive()) {
+            Thread.sleep(5);
+        }
+        fileReceiver.close();
+        first.join();
+
+        int resumedAt = fileReceiver.getProgress();
+        long start = System.nanoTime();
+        String saved = fileReceiver.receiveFile(offer);
+        lastResume = String.format("dropped at %d%%, resumed and finished in %.2f s", resumedAt,
+                (System.nanoTime() - start) / 1e9);
+        return saved;
+    }
+
+    private SocketChannel openRelay(String role, String fileId, Session session, long[] range) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(Constants.SERVER_HOST, relayPort));
+        FileRelay.writeLine(Channels.newOutputStream(channel), role, fileId, session.username, session.token,
+                String.valueOf(range[0]), String.valueOf(range[1]));
+        String[] reply = FileRelay.readLine(Channels.newInputStream(channel));
+        if (!FileRelay.OK.equals(reply[0])) {
+            channel.close();
+            throw new IOException("Relay refused " + role + ": " + String.join(" ", reply));
+        }
+        return channel;
+    }
+
+    private Session login(String username) throws IOException {
+        Socket socket = new Socket(Constants.SERVER_HOST, port);
+        MessageIO io = MessageIO.connect(socket);
+        io.write(new Message(MessageType.LOGIN, username, username));
+        Session session = new Session(username, io);
+        Message reply = awaitMessage(session, MessageType.LOGIN);
+        for (String line : reply.getContent().split("\n")) {
+            if (line.startsWith("token=")) {
+                session.token = line.substring(6);
+            }
+        }
+        if (session.token == null) {
+            throw new IOException("Login of " + username + " returned no session token");
+        }
+        return session;
+    }
+
+    private static Message awaitMessage(Session session, String type) throws IOException {
+        while (true) {
+            Message message = session.io.read();
+            if (type.equals(message.getType())) return message;
+            if (MessageType.ERROR.equals(message.getType()) || MessageType.FILE_ERROR.equals(message.getType())) {
+                throw new IOException(session.username + " got " + message.getType() + ": " + message.getContent());
+            }
+        }
+    }
+
+    private static long writeSourceFile(Path path, long size, boolean text) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[1024 * 1024];
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                if (text) {
+                    fillWithLog(block);
+                } else {
+                    ThreadLocalRandom.current().nextBytes(block);
+                }
+                int length = (int) Math.min(block.length, size - written);
+                file.write(block, 0, length);
+                crc.update(block, 0, length);
+            }
+        }
+        return crc.getValue();
+    }
+
+    // Chat-log-like CSV lines: repetitive structure, varying numbers
+    private static void fillWithLog(byte[] block) {
+        String[] events = { "message sent", "message delivered", "user joined", "user left", "file offered" };
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder lines = new StringBuilder(block.length + 128);
+        while (lines.length() < block.length) {
+            lines.append("2026-10-").append(10 + random.nextInt(20)).append('T')
+                    .append(random.nextInt(24)).append(':').append(random.nextInt(60)).append(':')
+                    .append(random.nextInt(60)).append(",user").append(random.nextInt(500)).append(',')
+                    .append(events[random.nextInt(events.length)]).append(",room ").append(random.nextInt(40))
+                    .append(",latency=").append(random.nextInt(300)).append("ms\n");
+        }
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, block, 0, block.length);
+    }
+
+    private static long crc(Path path) throws IOException {
+        if (!Files.exists(path)) return -1;
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] block = new byte[1024 * 1024];
+            int n;
+            while ((n = in.read(block)) > 0) {
+                crc.update(block, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static final class Session {
+        final String username;
+        final MessageIO io;
+        String token;
+
+        Session(String username, MessageIO io) {
+            this.username = username;
+            this.io = io;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int split = arg.indexOf('=');
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        new FileRelayBenchmark(options).run();
+    }
+}
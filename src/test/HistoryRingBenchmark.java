@@ -0,0 +1,111 @@
+package test;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import server.HistoryRing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append throughput of the chat history under many concurrent writers.
+ * Compares HistoryRing with the CopyOnWriteArrayList + remove(0) scheme it
+ * replaced, while one reader keeps taking admin-style snapshots.
+ *
+ * Usage: java test.HistoryRingBenchmark [writers] [seconds] [capacity]
+ */
+public class HistoryRingBenchmark {
+
+    interface History {
+        void append(Message message);
+
+        int snapshotSize();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+
+        HistoryRing ring = new HistoryRing(capacity);
+        run("HistoryRing (" + ring.capacity() + ")", writers, seconds, new History() {
+            public void append(Message message) {
+                ring.append(message);
+            }
+
+            public int snapshotSize() {
+                return ring.latest(Constants.MAX_HISTORY_SIZE).size();
+            }
+        });
+
+        // The old list copies its whole array on every add and remove, so it
+        // only gets the original MAX_HISTORY_SIZE capacity
+        List<Message> list = new CopyOnWriteArrayList<>();
+        run("CopyOnWriteArrayList (" + Constants.MAX_HISTORY_SIZE + ")", writers, seconds, new History() {
+            public void append(Message message) {
+                list.add(message);
+                if (list.size() > Constants.MAX_HISTORY_SIZE) {
+                    list.remove(0);
+                }
+            }
+
+            public int snapshotSize() {
+                return new ArrayList<>(list).size();
+            }
+        });
+    }
+
+    private static void run(String name, int writers, int seconds, History history) throws Exception {
+        LongAdder appends = new LongAdder();
+        LongAdder snapshots = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Message message = new Message(MessageType.PUBLIC_MESSAGE, "bench", "benchmark message");
+
+        Thread[] threads = new Thread[writers + 1];
+        for (int i = 0; i < writers; i++) {
+            threads[i] = new Thread(() -> {
+                await(start);
+                long count = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    for (int j = 0; j < 256; j++) {
+                        history.append(message);
+                    }
+                    count += 256;
+                }
+                appends.add(count);
+            }, "writer-" + i);
+        }
+        threads[writers] = new Thread(() -> {
+            await(start);
+            while (System.nanoTime() < deadline[0]) {
+                history.snapshotSize();
+                snapshots.increment();
+            }
+        }, "reader");
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        deadline[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.printf("%-32s writers=%d  appends=%,.0f ops/s  snapshots=%,.0f ops/s%n",
+                name, writers, appends.sum() / (double) seconds, snapshots.sum() / (double) seconds);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
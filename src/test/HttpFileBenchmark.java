@@ -0,0 +1,236 @@
+package test;
+
+import common.Constants;
+import server.HttpFileServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Concurrency check for the HTTP file server.
+ *
+ * Uploads one file, then:
+ *   1. keeps one download stalled (the client stops reading) and times a
+ *      second download meanwhile, which must not wait for the first;
+ *   2. fetches the file as parallel Range requests and checks that the
+ *      parts reassemble to the original;
+ *   3. runs many concurrent full downloads and reports aggregate throughput;
+ *   4. uploads the same content again under another name, then claims it by
+ *      hash alone, and reports whether the server deduplicated both.
+ *
+ * Usage: java test.HttpFileBenchmark [--option=value ...]
+ *   --sizeMb=8           size of the uploaded file
+ *   --concurrency=200    simultaneous downloads in step 3
+ *   --parts=4            Range requests in step 2
+ *   --port=9000
+ *   --embedded=false     start HttpFileServer in this JVM first
+ */
+public class HttpFileBenchmark {
+    private final int size;
+    private final int concurrency;
+    private final int parts;
+    private final int port;
+    private final boolean embedded;
+
+    public HttpFileBenchmark(Map<String, String> options) {
+        this.size = Integer.parseInt(options.getOrDefault("sizeMb", "8")) * 1024 * 1024;
+        this.concurrency = Integer.parseInt(options.getOrDefault("concurrency", "200"));
+        this.parts = Integer.parseInt(options.getOrDefault("parts", "4"));
+        this.port = Integer.parseInt(options.getOrDefault("port", String.valueOf(Constants.FILE_HTTP_PORT)));
+        this.embedded = Boolean.parseBoolean(options.getOrDefault("embedded", "false"));
+    }
+
+    public void run() throws Exception {
+        if (embedded) {
+            HttpFileServer.startFileServer(port);
+        }
+
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        String name = "http-bench-" + System.nanoTime() + ".bin";
+        long start = System.nanoTime();
+        upload(name, content, null);
+        System.out.printf("Upload: %d MB in %.2f s%n", size >> 20, seconds(start));
+        String url = "http://" + Constants.SERVER_HOST + ":" + port + "/files/" + name;
+
+        stalledDownload(url);
+        try {
+            rangeDownload(url, content);
+        } catch (ExecutionException e) {
+            System.out.println("Range requests failed: " + e.getCause().getMessage());
+        }
+        concurrentDownloads(url);
+        reupload(content);
+    }
+
+    private void reupload(byte[] content) throws Exception {
+        long start = System.nanoTime();
+        String resp = upload("http-bench-copy-" + System.nanoTime() + ".bin", content, null);
+        System.out.printf("Re-upload of the same content: %.3f s (%s)%n", seconds(start),
+                resp.contains("\"deduplicated\":true") ? "deduplicated" : "STORED AGAIN");
+
+        String hash = toHex(MessageDigest.getInstance("SHA-256").digest(content));
+        start = System.nanoTime();
+        resp = upload("http-bench-claim-" + System.nanoTime() + ".bin", new byte[0], hash);
+        System.out.printf("Claim by hash without a body: %.3f s (%s)%n", seconds(start),
+                resp.contains(hash) ? "ok" : "UNEXPECTED " + resp);
+    }
+
+    private void stalledDownload(String url) throws Exception {
+        HttpURLConnection stalled = (HttpURLConnection) new URL(url).openConnection();
+        InputStream stalledBody = stalled.getInputStream();
+        stalledBody.read(new byte[1]); // the server is now blocked writing to this client
+
+        long start = System.nanoTime();
+        byte[] body = get(url, null);
+        System.out.printf("Download while another client stalls: %.3f s (%s)%n", seconds(start),
+                body.length == size ? "ok" : "WRONG LENGTH " + body.length);
+        stalled.disconnect();
+    }
+
+    private void rangeDownload(String url, byte[] content) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        long start = System.nanoTime();
+        List<Future<byte[]>> pieces = new ArrayList<>();
+        int step = (size + parts - 1) / parts;
+        for (int first = 0; first < size; first += step) {
+            String range = "bytes=" + first + "-" + (Math.min(size, first + step) - 1);
+            pieces.add(pool.submit(() -> get(url, range)));
+        }
+        ByteArrayOutputStream joined = new ByteArrayOutputStream(size);
+        for (Future<byte[]> piece : pieces) {
+            joined.write(piece.get());
+        }
+        pool.shutdown();
+        System.out.printf("%d parallel Range requests: %.3f s (%s)%n", pieces.size(), seconds(start),
+                crc(joined.toByteArray()) == crc(content) ? "reassembled ok" : "MISMATCH");
+    }
+
+    private void concurrentDownloads(String url) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        List<Future<Long>> downloads = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            downloads.add(pool.submit(() -> drain(url)));
+        }
+        long bytes = 0;
+        int failures = 0;
+        for (Future<Long> download : downloads) {
+            try {
+                bytes += download.get();
+            } catch (Exception e) {
+                failures++;
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        double elapsed = seconds(start);
+        System.out.printf("%d concurrent downloads: %.2f s, %.1f MB/s aggregate, %d failed%n",
+                concurrency, elapsed, bytes / elapsed / (1024 * 1024), failures);
+    }
+
+    private String upload(String name, byte[] content, String sha256) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://" + Constants.SERVER_HOST + ":" + port + "/upload").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(content.length);
+        connection.setRequestProperty("X-Filename", name);
+        if (sha256 != null) {
+            connection.setRequestProperty("X-Content-SHA256", sha256);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(content);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("Upload failed: HTTP " + connection.getResponseCode());
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] get(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        int expected = range == null ? 200 : 206;
+        if (connection.getResponseCode() != expected) {
+            throw new IOException("HTTP " + connection.getResponseCode() + " for " + (range != null ? range : url));
+        }
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    // Read a whole download without keeping it
+    private long drain(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        if (total != size) {
+            throw new IOException("Short download: " + total + " bytes");
+        }
+        return total;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int split = arg.indexOf('=');
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        new HttpFileBenchmark(options).run();
+        System.exit(0);
+    }
+}
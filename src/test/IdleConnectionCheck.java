@@ -0,0 +1,152 @@
+package test;
+
+import common.MessageCodec;
+import server.NioChatServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the NIO server holds many idle connections on a bounded
+ * number of threads.
+ *
+ * Starts a NioChatServer in this JVM, then has a child JVM open the
+ * connections and complete the binary handshake on each, so the two ends
+ * do not share one process's file descriptor limit. Once every connection
+ * is open it compares this JVM's live thread count with the count before the
+ * server started, and exits with status 1 if the server added more than its
+ * event loops plus a few JVM helper threads, or if any connection is missing.
+ *
+ * Usage: java test.IdleConnectionCheck [--option=value ...]
+ *   --connections=10000
+ *   --loops=2            NIO event loop threads
+ *   --slack=4            threads allowed on top of the event loops
+ *   --port=5099
+ */
+public class IdleConnectionCheck {
+    private static final String READY = "READY";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int connections = Integer.parseInt(options.getOrDefault("connections", "10000"));
+        int port = Integer.parseInt(options.getOrDefault("port", "5099"));
+
+        if ("clients".equals(options.get("role"))) {
+            holdConnections(connections, port);
+            return;
+        }
+
+        int loops = Integer.parseInt(options.getOrDefault("loops", "2"));
+        int slack = Integer.parseInt(options.getOrDefault("slack", "4"));
+        System.exit(check(connections, port, loops, slack) ? 0 : 1);
+    }
+
+    private static boolean check(int connections, int port, int loops, int slack) throws Exception {
+        int threadsBefore = liveThreads();
+        NioChatServer server = new NioChatServer(port, loops);
+        server.start();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process clients = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                IdleConnectionCheck.class.getName(), "--role=clients",
+                "--connections=" + connections, "--port=" + port)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            BufferedReader out = new BufferedReader(new InputStreamReader(clients.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = out.readLine()) != null && !line.startsWith(READY)) {
+                System.out.println(line);
+            }
+            if (line == null) {
+                System.out.println("FAIL: the client process exited before opening its connections");
+                return false;
+            }
+            int opened = Integer.parseInt(line.substring(READY.length()).trim());
+
+            // Sessions are counted once their loop has registered them
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (server.getSessionCount() < opened && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            int added = liveThreads() - threadsBefore;
+            int allowed = loops + slack;
+            System.out.printf("%d of %d connections open, %d server sessions, %d threads added (at most %d)%n",
+                    opened, connections, server.getSessionCount(), added, allowed);
+
+            boolean passed = true;
+            if (opened != connections || server.getSessionCount() != connections) {
+                System.out.println("FAIL: not every connection was held");
+                passed = false;
+            }
+            if (added > allowed) {
+                System.out.println("FAIL: thread count grew with the connections");
+                passed = false;
+            }
+            if (passed) {
+                System.out.println("PASS");
+            }
+            return passed;
+        } finally {
+            clients.getOutputStream().close(); // tells the client process to close its sockets
+            clients.waitFor();
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    // Child process: open the connections, report, then hold them until stdin closes
+    private static void holdConnections(int connections, int port) throws IOException {
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        ByteBuffer reply = ByteBuffer.allocate(MessageCodec.MAGIC.length);
+        try {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channels.add(channel);
+                channel.write(ByteBuffer.wrap(MessageCodec.MAGIC));
+                reply.clear();
+                while (reply.hasRemaining()) {
+                    if (channel.read(reply) == -1) {
+                        throw new IOException("Server closed connection " + i + " during handshake");
+                    }
+                }
+                if (!Arrays.equals(reply.array(), MessageCodec.MAGIC)) {
+                    throw new IOException("Unexpected handshake reply on connection " + i);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Opened " + channels.size() + " connections: " + e.getMessage());
+        }
+        System.out.println(READY + " " + channels.size());
+        System.out.flush();
+
+        while (System.in.read() != -1) {
+            // wait for the parent to finish counting
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private static int liveThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
@@ -0,0 +1,328 @@
+package test;
+
+import common.Constants;
+import common.Message;
+import common.MessageIO;
+import common.MessageType;
+import server.ConnectionExecutors;
+import server.LatencyHistogram;
+import server.MetricsRegistry;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator for capacity planning.
+ *
+ * Opens N sessions against a running Server over the real protocol, logging
+ * them in at a fixed rate, then has every session send public and private
+ * messages on a schedule. Each message carries its send time, so receivers
+ * measure end-to-end latency (loopback only, the clock is this JVM's).
+ *
+ * Usage: java test.LoadGenerator [--option=value ...]
+ *   --clients=100        sessions to open
+ *   --loginRate=50       logins per second
+ *   --rate=1             messages per second per session
+ *   --privateRatio=0.2   share of messages sent privately to a random session
+ *   --duration=30        seconds of messaging after the last login
+ *   --protocol=binary    "binary" (MessageCodec) or "object" (Java serialization)
+ *   --port=5000
+ *   --embedded=false     start Server in this JVM first
+ */
+public class LoadGenerator {
+    private static final String PREFIX = "lg:";
+
+    private final int clientCount;
+    private final double loginRate;
+    private final double messageRate;
+    private final double privateRatio;
+    private final int durationSeconds;
+    private final boolean binary;
+    private final int port;
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final ExecutorService readers = ConnectionExecutors.createDaemon("loadgen-reader");
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4, r -> {
+        Thread t = new Thread(r, "loadgen-sender");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LatencyHistogram publicLatency = MetricsRegistry.histogram(
+            "loadgen_public_latency_seconds", "Send to delivery time of public messages, per recipient");
+    private final LatencyHistogram privateLatency = MetricsRegistry.histogram(
+            "loadgen_private_latency_seconds", "Send to delivery time of private messages");
+    private final LatencyHistogram loginLatency = MetricsRegistry.histogram(
+            "loadgen_login_seconds", "Connect to login reply time");
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong loginRejects = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private volatile boolean stopping = false;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.clientCount = Integer.parseInt(options.getOrDefault("clients", "100"));
+        this.loginRate = Double.parseDouble(options.getOrDefault("loginRate", "50"));
+        this.messageRate = Double.parseDouble(options.getOrDefault("rate", "1"));
+        this.privateRatio = Double.parseDouble(options.getOrDefault("privateRatio", "0.2"));
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        this.binary = !"object".equalsIgnoreCase(options.getOrDefault("protocol", "binary"));
+        this.port = Integer.parseInt(options.getOrDefault("port", String.valueOf(Constants.SERVER_PORT)));
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("=== %d sessions, %.0f logins/s, %.1f msg/s each, %.0f%% private, %s protocol ===%n",
+                clientCount, loginRate, messageRate, privateRatio * 100, binary ? "binary" : "object");
+
+        long runStart = System.nanoTime();
+        login();
+        System.out.printf("Logged in %d/%d sessions in %.1f s%n",
+                sessions.size(), clientCount, (System.nanoTime() - runStart) / 1e9);
+        if (sessions.isEmpty()) {
+            report(0);
+            return;
+        }
+
+        // Spread the first sends over one period so sessions do not fire in lockstep
+        long periodNanos = (long) (1e9 / messageRate);
+        for (Session session : sessions) {
+            long delay = ThreadLocalRandom.current().nextLong(periodNanos);
+            session.task = scheduler.scheduleAtFixedRate(session::sendNext, delay, periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        long messagingStart = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            long nowSent = sent.get();
+            long nowReceived = received.get();
+            System.out.printf("[%3ds] sessions=%d sent/s=%d delivered/s=%d p99=%.2f ms errors=%d%n",
+                    second, sessions.size(), nowSent - lastSent, nowReceived - lastReceived,
+                    publicLatency.valueAtQuantile(0.99) / 1e6, errors());
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+
+        stopping = true;
+        scheduler.shutdownNow();
+        Thread.sleep(500); // let in-flight deliveries arrive
+        report((System.nanoTime() - messagingStart) / 1e9);
+
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void login() throws InterruptedException {
+        long intervalNanos = (long) (1e9 / loginRate);
+        long next = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            next += intervalNanos;
+
+            String username = "load" + i;
+            readers.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    Session session = new Session(username);
+                    if (session.login()) {
+                        loginLatency.recordSince(start);
+                        sessions.add(session);
+                        session.readLoop();
+                    } else {
+                        loginRejects.incrementAndGet();
+                        session.close();
+                    }
+                } catch (IOException e) {
+                    connectErrors.incrementAndGet();
+                }
+            });
+        }
+
+        // Wait for the last logins to be answered
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (sessions.size() + connectErrors.get() + loginRejects.get() < clientCount
+                && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    private long errors() {
+        return connectErrors.get() + loginRejects.get() + sendErrors.get() + disconnects.get();
+    }
+
+    private void report(double seconds) {
+        System.out.println("=== Results ===");
+        System.out.printf("Messages sent: %d (%.0f/s), deliveries: %d (%.0f/s)%n",
+                sent.get(), seconds > 0 ? sent.get() / seconds : 0,
+                received.get(), seconds > 0 ? received.get() / seconds : 0);
+        printLatency("Login", loginLatency);
+        printLatency("Public", publicLatency);
+        printLatency("Private", privateLatency);
+        System.out.printf("Errors: connect=%d loginRejected=%d send=%d disconnected=%d%n",
+                connectErrors.get(), loginRejects.get(), sendErrors.get(), disconnects.get());
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-8s n=%-9d p50=%.3f ms  p99=%.3f ms  p999=%.3f ms  max=%.3f ms%n", name,
+                histogram.getCount(), histogram.valueAtQuantile(0.50) / 1e6, histogram.valueAtQuantile(0.99) / 1e6,
+                histogram.valueAtQuantile(0.999) / 1e6, histogram.getMaxNanos() / 1e6);
+    }
+
+    /**
+     * One simulated user speaking either wire format
+     */
+    class Session {
+        private final String username;
+        private final Socket socket;
+        private MessageIO io;
+        private ObjectOutputStream output;
+        private ObjectInputStream input;
+        private long sequence;
+        volatile ScheduledFuture<?> task;
+
+        Session(String username) throws IOException {
+            this.username = username;
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            if (binary) {
+                io = MessageIO.connect(socket);
+            } else {
+                socket.setTcpNoDelay(true);
+                output = new ObjectOutputStream(socket.getOutputStream());
+                output.flush();
+                input = new ObjectInputStream(socket.getInputStream());
+            }
+        }
+
+        boolean login() throws IOException {
+            socket.setSoTimeout(10000);
+            send(new Message(MessageType.LOGIN, username, username));
+            try {
+                while (true) {
+                    Message reply = read();
+                    if (MessageType.ERROR.equals(reply.getType())) return false;
+                    if (MessageType.LOGIN.equals(reply.getType())) return true;
+                }
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        void sendNext() {
+            if (stopping) return;
+            String content = PREFIX + username + ":" + (sequence++) + ":" + System.nanoTime();
+            try {
+                if (sessions.size() > 1 && ThreadLocalRandom.current().nextDouble() < privateRatio) {
+                    Session target = sessions.get(ThreadLocalRandom.current().nextInt(sessions.size()));
+                    if (target == this) {
+                        target = sessions.get((sessions.indexOf(this) + 1) % sessions.size());
+                    }
+                    send(new Message(MessageType.PRIVATE_MESSAGE, username, target.username, content));
+                } else {
+                    send(new Message(MessageType.PUBLIC_MESSAGE, username, content));
+                }
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                sendErrors.incrementAndGet();
+                if (task != null) task.cancel(false);
+            }
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    Message message = read();
+                    String content = message.getContent();
+                    if (content == null || !content.startsWith(PREFIX)) continue;
+
+                    long sentAt = Long.parseLong(content.substring(content.lastIndexOf(':') + 1));
+                    long latency = System.nanoTime() - sentAt;
+                    if (MessageType.MESSAGE_BROADCAST.equals(message.getType())) {
+                        publicLatency.record(latency);
+                        received.incrementAndGet();
+                    } else if (username.equals(message.getReceiver())) {
+                        // The sender also gets a copy of private messages; count the receiver only
+                        privateLatency.record(latency);
+                        received.incrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    disconnects.incrementAndGet();
+                    sessions.remove(this);
+                }
+            }
+        }
+
+        private synchronized void send(Message message) throws IOException {
+            if (binary) {
+                io.write(message);
+            } else {
+                output.writeObject(message);
+                output.flush();
+                output.reset();
+            }
+        }
+
+        private Message read() throws IOException {
+            if (binary) {
+                return io.read();
+            }
+            try {
+                return (Message) input.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int split = arg.indexOf('=');
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            } else {
+                System.err.println("Ignoring argument " + arg + " (expected --option=value)");
+            }
+        }
+
+        if (Boolean.parseBoolean(options.getOrDefault("embedded", "false"))) {
+            Thread serverThread = new Thread(() -> server.Server.main(new String[0]), "loadgen-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            Thread.sleep(1000);
+        }
+
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+}
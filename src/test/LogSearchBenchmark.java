@@ -0,0 +1,135 @@
+package test;
+
+import server.LogSearchIndex;
+import server.SegmentedLogStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Index build time, index size and query latency of LogSearchIndex, against
+ * the linear lowercase-and-contains scan it replaced. Writes a synthetic chat
+ * log of the given size into a temporary directory and deletes it afterwards.
+ *
+ * Usage: java test.LogSearchBenchmark [lines] [segmentMB]
+ */
+public class LogSearchBenchmark {
+    private static final String[] TYPES = {"MESSAGE_BROADCAST", "PRIVATE_MESSAGE", "USER_JOINED", "USER_LEFT"};
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int segmentBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024 * 1024;
+
+        Path dir = Files.createTempDirectory("log-search-bench");
+        try {
+            run(dir, lines, segmentBytes);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(Path dir, int lines, int segmentBytes) throws IOException {
+        // A Zipf-like vocabulary: a few very common words, a long tail of rare ones
+        Random random = new Random(42);
+        String[] words = new String[20_000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = Integer.toString(i * 7919 + 1000, 36);
+        }
+
+        SegmentedLogStore store = new SegmentedLogStore(dir, segmentBytes);
+        LogSearchIndex index = new LogSearchIndex(store);
+
+        long start = System.nanoTime();
+        long indexNanos = 0;
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            line.setLength(0);
+            line.append(String.format("[2026-10-%02d %02d:%02d:%02d] [%s] user%d -> ",
+                    1 + i / 100_000 % 28, i / 3600 % 24, i / 60 % 60, i % 60,
+                    TYPES[random.nextInt(TYPES.length)], random.nextInt(500)));
+            line.append(random.nextInt(5) == 0 ? "user" + random.nextInt(500) : "ALL").append(':');
+            int count = 3 + random.nextInt(12);
+            for (int w = 0; w < count; w++) {
+                double u = random.nextDouble();
+                line.append(' ').append(words[(int) (words.length * u * u * u)]);
+            }
+            store.append(line.toString());
+
+            // Index in batches, as the log writer does
+            if (i % 1000 == 999) {
+                long batch = System.nanoTime();
+                index.update();
+                indexNanos += System.nanoTime() - batch;
+            }
+        }
+        long batch = System.nanoTime();
+        index.update();
+        indexNanos += System.nanoTime() - batch;
+        long totalNanos = System.nanoTime() - start;
+
+        long dataBytes = 0;
+        long indexBytes = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".terms")) {
+                    indexBytes += Files.size(file);
+                } else if (name.endsWith(".idx") || name.endsWith(".seg")) {
+                    dataBytes += Files.size(file);
+                }
+            }
+        }
+
+        System.out.printf("=== %,d lines in %d segments ===%n", store.size(), store.getSegmentCount());
+        System.out.printf("Append + index: %.2f s, of which indexing %.2f s (%.2f us/line)%n",
+                totalNanos / 1e9, indexNanos / 1e9, indexNanos / 1e3 / lines);
+        System.out.printf("Segments on disk: %,d KB, .terms files: %,d KB, postings in memory: %,d KB%n",
+                dataBytes / 1024, indexBytes / 1024, index.getPostingBytes() / 1024);
+
+        String rare = words[words.length - 1];
+        String common = words[0];
+        List<String> queries = Arrays.asList(
+                rare,                                  // rare term
+                common,                                // very common term
+                "user42",                              // user name
+                "user4",                               // prefix of many user names
+                common + " " + words[1],               // phrase of two common terms
+                "private_message] user7 -> user1");    // phrase with punctuation
+
+        // Every search after the first uses indexes already in memory
+        long firstStart = System.nanoTime();
+        index.search(rare);
+        System.out.printf("First search (loads sealed indexes): %.1f ms%n", (System.nanoTime() - firstStart) / 1e6);
+
+        System.out.printf("%-36s %10s %12s %12s%n", "Query", "Matches", "Index ms", "Scan ms");
+        for (String query : queries) {
+            int matches = 0;
+            long[] indexTimes = new long[5];
+            for (int i = 0; i < indexTimes.length; i++) {
+                long t = System.nanoTime();
+                matches = index.search(query).size();
+                indexTimes[i] = System.nanoTime() - t;
+            }
+            Arrays.sort(indexTimes);
+
+            String needle = query.toLowerCase();
+            int[] scanMatches = new int[1];
+            long t = System.nanoTime();
+            store.forEach(l -> {
+                if (l.toLowerCase().contains(needle)) scanMatches[0]++;
+            });
+            long scanNanos = System.nanoTime() - t;
+
+            System.out.printf("%-36s %10d %12.2f %12.2f%s%n", query, matches, indexTimes[2] / 1e6, scanNanos / 1e6,
+                    matches == scanMatches[0] ? "" : "  (scan found " + scanMatches[0] + ")");
+        }
+    }
+}
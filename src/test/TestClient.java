@@ -2,10 +2,9 @@ package test;
 
 import common.Constants;
 import common.Message;
+import common.MessageIO;
 import common.MessageType;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.Scanner;
 
@@ -14,8 +13,7 @@ import java.util.Scanner;
  */
 public class TestClient {
     private Socket socket;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
+    private MessageIO io;
     private String username;
     private boolean running;
 
@@ -29,16 +27,13 @@ public class TestClient {
             System.out.println("Connecting to server at " + Constants.SERVER_HOST + ":" + Constants.SERVER_PORT);
             socket = new Socket(Constants.SERVER_HOST, Constants.SERVER_PORT);
 
-            output = new ObjectOutputStream(socket.getOutputStream());
-            output.flush();
-            input = new ObjectInputStream(socket.getInputStream());
+            io = MessageIO.connect(socket);
 
             System.out.println("✓ Connected to server!");
 
             // Send login message
             Message loginMsg = new Message(MessageType.LOGIN, username, "Login request");
-            output.writeObject(loginMsg);
-            output.flush();
+            io.write(loginMsg);
             System.out.println("✓ Login request sent");
 
             // Start listener thread
@@ -107,8 +102,7 @@ public class TestClient {
     private void sendPublicMessage(String content) {
         try {
             Message msg = new Message(MessageType.PUBLIC_MESSAGE, username, content);
-            output.writeObject(msg);
-            output.flush();
+            io.write(msg);
         } catch (Exception e) {
             System.err.println("Error sending public message: " + e.getMessage());
         }
@@ -117,8 +111,7 @@ public class TestClient {
     private void sendPrivateMessage(String receiver, String content) {
         try {
             Message msg = new Message(MessageType.PRIVATE_MESSAGE, username, receiver, content);
-            output.writeObject(msg);
-            output.flush();
+            io.write(msg);
             System.out.println("→ Private message sent to " + receiver);
         } catch (Exception e) {
             System.err.println("Error sending private message: " + e.getMessage());
@@ -129,8 +122,7 @@ public class TestClient {
         try {
             Message msg = new Message(MessageType.FILE_TRANSFER_REQUEST, username, receiver,
                     "test_file.txt");
-            output.writeObject(msg);
-            output.flush();
+            io.write(msg);
             System.out.println("→ File transfer request sent to " + receiver);
         } catch (Exception e) {
             System.err.println("Error requesting file transfer: " + e.getMessage());
@@ -141,16 +133,13 @@ public class TestClient {
         try {
             running = false;
 
-            if (output != null) {
+            if (io != null) {
                 Message logoutMsg = new Message(MessageType.LOGOUT, username, "Goodbye");
-                output.writeObject(logoutMsg);
-                output.flush();
+                io.write(logoutMsg);
             }
 
-            if (input != null)
-                input.close();
-            if (output != null)
-                output.close();
+            if (io != null)
+                io.close();
             if (socket != null)
                 socket.close();
 
@@ -167,7 +156,7 @@ public class TestClient {
         public void run() {
             try {
                 while (running) {
-                    Message msg = (Message) input.readObject();
+                    Message msg = io.read();
                     displayMessage(msg);
                 }
             } catch (Exception e) {